@@ -0,0 +1,401 @@
+/**********************************************************************
+Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package org.datanucleus.store.hbase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.WritableUtils;
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.store.types.sco.SCO;
+
+/**
+ * Default codec. Values are written as a format marker byte followed by a type tag and a compact encoding of the
+ * value: variable length ints and longs, UTF-8 strings, dates as millis, enums by name, and the common collections and
+ * maps element by element. Values of any other type (or holding one) fall back to Java serialization, and cells
+ * without the marker, i.e. written with Java serialization, are still read.
+ */
+public class CompactFieldCodec implements HBaseFieldCodec
+{
+    public static final CompactFieldCodec INSTANCE = new CompactFieldCodec();
+
+    /** First byte of the cells written by this codec. Java serialization streams start with 0xAC. */
+    static final byte FORMAT_MARKER = 0x01;
+
+    private static final int NULL = 0;
+
+    private static final int STRING = 1;
+
+    private static final int BOOLEAN = 2;
+
+    private static final int BYTE = 3;
+
+    private static final int SHORT = 4;
+
+    private static final int CHARACTER = 5;
+
+    private static final int INTEGER = 6;
+
+    private static final int LONG = 7;
+
+    private static final int FLOAT = 8;
+
+    private static final int DOUBLE = 9;
+
+    private static final int DATE = 10;
+
+    private static final int BIG_DECIMAL = 11;
+
+    private static final int BIG_INTEGER = 12;
+
+    private static final int BYTES = 13;
+
+    private static final int ENUM = 14;
+
+    private static final int ARRAY_LIST = 15;
+
+    private static final int LINKED_LIST = 16;
+
+    private static final int HASH_SET = 17;
+
+    private static final int LINKED_HASH_SET = 18;
+
+    private static final int TREE_SET = 19;
+
+    private static final int HASH_MAP = 20;
+
+    private static final int LINKED_HASH_MAP = 21;
+
+    private static final int TREE_MAP = 22;
+
+    public byte[] encode(Object value) throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(FORMAT_MARKER);
+        if (!write(out, value))
+        {
+            // Not covered by the format
+            return JavaSerializationFieldCodec.INSTANCE.encode(value);
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    public Object decode(byte[] bytes, ClassLoaderResolver clr) throws IOException
+    {
+        if (bytes[0] != FORMAT_MARKER)
+        {
+            // Written with Java serialization, by the fallback or before codecs existed
+            return Utils.deserializeObject(bytes);
+        }
+        return read(new DataInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1)), clr);
+    }
+
+    /**
+     * @return Whether the value could be written, false if it (or an element of it) isn't covered by the format
+     */
+    private boolean write(DataOutput out, Object value) throws IOException
+    {
+        if (value == null)
+        {
+            out.writeByte(NULL);
+            return true;
+        }
+
+        Class<?> type = getType(value);
+        if (type == String.class)
+        {
+            out.writeByte(STRING);
+            writeBytes(out, Bytes.toBytes((String) value));
+        }
+        else if (type == Boolean.class)
+        {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        }
+        else if (type == Byte.class)
+        {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        }
+        else if (type == Short.class)
+        {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        }
+        else if (type == Character.class)
+        {
+            out.writeByte(CHARACTER);
+            out.writeChar((Character) value);
+        }
+        else if (type == Integer.class)
+        {
+            out.writeByte(INTEGER);
+            WritableUtils.writeVInt(out, (Integer) value);
+        }
+        else if (type == Long.class)
+        {
+            out.writeByte(LONG);
+            WritableUtils.writeVLong(out, (Long) value);
+        }
+        else if (type == Float.class)
+        {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        }
+        else if (type == Double.class)
+        {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        }
+        else if (type == Date.class)
+        {
+            out.writeByte(DATE);
+            WritableUtils.writeVLong(out, ((Date) value).getTime());
+        }
+        else if (type == BigDecimal.class)
+        {
+            out.writeByte(BIG_DECIMAL);
+            WritableUtils.writeVInt(out, ((BigDecimal) value).scale());
+            writeBytes(out, ((BigDecimal) value).unscaledValue().toByteArray());
+        }
+        else if (type == BigInteger.class)
+        {
+            out.writeByte(BIG_INTEGER);
+            writeBytes(out, ((BigInteger) value).toByteArray());
+        }
+        else if (type == byte[].class)
+        {
+            out.writeByte(BYTES);
+            writeBytes(out, (byte[]) value);
+        }
+        else if (value instanceof Enum)
+        {
+            out.writeByte(ENUM);
+            writeBytes(out, Bytes.toBytes(((Enum<?>) value).getDeclaringClass().getName()));
+            writeBytes(out, Bytes.toBytes(((Enum<?>) value).name()));
+        }
+        else if (type == ArrayList.class)
+        {
+            out.writeByte(ARRAY_LIST);
+            return writeElements(out, (Collection<?>) value);
+        }
+        else if (type == LinkedList.class)
+        {
+            out.writeByte(LINKED_LIST);
+            return writeElements(out, (Collection<?>) value);
+        }
+        else if (type == HashSet.class)
+        {
+            out.writeByte(HASH_SET);
+            return writeElements(out, (Collection<?>) value);
+        }
+        else if (type == LinkedHashSet.class)
+        {
+            out.writeByte(LINKED_HASH_SET);
+            return writeElements(out, (Collection<?>) value);
+        }
+        else if (type == TreeSet.class && ((TreeSet<?>) value).comparator() == null)
+        {
+            out.writeByte(TREE_SET);
+            return writeElements(out, (Collection<?>) value);
+        }
+        else if (type == HashMap.class)
+        {
+            out.writeByte(HASH_MAP);
+            return writeEntries(out, (Map<?, ?>) value);
+        }
+        else if (type == LinkedHashMap.class)
+        {
+            out.writeByte(LINKED_HASH_MAP);
+            return writeEntries(out, (Map<?, ?>) value);
+        }
+        else if (type == TreeMap.class && ((TreeMap<?, ?>) value).comparator() == null)
+        {
+            out.writeByte(TREE_MAP);
+            return writeEntries(out, (Map<?, ?>) value);
+        }
+        else
+        {
+            return false;
+        }
+        return true;
+    }
+
+    private boolean writeElements(DataOutput out, Collection<?> collection) throws IOException
+    {
+        WritableUtils.writeVInt(out, collection.size());
+        for (Object element : collection)
+        {
+            if (!write(out, element))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean writeEntries(DataOutput out, Map<?, ?> map) throws IOException
+    {
+        WritableUtils.writeVInt(out, map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet())
+        {
+            if (!write(out, entry.getKey()) || !write(out, entry.getValue()))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException
+    {
+        WritableUtils.writeVInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Object read(DataInput in, ClassLoaderResolver clr) throws IOException
+    {
+        int tag = in.readByte();
+        switch (tag)
+        {
+            case NULL :
+                return null;
+            case STRING :
+                return Bytes.toString(readBytes(in));
+            case BOOLEAN :
+                return Boolean.valueOf(in.readBoolean());
+            case BYTE :
+                return Byte.valueOf(in.readByte());
+            case SHORT :
+                return Short.valueOf(in.readShort());
+            case CHARACTER :
+                return Character.valueOf(in.readChar());
+            case INTEGER :
+                return Integer.valueOf(WritableUtils.readVInt(in));
+            case LONG :
+                return Long.valueOf(WritableUtils.readVLong(in));
+            case FLOAT :
+                return Float.valueOf(in.readFloat());
+            case DOUBLE :
+                return Double.valueOf(in.readDouble());
+            case DATE :
+                return new Date(WritableUtils.readVLong(in));
+            case BIG_DECIMAL :
+            {
+                int scale = WritableUtils.readVInt(in);
+                return new BigDecimal(new BigInteger(readBytes(in)), scale);
+            }
+            case BIG_INTEGER :
+                return new BigInteger(readBytes(in));
+            case BYTES :
+                return readBytes(in);
+            case ENUM :
+            {
+                Class enumType = clr.classForName(Bytes.toString(readBytes(in)));
+                return Enum.valueOf(enumType, Bytes.toString(readBytes(in)));
+            }
+            case ARRAY_LIST :
+            {
+                int size = WritableUtils.readVInt(in);
+                return readElements(in, clr, new ArrayList<Object>(size), size);
+            }
+            case LINKED_LIST :
+                return readElements(in, clr, new LinkedList<Object>(), WritableUtils.readVInt(in));
+            case HASH_SET :
+                return readElements(in, clr, new HashSet<Object>(), WritableUtils.readVInt(in));
+            case LINKED_HASH_SET :
+                return readElements(in, clr, new LinkedHashSet<Object>(), WritableUtils.readVInt(in));
+            case TREE_SET :
+                return readElements(in, clr, new TreeSet<Object>(), WritableUtils.readVInt(in));
+            case HASH_MAP :
+                return readEntries(in, clr, new HashMap<Object, Object>(), WritableUtils.readVInt(in));
+            case LINKED_HASH_MAP :
+                return readEntries(in, clr, new LinkedHashMap<Object, Object>(), WritableUtils.readVInt(in));
+            case TREE_MAP :
+                return readEntries(in, clr, new TreeMap<Object, Object>(), WritableUtils.readVInt(in));
+            default :
+                throw new IOException("Unknown type tag " + tag + " in compact field encoding");
+        }
+    }
+
+    private Collection<Object> readElements(DataInput in, ClassLoaderResolver clr, Collection<Object> collection, int size)
+            throws IOException
+    {
+        for (int i = 0; i < size; i++)
+        {
+            collection.add(read(in, clr));
+        }
+        return collection;
+    }
+
+    private Map<Object, Object> readEntries(DataInput in, ClassLoaderResolver clr, Map<Object, Object> map, int size)
+            throws IOException
+    {
+        for (int i = 0; i < size; i++)
+        {
+            Object key = read(in, clr);
+            map.put(key, read(in, clr));
+        }
+        return map;
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException
+    {
+        byte[] bytes = new byte[WritableUtils.readVInt(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * The class deciding the encoding of the value. SCO wrappers extend the java.util class they stand for.
+     */
+    private static Class<?> getType(Object value)
+    {
+        Class<?> type = value.getClass();
+        if (value instanceof SCO)
+        {
+            while (type != null && !type.getName().startsWith("java."))
+            {
+                type = type.getSuperclass();
+            }
+        }
+        return type;
+    }
+}
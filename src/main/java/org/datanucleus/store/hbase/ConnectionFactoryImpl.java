@@ -28,6 +28,8 @@ import org.datanucleus.store.connection.ManagedConnection;
  */
 public class ConnectionFactoryImpl extends AbstractConnectionFactory
 {
+    private final String resourceType;
+
     private HBaseConnectionPool connectionPool;
 
     /**
@@ -38,9 +40,22 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory
     public ConnectionFactoryImpl(OMFContext omfContext, String resourceType)
     {
         super(omfContext, resourceType);
-        HBaseStoreManager storeManager = (HBaseStoreManager) omfContext.getStoreManager();
-        connectionPool = new HBaseConnectionPool();
-        connectionPool.setTimeBetweenEvictionRunsMillis(storeManager.getPoolTimeBetweenEvictionRunsMillis());
+        this.resourceType = resourceType;
+    }
+
+    /**
+     * Accessor for the pool of connections, created on first use as the factory is created while the store manager
+     * is being constructed, before its configuration is read.
+     * @return The pool
+     */
+    private synchronized HBaseConnectionPool getConnectionPool()
+    {
+        if (connectionPool == null)
+        {
+            HBaseStoreManager storeManager = (HBaseStoreManager) omfContext.getStoreManager();
+            connectionPool = storeManager.createConnectionPool(resourceType);
+        }
+        return connectionPool;
     }
 
     /**
@@ -54,14 +69,15 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory
     {
         HBaseStoreManager storeManager = (HBaseStoreManager) omfContext.getStoreManager();
                
+        HBaseConnectionPool connectionPool = getConnectionPool();
         HBaseManagedConnection managedConnection = connectionPool.getPooledConnection();
-        if (managedConnection == null) 
+        if (managedConnection == null || !managedConnection.incrementReferenceCount()) 
         {
-            managedConnection = new HBaseManagedConnection(storeManager.getHbaseConfig());
+            managedConnection = new HBaseManagedConnection(storeManager);
             managedConnection.setIdleTimeoutMills(storeManager.getPoolMinEvictableIdleTimeMillis());
             connectionPool.registerConnection(managedConnection);
+            managedConnection.incrementReferenceCount();
         }
-        managedConnection.incrementReferenceCount();
         return managedConnection;
     }
 }
@@ -0,0 +1,336 @@
+/**********************************************************************
+Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package org.datanucleus.store.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.api.ApiAdapter;
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.Relation;
+
+/**
+ * Column mapping of a persistent class, computed once from its metadata. Holds the family and qualifier of every
+ * field as bytes, indexed by absolute field number, together with the relation type and the {@link HBaseFieldCodec}
+ * of the fields, so that reading and writing objects doesn't go back to the metadata for each field.
+ */
+public class HBaseClassDescriptor
+{
+    private final String tableName;
+
+    private final byte[][] families;
+
+    private final byte[][] qualifiers;
+
+    private final int[] relationTypes;
+
+    private final HBaseFieldCodec[] codecs;
+
+    private final String[] relatedClassNames;
+
+    /** Whether the field is a collection stored with the {@link HBaseWideRowLayout}, and then whether it's a list */
+    private final boolean[] wideRow;
+
+    private final boolean[] ordered;
+
+    private final int[] relationFieldNumbers;
+
+    private final int[] nonRelationFieldNumbers;
+
+    private final int[] ownedFieldNumbers;
+
+    private final int pkFieldNumber;
+
+    private final Class<?> pkType;
+
+    private final Class<?> pcClass;
+
+    private final Class<?> idClass;
+
+    /**
+     * Builds the descriptor of a class. Descriptors are shared through
+     * {@link HBaseStoreManager#getDescriptor(AbstractClassMetaData, ClassLoaderResolver)}.
+     * @param acmd Metadata of the class
+     * @param clr ClassLoader resolver
+     */
+    HBaseClassDescriptor(AbstractClassMetaData acmd, ClassLoaderResolver clr)
+    {
+        tableName = Utils.getTableName(acmd);
+        int[] fieldNumbers = acmd.getAllMemberPositions();
+        int size = 0;
+        for (int fieldNumber : fieldNumbers)
+        {
+            size = Math.max(size, fieldNumber + 1);
+        }
+        families = new byte[size][];
+        qualifiers = new byte[size][];
+        relationTypes = new int[size];
+        codecs = new HBaseFieldCodec[size];
+        relatedClassNames = new String[size];
+        wideRow = new boolean[size];
+        ordered = new boolean[size];
+
+        int[] relations = new int[fieldNumbers.length];
+        int relationCount = 0;
+        int[] nonRelations = new int[fieldNumbers.length];
+        int nonRelationCount = 0;
+        int[] owned = new int[fieldNumbers.length];
+        int ownedCount = 0;
+        for (int fieldNumber : fieldNumbers)
+        {
+            AbstractMemberMetaData mmd = acmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber);
+            families[fieldNumber] = Bytes.toBytes(Utils.getFamilyName(acmd, fieldNumber));
+            qualifiers[fieldNumber] = Bytes.toBytes(Utils.getQualifierName(acmd, fieldNumber));
+            int relationType = mmd.getRelationType(clr);
+            relationTypes[fieldNumber] = relationType;
+            codecs[fieldNumber] = getCodec(acmd, mmd, clr);
+            if (relationType != Relation.NONE)
+            {
+                relations[relationCount++] = fieldNumber;
+                relatedClassNames[fieldNumber] = mmd.hasCollection() ? mmd.getCollection().getElementType() : mmd.getTypeName();
+            }
+            else
+            {
+                nonRelations[nonRelationCount++] = fieldNumber;
+            }
+            if ((relationType == Relation.ONE_TO_MANY_UNI || relationType == Relation.ONE_TO_MANY_BI) && mmd.hasCollection())
+            {
+                wideRow[fieldNumber] = "wide".equalsIgnoreCase(mmd.getValueForExtension("hbase.collectionLayout"));
+                ordered[fieldNumber] = List.class.isAssignableFrom(mmd.getType());
+            }
+            if (relationType == Relation.ONE_TO_ONE_BI || (relationType == Relation.ONE_TO_MANY_BI && mmd.hasCollection()))
+            {
+                owned[ownedCount++] = fieldNumber;
+            }
+        }
+        relationFieldNumbers = new int[relationCount];
+        System.arraycopy(relations, 0, relationFieldNumbers, 0, relationCount);
+        nonRelationFieldNumbers = new int[nonRelationCount];
+        System.arraycopy(nonRelations, 0, nonRelationFieldNumbers, 0, nonRelationCount);
+        ownedFieldNumbers = new int[ownedCount];
+        System.arraycopy(owned, 0, ownedFieldNumbers, 0, ownedCount);
+        pkFieldNumber = acmd.getPKMemberPositions()[0];
+        pkType = acmd.getMetaDataForManagedMemberAtAbsolutePosition(pkFieldNumber).getType();
+        pcClass = clr.classForName(acmd.getFullClassName());
+        idClass = acmd.getObjectidClass() == null ? null : clr.classForName(acmd.getObjectidClass());
+    }
+
+    private static HBaseFieldCodec getCodec(AbstractClassMetaData acmd, AbstractMemberMetaData mmd, ClassLoaderResolver clr)
+    {
+        String codec = mmd.getValueForExtension("hbase.codec");
+        if (codec == null)
+        {
+            codec = acmd.getValueForExtension("hbase.codec");
+        }
+        if (codec == null || codec.equals("compact"))
+        {
+            return CompactFieldCodec.INSTANCE;
+        }
+        else if (codec.equals("java"))
+        {
+            return JavaSerializationFieldCodec.INSTANCE;
+        }
+        try
+        {
+            return (HBaseFieldCodec) clr.classForName(codec).newInstance();
+        }
+        catch (Exception e)
+        {
+            throw new NucleusUserException("Invalid codec \"" + codec + "\" for field " + mmd.getFullFieldName(), e);
+        }
+    }
+
+    public String getTableName()
+    {
+        return tableName;
+    }
+
+    public byte[] getFamily(int fieldNumber)
+    {
+        return families[fieldNumber];
+    }
+
+    public byte[] getQualifier(int fieldNumber)
+    {
+        return qualifiers[fieldNumber];
+    }
+
+    /**
+     * @return The relation type of the field, one of the {@link Relation} constants
+     */
+    public int getRelationType(int fieldNumber)
+    {
+        return relationTypes[fieldNumber];
+    }
+
+    /**
+     * @return The codec of the field's cell
+     */
+    public HBaseFieldCodec getCodec(int fieldNumber)
+    {
+        return codecs[fieldNumber];
+    }
+
+    /**
+     * @return The declared class of the related object(s) of a relation field: its type, or the element type of a
+     * collection
+     */
+    public String getRelatedClassName(int fieldNumber)
+    {
+        return relatedClassNames[fieldNumber];
+    }
+
+    /**
+     * @return Whether the field is a collection whose elements are stored in cells of their own
+     */
+    public boolean isWideRow(int fieldNumber)
+    {
+        return wideRow[fieldNumber];
+    }
+
+    /**
+     * @return Whether the field is a list, whose element order is stored
+     */
+    public boolean isOrdered(int fieldNumber)
+    {
+        return ordered[fieldNumber];
+    }
+
+    /**
+     * Adds the columns of the given fields to a Get. Wide row collections are read with their whole family, added
+     * after the columns since adding a column of a family afterwards would narrow the Get to that column again.
+     */
+    public void addColumns(Get get, int... fieldNumbers)
+    {
+        for (int fieldNumber : fieldNumbers)
+        {
+            get.addColumn(families[fieldNumber], qualifiers[fieldNumber]);
+        }
+        for (int fieldNumber : fieldNumbers)
+        {
+            if (wideRow[fieldNumber])
+            {
+                get.addFamily(families[fieldNumber]);
+            }
+        }
+    }
+
+    /**
+     * Adds to a Get the cells of the given wide row fields only: the cell of each field and its element cells, without
+     * the other columns of their families.
+     */
+    public void addWideRowColumns(Get get, int... fieldNumbers)
+    {
+        List<Filter> fields = new ArrayList<Filter>(fieldNumbers.length);
+        for (int fieldNumber : fieldNumbers)
+        {
+            get.addFamily(families[fieldNumber]);
+            fields.add(HBaseWideRowLayout.getCellFilter(qualifiers[fieldNumber]));
+        }
+        get.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ONE, fields));
+    }
+
+    /**
+     * Adds the columns of the given fields to a Scan, as {@link #addColumns(Get, int...)} does for a Get.
+     */
+    public void addColumns(Scan scan, int... fieldNumbers)
+    {
+        for (int fieldNumber : fieldNumbers)
+        {
+            scan.addColumn(families[fieldNumber], qualifiers[fieldNumber]);
+        }
+        for (int fieldNumber : fieldNumbers)
+        {
+            if (wideRow[fieldNumber])
+            {
+                scan.addFamily(families[fieldNumber]);
+            }
+        }
+    }
+
+    /**
+     * @return The fields that are relations, of any type
+     */
+    public int[] getRelationFieldNumbers()
+    {
+        return relationFieldNumbers;
+    }
+
+    /**
+     * @return The fields that aren't relations, whose values are stored without touching any other object
+     */
+    public int[] getNonRelationFieldNumbers()
+    {
+        return nonRelationFieldNumbers;
+    }
+
+    /**
+     * @return The fields whose related objects are deleted with their owner: ONE_TO_ONE_BI and ONE_TO_MANY_BI
+     * collections
+     */
+    public int[] getOwnedFieldNumbers()
+    {
+        return ownedFieldNumbers;
+    }
+
+    /**
+     * @return The (first) PK field, whose column is written for every row
+     */
+    public int getPKFieldNumber()
+    {
+        return pkFieldNumber;
+    }
+
+    /**
+     * @return Type of the primary key field
+     */
+    public Class<?> getPKType()
+    {
+        return pkType;
+    }
+
+    /**
+     * Row key of the object of this class with the given primary key value.
+     * @param pkValue Value of the primary key field, of its type
+     * @return The row key
+     */
+    public byte[] getRowKey(Object pkValue) throws IOException
+    {
+        return Utils.getPrimaryKeyBytes(pkType, pkValue);
+    }
+
+    /**
+     * Id of the object of this class stored in the row with the given key.
+     * @param api Api adapter
+     * @param key The row key
+     * @return The id
+     */
+    public Object newObjectId(ApiAdapter api, byte[] key) throws IOException
+    {
+        return api.getNewSingleFieldIdentity(idClass, pcClass, Utils.getPrimaryKeyValue(pkType, key));
+    }
+}
@@ -19,34 +19,60 @@ package org.datanucleus.store.hbase;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Queue;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.CopyOnWriteArrayList;
-
-public class HBaseConnectionPool
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the connections, one per thread as a connection holds the state of the transaction of its thread. The
+ * connections hold no table handle while unused: they borrow them from the {@link HBaseTablePool} of the store and
+ * give them back when released, so idle connections are cheap.
+ * <p>
+ * An evictor disposes of the connections idle for longer than their idle timeout, keeping at least
+ * <i>minIdle</i> of them, and of the connections idle beyond <i>maxIdle</i>, the longest idle first.
+ */
+public class HBaseConnectionPool implements HBaseConnectionPoolMBean
 {
 
-    private final List<HBaseManagedConnection> connections;
+    private final Queue<HBaseManagedConnection> connections;
 
     private final ThreadLocal<WeakReference<HBaseManagedConnection>> connectionForCurrentThread;
 
     private final Timer evictorThread;
 
-    private int timeBetweenEvictionRunsMillis = 15 * 1000; // default, 15 secs
+    private final int minIdle;
+
+    private final int maxIdle;
+
+    private final AtomicLong connectionsCreated = new AtomicLong();
 
-    public HBaseConnectionPool()
+    private final AtomicLong connectionsEvicted = new AtomicLong();
+
+    /**
+     * @param timeBetweenEvictionRunsMillis Time between runs of the evictor
+     * @param minIdle Number of idle connections kept even once timed out
+     * @param maxIdle Number of idle connections above which the longest idle are disposed of, no limit when negative
+     */
+    public HBaseConnectionPool(int timeBetweenEvictionRunsMillis, int minIdle, int maxIdle)
     {
         connectionForCurrentThread = new ThreadLocal<WeakReference<HBaseManagedConnection>>();
-        connections = new CopyOnWriteArrayList<HBaseManagedConnection>();
+        connections = new ConcurrentLinkedQueue<HBaseManagedConnection>();
+        this.minIdle = minIdle;
+        this.maxIdle = maxIdle;
 
         evictorThread = new Timer("HBase Connection Evictor", true);
-        startConnectionEvictorThread(evictorThread);
+        startConnectionEvictorThread(timeBetweenEvictionRunsMillis);
     }
 
     public void registerConnection(HBaseManagedConnection managedConnection)
     {
         connections.add(managedConnection);
+        connectionsCreated.incrementAndGet();
         connectionForCurrentThread.set(new WeakReference<HBaseManagedConnection>(managedConnection));
     }
 
@@ -73,32 +99,118 @@ public class HBaseConnectionPool
         }
     }
 
-    public void setTimeBetweenEvictionRunsMillis(int timeBetweenEvictionRunsMillis)
+    /**
+     * Stops the evictor and disposes of the idle connections.
+     */
+    public void close()
     {
-        this.timeBetweenEvictionRunsMillis = timeBetweenEvictionRunsMillis;
+        evictorThread.cancel();
+        for (HBaseManagedConnection managedConnection : connections)
+        {
+            if (managedConnection.disposeIfIdle())
+            {
+                connections.remove(managedConnection);
+            }
+        }
     }
 
-    private void disposeTimedOutConnections()
+    public int getActiveConnections()
     {
-        List<HBaseManagedConnection> timedOutConnections = new ArrayList<HBaseManagedConnection>();
+        int active = 0;
+        for (HBaseManagedConnection managedConnection : connections)
+        {
+            if (!managedConnection.isDisposed() && !managedConnection.isIdle())
+            {
+                active++;
+            }
+        }
+        return active;
+    }
 
+    public int getIdleConnections()
+    {
+        int idle = 0;
         for (HBaseManagedConnection managedConnection : connections)
         {
-            if (managedConnection.isExpired())
+            if (managedConnection.isIdle())
             {
-                timedOutConnections.add(managedConnection);
+                idle++;
             }
         }
+        return idle;
+    }
+
+    public long getConnectionsCreated()
+    {
+        return connectionsCreated.get();
+    }
+
+    public long getConnectionsEvicted()
+    {
+        return connectionsEvicted.get();
+    }
 
-        for (HBaseManagedConnection managedConnection : timedOutConnections)
+    private void disposeTimedOutConnections()
+    {
+        List<HBaseManagedConnection> idleConnections = new ArrayList<HBaseManagedConnection>();
+        for (HBaseManagedConnection managedConnection : connections)
         {
-            managedConnection.dispose();
-            connections.remove(managedConnection);
+            if (managedConnection.isDisposed())
+            {
+                connections.remove(managedConnection);
+            }
+            else if (managedConnection.isIdle())
+            {
+                idleConnections.add(managedConnection);
+            }
         }
 
+        // Longest idle first
+        final long now = System.currentTimeMillis();
+        final List<Long> expirationTimes = new ArrayList<Long>(idleConnections.size());
+        for (HBaseManagedConnection managedConnection : idleConnections)
+        {
+            expirationTimes.add(Long.valueOf(managedConnection.getExpirationTime()));
+        }
+        List<Integer> order = new ArrayList<Integer>(idleConnections.size());
+        for (int i = 0; i < idleConnections.size(); i++)
+        {
+            order.add(Integer.valueOf(i));
+        }
+        Collections.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer i1, Integer i2)
+            {
+                return expirationTimes.get(i1.intValue()).compareTo(expirationTimes.get(i2.intValue()));
+            }
+        });
+
+        int idle = idleConnections.size();
+        for (Integer i : order)
+        {
+            if (idle <= minIdle)
+            {
+                break;
+            }
+            boolean timedOut = expirationTimes.get(i.intValue()).longValue() <= now;
+            boolean overMaxIdle = maxIdle >= 0 && idle > maxIdle;
+            if (!timedOut && !overMaxIdle)
+            {
+                // The others have been idle for less time
+                break;
+            }
+            HBaseManagedConnection managedConnection = idleConnections.get(i.intValue());
+            if (managedConnection.disposeIfIdle())
+            {
+                // Not disposed if taken again in the meantime
+                connections.remove(managedConnection);
+                connectionsEvicted.incrementAndGet();
+                idle--;
+            }
+        }
     }
 
-    private void startConnectionEvictorThread(Timer connectionTimeoutThread)
+    private void startConnectionEvictorThread(int timeBetweenEvictionRunsMillis)
     {
         TimerTask timeoutTask = new TimerTask()
         {
@@ -0,0 +1,44 @@
+/**********************************************************************
+Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package org.datanucleus.store.hbase;
+
+/**
+ * Runtime statistics of a {@link HBaseConnectionPool}, registered with JMX when "datanucleus.jmxType" is set.
+ */
+public interface HBaseConnectionPoolMBean
+{
+    /**
+     * @return Number of connections in use or enlisted in a transaction
+     */
+    int getActiveConnections();
+
+    /**
+     * @return Number of connections waiting in the pool to be used again
+     */
+    int getIdleConnections();
+
+    /**
+     * @return Number of connections created since the pool started
+     */
+    long getConnectionsCreated();
+
+    /**
+     * @return Number of idle connections disposed by the evictor since the pool started
+     */
+    long getConnectionsEvicted();
+}
@@ -17,9 +17,7 @@ Contributors :
  ***********************************************************************/
 package org.datanucleus.store.hbase;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -54,6 +52,8 @@ public class HBaseFetchFieldManager extends AbstractFieldManager
 
     ObjectProvider objectProvider;
 
+    private HBaseClassDescriptor descriptor;
+
     public HBaseFetchFieldManager(ObjectProvider objectProvider, Result result)
     {
         this.result = result;
@@ -62,64 +62,63 @@ public class HBaseFetchFieldManager extends AbstractFieldManager
 
     public boolean fetchBooleanField(int fieldNumber)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
 
-        return Bytes.toBoolean(result.getValue(Bytes.toBytes(familyName), Bytes.toBytes(columnName)));
+        return Bytes.toBoolean(result.getValue(family, qualifier));
     }
 
     public byte fetchByteField(int fieldNumber)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
-        return (byte) Bytes.toShort(result.getValue(Bytes.toBytes(familyName), Bytes.toBytes(columnName)));
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
+        return (byte) Bytes.toShort(result.getValue(family, qualifier));
 
     }
 
     public char fetchCharField(int fieldNumber)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
-        return Bytes.toChar(result.getValue(Bytes.toBytes(familyName), Bytes.toBytes(columnName)));
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
+        return Bytes.toChar(result.getValue(family, qualifier));
 
     }
 
     public double fetchDoubleField(int fieldNumber)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
-        return Bytes.toDouble(result.getValue(Bytes.toBytes(familyName), Bytes.toBytes(columnName)));
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
+        return Bytes.toDouble(result.getValue(family, qualifier));
 
     }
 
     public float fetchFloatField(int fieldNumber)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
-        return Bytes.toFloat(result.getValue(Bytes.toBytes(familyName), Bytes.toBytes(columnName)));
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
+        return Bytes.toFloat(result.getValue(family, qualifier));
     }
 
     public int fetchIntField(int fieldNumber)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
-        return Bytes.toInt(result.getValue(Bytes.toBytes(familyName), Bytes.toBytes(columnName)));
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
+        return Bytes.toInt(result.getValue(family, qualifier));
     }
 
     public long fetchLongField(int fieldNumber)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
-        return Bytes.toLong(result.getValue(Bytes.toBytes(familyName), Bytes.toBytes(columnName)));
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
+        return Bytes.toLong(result.getValue(family, qualifier));
 
     }
 
     public Object fetchObjectField(int fieldNumber)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
 
-        ClassLoaderResolver clr = getClassLoaderResolver();
         AbstractMemberMetaData fieldMetaData = getClassMetaData().getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber);
 
         // get object
@@ -128,16 +127,20 @@ public class HBaseFetchFieldManager extends AbstractFieldManager
         {
             try
             {
-                byte[] bytes = result.getValue(Bytes.toBytes(familyName), Bytes.toBytes(columnName));
+                byte[] bytes = result.getValue(family, qualifier);
                 if (bytes == null || bytes.length == 0)
                 {
                     return null;
                 }
-                ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-                ObjectInputStream ois = new ObjectInputStream(bis);
-                value = ois.readObject();
-                ois.close();
-                bis.close();
+                if (getDescriptor().getRelationType(fieldNumber) != Relation.NONE
+                        && (HBaseRowReference.isReference(bytes) || HBaseWideRowLayout.isWideRow(bytes)))
+                {
+                    value = getReferencedIds(fieldNumber, bytes);
+                }
+                else
+                {
+                    value = getDescriptor().getCodec(fieldNumber).decode(bytes, getClassLoaderResolver());
+                }
             }
             catch (NullPointerException ex)
             {
@@ -148,13 +151,9 @@ public class HBaseFetchFieldManager extends AbstractFieldManager
         {
             throw new NucleusException(e.getMessage(), e);
         }
-        catch (ClassNotFoundException e)
-        {
-            throw new NucleusException(e.getMessage(), e);
-        }
 
         // handle relations
-        int relationType = fieldMetaData.getRelationType(clr);
+        int relationType = getDescriptor().getRelationType(fieldNumber);
 
         switch (relationType)
         {
@@ -221,10 +220,16 @@ public class HBaseFetchFieldManager extends AbstractFieldManager
                     {
                         collection = new ArrayList<Object>();
                     }
-                    for (Object id : mapping)
+                    // Load the elements with one batch, leaving the cached and missing ones to the context
+                    Object[] ids = mapping.toArray();
+                    Object[] elements = getPersistenceHandler().findObjects(context, ids);
+                    for (int i = 0; i < ids.length; i++)
                     {
-
-                        Object element = context.findObject(id, true, false, elementClassName);
+                        Object element = elements[i];
+                        if (element == null)
+                        {
+                            element = context.findObject(ids[i], true, false, elementClassName);
+                        }
                         collection.add(element);
                     }
                     value = collection;
@@ -298,21 +303,50 @@ public class HBaseFetchFieldManager extends AbstractFieldManager
         return value;
     }
 
+    /**
+     * @return The id held by a reference cell, or the list of ids for a collection, stored in the cell or in the
+     * cells of a wide row
+     */
+    private Object getReferencedIds(int fieldNumber, byte[] bytes) throws IOException
+    {
+        ExecutionContext context = objectProvider.getExecutionContext();
+        String className = getDescriptor().getRelatedClassName(fieldNumber);
+        List<HBaseRowReference> references;
+        if (HBaseWideRowLayout.isWideRow(bytes))
+        {
+            references = HBaseWideRowLayout.load(result, getDescriptor().getFamily(fieldNumber), getDescriptor().getQualifier(fieldNumber));
+        }
+        else
+        {
+            references = HBaseRowReference.decode(bytes);
+        }
+        if (bytes[0] == HBaseRowReference.REFERENCE_MARKER)
+        {
+            return references.get(0).getId(context, className);
+        }
+        List<Object> ids = new ArrayList<Object>(references.size());
+        for (HBaseRowReference reference : references)
+        {
+            ids.add(reference.getId(context, className));
+        }
+        return ids;
+    }
+
     public short fetchShortField(int fieldNumber)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
-        return Bytes.toShort(result.getValue(Bytes.toBytes(familyName), Bytes.toBytes(columnName)));
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
+        return Bytes.toShort(result.getValue(family, qualifier));
 
     }
 
     public String fetchStringField(int fieldNumber)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
         try
         {
-            return Bytes.toString(result.getValue(Bytes.toBytes(familyName), Bytes.toBytes(columnName)));
+            return Bytes.toString(result.getValue(family, qualifier));
         }
         catch (NullPointerException ex)
         {
@@ -328,6 +362,25 @@ public class HBaseFetchFieldManager extends AbstractFieldManager
         return objectProvider.getClassMetaData();
     }
 
+    HBasePersistenceHandler getPersistenceHandler()
+    {
+        return (HBasePersistenceHandler) objectProvider.getExecutionContext().getStoreManager().getPersistenceHandler();
+    }
+
+    HBaseClassDescriptor getDescriptor()
+    {
+        if (descriptor == null)
+        {
+            descriptor = getStoreManager().getDescriptor(getClassMetaData(), getClassLoaderResolver());
+        }
+        return descriptor;
+    }
+
+    HBaseStoreManager getStoreManager()
+    {
+        return (HBaseStoreManager) objectProvider.getExecutionContext().getStoreManager();
+    }
+
     /**
      * @return
      */
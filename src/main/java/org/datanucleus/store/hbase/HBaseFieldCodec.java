@@ -0,0 +1,44 @@
+/**********************************************************************
+Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package org.datanucleus.store.hbase;
+
+import java.io.IOException;
+
+import org.datanucleus.ClassLoaderResolver;
+
+/**
+ * Converts the value of an object field to and from the bytes of its cell. The codec of a field is chosen with the
+ * extension "hbase.codec", set on the field or on its class: "compact" (the default), "java", or the name of a class
+ * implementing this interface with a public no-arg constructor. Relations to single objects and collections are
+ * stored as {@link HBaseRowReference}s instead.
+ */
+public interface HBaseFieldCodec
+{
+    /**
+     * @param value The value, not null
+     * @return The bytes to store
+     */
+    byte[] encode(Object value) throws IOException;
+
+    /**
+     * @param bytes The stored bytes, not empty
+     * @param clr ClassLoader resolver for the classes named in the bytes
+     * @return The value
+     */
+    Object decode(byte[] bytes, ClassLoaderResolver clr) throws IOException;
+}
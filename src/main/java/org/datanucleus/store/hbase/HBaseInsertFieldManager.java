@@ -17,9 +17,7 @@ Contributors :
  ***********************************************************************/
 package org.datanucleus.store.hbase;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
@@ -30,13 +28,13 @@ import java.util.TreeMap;
 
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.StateManager;
 import org.datanucleus.api.ApiAdapter;
 import org.datanucleus.exceptions.NucleusException;
 import org.datanucleus.metadata.AbstractClassMetaData;
-import org.datanucleus.metadata.AbstractMemberMetaData;
 import org.datanucleus.metadata.Relation;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
@@ -50,19 +48,43 @@ public class HBaseInsertFieldManager extends AbstractFieldManager
 
     ObjectProvider objectProvider;
 
+    /** Cells of the wide row collections as currently stored, null when the row is new */
+    Result existing;
+
+    private HBaseClassDescriptor descriptor;
+
     public HBaseInsertFieldManager(ObjectProvider objectProvider, Put put, Delete delete)
+    {
+        this(objectProvider, put, delete, null);
+    }
+
+    public HBaseInsertFieldManager(ObjectProvider objectProvider, Put put, Delete delete, Result existing)
     {
         this.put = put;
         this.delete = delete;
         this.objectProvider = objectProvider;
+        this.existing = existing;
+    }
+
+    /**
+     * Field manager writing the values of the non relation fields of a row without an object, as bulk updates do.
+     * @param descriptor Descriptor of the class of the row
+     * @param put Put of the row
+     * @param delete Delete of the row, for null values
+     */
+    public HBaseInsertFieldManager(HBaseClassDescriptor descriptor, Put put, Delete delete)
+    {
+        this.put = put;
+        this.delete = delete;
+        this.descriptor = descriptor;
     }
 
     public void storeBooleanField(int fieldNumber, boolean value)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
 
-        put.add(Bytes.toBytes(familyName), Bytes.toBytes(columnName), Bytes.toBytes(value));
+        put.add(family, qualifier, Bytes.toBytes(value));
     }
 
     /**
@@ -75,85 +97,76 @@ public class HBaseInsertFieldManager extends AbstractFieldManager
 
     public void storeByteField(int fieldNumber, byte value)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
-        put.add(Bytes.toBytes(familyName), Bytes.toBytes(columnName), Bytes.toBytes(value));
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
+        put.add(family, qualifier, Bytes.toBytes(value));
     }
 
     public void storeCharField(int fieldNumber, char value)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
-        put.add(Bytes.toBytes(familyName), Bytes.toBytes(columnName), Bytes.toBytes(value));
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
+        put.add(family, qualifier, Bytes.toBytes(value));
     }
 
     public void storeDoubleField(int fieldNumber, double value)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
-        put.add(Bytes.toBytes(familyName), Bytes.toBytes(columnName), Bytes.toBytes(value));
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
+        put.add(family, qualifier, Bytes.toBytes(value));
     }
 
     public void storeFloatField(int fieldNumber, float value)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
-        put.add(Bytes.toBytes(familyName), Bytes.toBytes(columnName), Bytes.toBytes(value));
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
+        put.add(family, qualifier, Bytes.toBytes(value));
     }
 
     public void storeIntField(int fieldNumber, int value)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
-        put.add(Bytes.toBytes(familyName), Bytes.toBytes(columnName), Bytes.toBytes(value));
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
+        put.add(family, qualifier, Bytes.toBytes(value));
     }
 
     public void storeLongField(int fieldNumber, long value)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
-        put.add(Bytes.toBytes(familyName), Bytes.toBytes(columnName), Bytes.toBytes(value));
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
+        put.add(family, qualifier, Bytes.toBytes(value));
     }
 
     @SuppressWarnings("rawtypes")
     public void storeObjectField(int fieldNumber, Object value)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
         if (value == null)
         {
-            delete.deleteColumn(Bytes.toBytes(familyName), Bytes.toBytes(columnName));
+            delete.deleteColumns(family, qualifier);
+            if (getDescriptor().isWideRow(fieldNumber))
+            {
+                HBaseWideRowLayout.delete(delete, family, qualifier, existing);
+            }
         }
         else
         {
-            ClassLoaderResolver clr = getClassLoaderResolver();
-            AbstractMemberMetaData fieldMetaData = getClassMetaData().getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber);
-            int relationType = fieldMetaData.getRelationType(clr);
+            int relationType = getDescriptor().getRelationType(fieldNumber);
 
             switch (relationType)
             {
                 case Relation.ONE_TO_ONE_UNI :
                 case Relation.ONE_TO_ONE_BI :
                 {
-
-                    Object valueId = null;
-
                     ExecutionContext context = objectProvider.getExecutionContext();
                     Object persisted = context.persistObjectInternal(value, objectProvider, -1, StateManager.PC);
 
-                    valueId = context.getApiAdapter().getIdForObject(persisted);
-
                     try
                     {
-
-                        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                        ObjectOutputStream oos = new ObjectOutputStream(bos);
-                        oos.writeObject(valueId);
-
-                        put.add(Bytes.toBytes(familyName), Bytes.toBytes(columnName), bos.toByteArray());
-
-                        oos.close();
-                        bos.close();
+                        // Stored as the row key of the related object
+                        HBaseRowReference reference = HBaseRowReference.forObject(context, persisted, getDescriptor().getRelatedClassName(fieldNumber));
+                        put.add(family, qualifier, HBaseRowReference.encode(reference));
                     }
                     catch (IOException e)
                     {
@@ -168,28 +181,23 @@ public class HBaseInsertFieldManager extends AbstractFieldManager
                     ExecutionContext context = objectProvider.getExecutionContext();
                     if (value instanceof Collection)
                     {
-
-                        List<Object> mapping = new ArrayList<Object>();
-
-                        for (Object c : (Collection<?>) value)
-                        {
-
-                            Object persisted = context.persistObjectInternal(c, objectProvider, -1, StateManager.PC);
-                            Object valueId = context.getApiAdapter().getIdForObject(persisted);
-                            mapping.add(valueId);
-                        }
-
+                        String elementClassName = getDescriptor().getRelatedClassName(fieldNumber);
+                        List<HBaseRowReference> references = new ArrayList<HBaseRowReference>(((Collection<?>) value).size());
                         try
                         {
-
-                            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                            ObjectOutputStream oos = new ObjectOutputStream(bos);
-                            oos.writeObject(mapping);
-
-                            put.add(Bytes.toBytes(familyName), Bytes.toBytes(columnName), bos.toByteArray());
-
-                            oos.close();
-                            bos.close();
+                            for (Object c : (Collection<?>) value)
+                            {
+                                Object persisted = context.persistObjectInternal(c, objectProvider, -1, StateManager.PC);
+                                references.add(HBaseRowReference.forObject(context, persisted, elementClassName));
+                            }
+                            if (getDescriptor().isWideRow(fieldNumber))
+                            {
+                                HBaseWideRowLayout.store(put, delete, family, qualifier, getDescriptor().isOrdered(fieldNumber), references, existing);
+                            }
+                            else
+                            {
+                                put.add(family, qualifier, HBaseRowReference.encode(references));
+                            }
                         }
                         catch (IOException e)
                         {
@@ -239,67 +247,64 @@ public class HBaseInsertFieldManager extends AbstractFieldManager
 
                         }
 
-                        try
-                        {
-
-                            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                            ObjectOutputStream oos = new ObjectOutputStream(bos);
-                            oos.writeObject(mapping);
-
-                            put.add(Bytes.toBytes(familyName), Bytes.toBytes(columnName), bos.toByteArray());
-
-                            oos.close();
-                            bos.close();
-                        }
-                        catch (IOException e)
-                        {
-                            throw new NucleusException(e.getMessage(), e);
-                        }
+                        put.add(family, qualifier, encode(fieldNumber, mapping));
                     }
                     break;
                 }
                 default :
-                    try
-                    {
-                        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                        ObjectOutputStream oos = new ObjectOutputStream(bos);
-                        oos.writeObject(value);
-
-                        put.add(Bytes.toBytes(familyName), Bytes.toBytes(columnName), bos.toByteArray());
-
-                        oos.close();
-                        bos.close();
-                    }
-                    catch (IOException e)
-                    {
-                        throw new NucleusException(e.getMessage(), e);
-                    }
+                    put.add(family, qualifier, encode(fieldNumber, value));
                     break;
             }
         }
     }
 
+    private byte[] encode(int fieldNumber, Object value)
+    {
+        try
+        {
+            return getDescriptor().getCodec(fieldNumber).encode(value);
+        }
+        catch (IOException e)
+        {
+            throw new NucleusException(e.getMessage(), e);
+        }
+    }
+
     public void storeShortField(int fieldNumber, short value)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
-        put.add(Bytes.toBytes(familyName), Bytes.toBytes(columnName), Bytes.toBytes(value));
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
+        put.add(family, qualifier, Bytes.toBytes(value));
     }
 
     public void storeStringField(int fieldNumber, String value)
     {
-        String familyName = Utils.getFamilyName(getClassMetaData(), fieldNumber);
-        String columnName = Utils.getQualifierName(getClassMetaData(), fieldNumber);
+        byte[] family = getDescriptor().getFamily(fieldNumber);
+        byte[] qualifier = getDescriptor().getQualifier(fieldNumber);
         if (value == null)
         {
-            delete.deleteColumn(Bytes.toBytes(familyName), Bytes.toBytes(columnName));
+            delete.deleteColumns(family, qualifier);
         }
         else
         {
-            put.add(Bytes.toBytes(familyName), Bytes.toBytes(columnName), Bytes.toBytes(value));
+            put.add(family, qualifier, Bytes.toBytes(value));
         }
     }
 
+    HBaseClassDescriptor getDescriptor()
+    {
+        if (descriptor == null)
+        {
+            descriptor = getStoreManager().getDescriptor(getClassMetaData(), getClassLoaderResolver());
+        }
+        return descriptor;
+    }
+
+    HBaseStoreManager getStoreManager()
+    {
+        return (HBaseStoreManager) objectProvider.getExecutionContext().getStoreManager();
+    }
+
     /**
      * @return
      */
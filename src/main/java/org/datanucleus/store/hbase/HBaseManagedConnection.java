@@ -18,24 +18,43 @@ Contributors :
 package org.datanucleus.store.hbase;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
 
-import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
 import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
 import org.datanucleus.store.connection.AbstractManagedConnection;
 import org.datanucleus.store.connection.ManagedConnectionResourceListener;
 
 /**
  * Implementation of a ManagedConnection.
+ * <p>
+ * The connection of a thread borrows a handle of each table it uses from the {@link HBaseTablePool} of the store, and
+ * gives them back when its outermost operation releases it. An operation touching several tables (for example a
+ * fetch that loads related objects) thus holds one handle per table until it is over, and once <i>maxActive</i>
+ * handles of a table are held, other threads wait for one of them up to <i>maxWait</i> and then fail. Two threads
+ * borrowing handles of the same tables in opposite orders can wait on each other that way when <i>maxActive</i> is
+ * small, and one of them fails after <i>maxWait</i>; a negative <i>maxWait</i> makes them wait forever, so it should
+ * only be used with a <i>maxActive</i> above the number of threads. The write buffer is flushed holding one handle at
+ * a time, so the flush on commit never takes part in such a wait.
  */
 public class HBaseManagedConnection extends AbstractManagedConnection
 {
-	private HBaseConfiguration config;
-	
+	/** Handles borrowed from the table pool, returned when the connection is closed or its transaction ends */
 	private Map<String, HTable> tables;
 	
 	private int referenceCount = 0;
@@ -45,11 +64,26 @@ public class HBaseManagedConnection extends AbstractManagedConnection
 	private long expirationTime;  
 	
 	private boolean isDisposed = false;
-	
-    public HBaseManagedConnection(HBaseConfiguration config)
+
+    private final HBaseStoreManager storeMgr;
+
+    /** Pending mutations when running in write-behind mode, null otherwise. */
+    private final HBaseWriteBuffer writeBuffer;
+
+    private final XAResource xaResource;
+
+    /**
+     * Whether we are enlisted in a transaction, in which case the write buffer is flushed on commit and when the
+     * transaction flushes, not when the connection is released.
+     */
+    private boolean inTransaction = false;
+
+    public HBaseManagedConnection(HBaseStoreManager storeMgr)
     {
-    	this.config = config; 
+        this.storeMgr = storeMgr;
     	this.tables = new HashMap<String, HTable>();
+        this.writeBuffer = storeMgr.isWriteBehind() ? new HBaseWriteBuffer() : null;
+        this.xaResource = new EmulatedXAResource();
     	disableExpirationTime();
     }
     
@@ -59,44 +93,308 @@ public class HBaseManagedConnection extends AbstractManagedConnection
     			+ this.getClass().getName());
     }
     
+    /**
+     * Handle of a table, borrowed from the table pool of the store on first use and kept until the connection is
+     * closed, when its last user releases it, or until {@link #returnHTable(String)}.
+     * @param tableName Name of the table
+     * @return The handle
+     */
     public HTable getHTable(String tableName) 
     {
     	HTable table = tables.get(tableName);
     	
         if (table == null)
         {
-        	try 
-        	{
-				table = new HTable(config, tableName);
-				tables.put(tableName, table);
-			} 
-        	catch (IOException e) 
-        	{
-	            throw new NucleusDataStoreException(e.getMessage(),e);
-			}
+            storeMgr.awaitSchema(tableName);
+            table = storeMgr.getTablePool().borrowTable(tableName);
+            if (writeBuffer != null)
+            {
+                // Writes are grouped by the write buffer and sent as batches
+                table.setAutoFlush(false);
+            }
+            tables.put(tableName, table);
         }
         
         return table;
     }
 
+    /**
+     * Writes the put to the table, or queues it until the next flush when running in write-behind mode.
+     * @param tableName Name of the table
+     * @param put The put
+     */
+    public void put(String tableName, Put put) throws IOException
+    {
+        if (writeBuffer == null)
+        {
+            getHTable(tableName).put(put);
+        }
+        else
+        {
+            writeBuffer.put(tableName, put);
+            flushIfFull();
+        }
+    }
+
+    /**
+     * Queues the put of a new row in write-behind mode. The row must have no cell in the given column, which every row
+     * of its class has: this is checked when the buffer is flushed, together with the other reads of the table, and
+     * the flush fails if the row exists.
+     * @param tableName Name of the table
+     * @param put The put of the row
+     * @param family Family of the column checked
+     * @param qualifier Qualifier of the column checked
+     */
+    public void insert(String tableName, Put put, byte[] family, byte[] qualifier)
+    {
+        writeBuffer.insert(tableName, put, family, qualifier);
+        flushIfFull();
+    }
+
+    /**
+     * Writes several puts to a table with one batch, or queues them until the next flush when running in
+     * write-behind mode.
+     * @param tableName Name of the table
+     * @param puts The puts
+     */
+    public void put(String tableName, List<Put> puts) throws IOException
+    {
+        if (writeBuffer == null)
+        {
+            getHTable(tableName).put(new ArrayList<Put>(puts));
+        }
+        else
+        {
+            for (Put put : puts)
+            {
+                writeBuffer.put(tableName, put);
+            }
+            flushIfFull();
+        }
+    }
+
+    /**
+     * Deletes from the table, or queues the delete until the next flush when running in write-behind mode.
+     * @param tableName Name of the table
+     * @param delete The delete. An empty delete removes the whole row
+     */
+    public void delete(String tableName, Delete delete) throws IOException
+    {
+        if (writeBuffer == null)
+        {
+            getHTable(tableName).delete(delete);
+        }
+        else
+        {
+            writeBuffer.delete(tableName, delete);
+            flushIfFull();
+        }
+    }
+
+    /**
+     * Deletes several rows (or columns) of a table with one batch, or queues the deletes until the next flush when
+     * running in write-behind mode.
+     * @param tableName Name of the table
+     * @param deletes The deletes
+     */
+    public void delete(String tableName, List<Delete> deletes) throws IOException
+    {
+        if (writeBuffer == null)
+        {
+            getHTable(tableName).delete(new ArrayList<Delete>(deletes));
+        }
+        else
+        {
+            for (Delete delete : deletes)
+            {
+                writeBuffer.delete(tableName, delete);
+            }
+            flushIfFull();
+        }
+    }
+
+    /**
+     * Gives back the handle of a table when no operation uses the connection, as when the write buffer is flushed on
+     * commit. While an operation is in progress the handle is kept, the operation may still use it.
+     * @param tableName Name of the table
+     */
+    public synchronized void returnHTable(String tableName)
+    {
+        if (referenceCount == 0)
+        {
+            HTable table = tables.remove(tableName);
+            if (table != null)
+            {
+                storeMgr.getTablePool().returnTable(table);
+            }
+        }
+    }
+
+    HBaseTablePool getTablePool()
+    {
+        return storeMgr.getTablePool();
+    }
+
+    /**
+     * Reads several rows of a table. HTable only reads one row per call, so the gets are split in chunks which are
+     * read in parallel on the store executor, each chunk with a handle from the table pool. Chunks for which no handle
+     * is free are read by the calling thread afterwards, so the tasks never wait for a handle.
+     * @param tableName Name of the table
+     * @param gets The gets
+     * @return The results, in the order of the gets
+     */
+    public Result[] get(final String tableName, List<Get> gets) throws IOException
+    {
+        flushTable(tableName);
+        storeMgr.awaitSchema(tableName);
+        final Result[] results = new Result[gets.size()];
+        int chunks = Math.min(gets.size(), storeMgr.getExecutorThreads());
+        if (chunks <= 1)
+        {
+            HTable table = getHTable(tableName);
+            for (int i = 0; i < results.length; i++)
+            {
+                results[i] = table.get(gets.get(i));
+            }
+            return results;
+        }
+
+        final HBaseTablePool tablePool = storeMgr.getTablePool();
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(chunks);
+        List<Integer> offsets = new ArrayList<Integer>(chunks);
+        int chunkSize = (gets.size() + chunks - 1) / chunks;
+        for (int start = 0; start < gets.size(); start += chunkSize)
+        {
+            final int offset = start;
+            final List<Get> chunk = gets.subList(start, Math.min(start + chunkSize, gets.size()));
+            offsets.add(Integer.valueOf(offset));
+            tasks.add(new Callable<Boolean>()
+            {
+                public Boolean call() throws IOException
+                {
+                    HTable table = tablePool.tryBorrowTable(tableName);
+                    if (table == null)
+                    {
+                        return Boolean.FALSE;
+                    }
+                    try
+                    {
+                        for (int i = 0; i < chunk.size(); i++)
+                        {
+                            results[offset + i] = table.get(chunk.get(i));
+                        }
+                    }
+                    finally
+                    {
+                        tablePool.returnTable(table);
+                    }
+                    return Boolean.TRUE;
+                }
+            });
+        }
+        try
+        {
+            List<Future<Boolean>> futures = storeMgr.getExecutor().invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++)
+            {
+                if (!futures.get(i).get().booleanValue())
+                {
+                    // No handle was free for the chunk
+                    HTable table = getHTable(tableName);
+                    int offset = offsets.get(i).intValue();
+                    for (int j = offset; j < Math.min(offset + chunkSize, results.length); j++)
+                    {
+                        results[j] = table.get(gets.get(j));
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new NucleusDataStoreException(e.getCause().getMessage(), e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Whether the pending writes of this connection decide the existence of the row on their own.
+     * @return TRUE/FALSE if the write buffer knows the outcome, null if the datastore has to be asked
+     */
+    public Boolean existsInWriteBuffer(String tableName, byte[] row)
+    {
+        return writeBuffer == null ? null : writeBuffer.exists(tableName, row);
+    }
+
+    /**
+     * Sends the pending writes for a table to HBase, so that a following read of the table sees them.
+     * @param tableName Name of the table about to be read
+     */
+    public void flushTable(String tableName)
+    {
+        if (writeBuffer != null && writeBuffer.hasPending(tableName))
+        {
+            writeBuffer.flush(this, tableName);
+        }
+    }
+
+    /**
+     * Sends the pending writes for a table when some of them are for the given row, so that a following read of the
+     * row sees them without flushing the table for nothing.
+     * @param tableName Name of the table about to be read
+     * @param row Key of the row about to be read
+     */
+    public void flushRow(String tableName, byte[] row)
+    {
+        if (writeBuffer != null && writeBuffer.hasPending(tableName, row))
+        {
+            writeBuffer.flush(this, tableName);
+        }
+    }
+
+    /**
+     * Sends all pending writes to HBase. Called on commit, and when the transaction flushes (explicitly or before a
+     * query) through the listener the connection manager registers on connections obtained in an active transaction.
+     */
+    public void flush()
+    {
+        if (writeBuffer != null && !writeBuffer.isEmpty())
+        {
+            writeBuffer.flush(this, storeMgr.getExecutor());
+        }
+        super.flush();
+    }
+
+    private void flushIfFull()
+    {
+        if (writeBuffer.size() >= storeMgr.getWriteBehindFlushThreshold())
+        {
+            flush();
+        }
+    }
+
     public XAResource getXAResource()
     {
-        return null;
+        return xaResource;
     }
     
     public void close()
     {
-        if (tables.size() == 0)
-        {
-            return;
-        }
         for (int i=0; i<listeners.size(); i++)
         {
             ((ManagedConnectionResourceListener)listeners.get(i)).managedConnectionPreClose();
         }
         try
         {
-            //close something?
+            returnTables();
         }
         finally
         {
@@ -107,20 +405,42 @@ public class HBaseManagedConnection extends AbstractManagedConnection
         }
     }
     
-    void incrementReferenceCount()
+    /**
+     * Takes the connection for one more user, unless the evictor disposed of it.
+     * @return Whether the connection can be used
+     */
+    synchronized boolean incrementReferenceCount()
     {
+        if (isDisposed)
+        {
+            return false;
+        }
         ++referenceCount;
         disableExpirationTime();
+        return true;
     }
 
-    public void release()
+    /**
+     * Gives the connection back for one user. The last user sends the writes made outside a transaction and gives
+     * the table handles back; the reference count is updated under the same lock the evictor and the end of the
+     * transaction read it with.
+     */
+    public synchronized void release()
     {
     	--referenceCount;
 
         if (referenceCount == 0)
         {
+            if (!inTransaction)
+            {
+                // Non transactional writes are sent as soon as the operation is over
+                flush();
+            }
             close();
-        	enableExpirationTime();
+            if (!inTransaction)
+            {
+                enableExpirationTime();
+            }
         } 
         else if (referenceCount < 0) 
     	{
@@ -128,52 +448,163 @@ public class HBaseManagedConnection extends AbstractManagedConnection
     	}
     }
 
-    private void enableExpirationTime() 
+    private synchronized void enableExpirationTime() 
     {
     	this.expirationTime = System.currentTimeMillis() + idleTimeoutMills;
     }
     
-    private void disableExpirationTime() 
+    private synchronized void disableExpirationTime() 
     {
     	this.expirationTime = -1;
     }
+
+    /**
+     * Whether no one uses the connection and no transaction is enlisted with it.
+     */
+    synchronized boolean isIdle()
+    {
+        return expirationTime > 0 && !isDisposed;
+    }
+
+    /**
+     * Time at which the connection may be evicted, -1 while it is in use.
+     */
+    synchronized long getExpirationTime()
+    {
+        return expirationTime;
+    }
     
     public void setIdleTimeoutMills(int mills) 
     {
     	this.idleTimeoutMills = mills;
     }
     
-    public boolean isExpired() 
+    public synchronized void dispose() 
     {
-    	return expirationTime > 0  &&  expirationTime > System.currentTimeMillis();
+    	isDisposed = true;
+    	returnTables();
     }
-    
-    public void dispose() 
+
+    /**
+     * Disposes of the connection if it is idle, atomically with respect to it being taken again.
+     * @return Whether the connection was disposed
+     */
+    synchronized boolean disposeIfIdle()
     {
-    	isDisposed = true;
-    	closeTables(tables);
+        if (!isIdle())
+        {
+            return false;
+        }
+        dispose();
+        return true;
     }
 
-    public boolean isDisposed() 
+    public synchronized boolean isDisposed() 
     {
     	return isDisposed;
     }
 
-    private void closeTables(Map<String, HTable> tables) 
+    /**
+     * Gives the borrowed table handles back to the pool.
+     */
+    private void returnTables()
     {
-		for (String tableName : tables.keySet()) 
-		{
-			try 
-			{
-				HTable table = tables.get(tableName);
-				table.close();
-			} 
-			catch (IOException e) 
-			{
-				// TODO: There can be multiple exceptions, so wrap them in together
-			    throw new NucleusDataStoreException(e.getMessage(),e);
-			}
-		}
-	}
+        if (tables.isEmpty())
+        {
+            return;
+        }
+        HBaseTablePool tablePool = storeMgr.getTablePool();
+        for (HTable table : tables.values())
+        {
+            tablePool.returnTable(table);
+        }
+        tables.clear();
+    }
+
+    /**
+     * Emulated XAResource so the write buffer gets flushed when the transaction commits, and dropped when it rolls back.
+     */
+    private class EmulatedXAResource implements XAResource
+    {
+        public void start(Xid xid, int flags) throws XAException
+        {
+            inTransaction = true;
+        }
+
+        public void end(Xid xid, int flags) throws XAException
+        {
+        }
+
+        public int prepare(Xid xid) throws XAException
+        {
+            return XA_OK;
+        }
+
+        public void commit(Xid xid, boolean onePhase) throws XAException
+        {
+            try
+            {
+                flush();
+            }
+            catch (NucleusException e)
+            {
+                // Failed writes, or ids of inserts found taken
+                XAException xae = new XAException(e.getMessage());
+                xae.errorCode = XAException.XAER_RMERR;
+                xae.initCause(e);
+                throw xae;
+            }
+            finally
+            {
+                transactionEnded();
+            }
+        }
+
+        public void rollback(Xid xid) throws XAException
+        {
+            if (writeBuffer != null)
+            {
+                writeBuffer.clear();
+            }
+            transactionEnded();
+        }
 
+        public void forget(Xid xid) throws XAException
+        {
+        }
+
+        public Xid[] recover(int flag) throws XAException
+        {
+            return new Xid[0];
+        }
+
+        public boolean isSameRM(XAResource xares) throws XAException
+        {
+            return xares == this;
+        }
+
+        public int getTransactionTimeout() throws XAException
+        {
+            return 0;
+        }
+
+        public boolean setTransactionTimeout(int seconds) throws XAException
+        {
+            return false;
+        }
+
+        private void transactionEnded()
+        {
+            synchronized (HBaseManagedConnection.this)
+            {
+                inTransaction = false;
+                if (referenceCount == 0)
+                {
+                    // Handles borrowed after the last release, if the flush on commit failed, go back now
+                    returnTables();
+                    enableExpirationTime();
+                }
+            }
+        }
+    }
 }
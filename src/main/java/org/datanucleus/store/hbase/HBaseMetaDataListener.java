@@ -51,10 +51,7 @@ public class HBaseMetaDataListener implements MetaDataListener
             throw new InvalidMetaDataException(LOCALISER, "HBase.DatastoreID", cmd.getFullClassName());
         }
 
-        if (storeManager.isAutoCreateTables() || storeManager.isAutoCreateColumns())
-        {
-            Utils.createSchema(storeManager.getHbaseConfig(), cmd, storeManager.isAutoCreateColumns());
-        }
+        storeManager.prepareTable(cmd);
 
     }
 }
@@ -18,24 +18,37 @@ Contributors :
 package org.datanucleus.store.hbase;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.FetchPlan;
+import org.datanucleus.api.ApiAdapter;
 import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.exceptions.NucleusObjectNotFoundException;
 import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.metadata.AbstractClassMetaData;
-import org.datanucleus.metadata.AbstractMemberMetaData;
-import org.datanucleus.metadata.Relation;
 import org.datanucleus.store.AbstractPersistenceHandler;
 import org.datanucleus.store.ExecutionContext;
+import org.datanucleus.store.FieldValues2;
 import org.datanucleus.store.ObjectProvider;
 import org.datanucleus.store.StoreManager;
+import org.datanucleus.store.Type;
 import org.datanucleus.util.Localiser;
 
 public class HBasePersistenceHandler extends AbstractPersistenceHandler
@@ -64,41 +77,223 @@ public class HBasePersistenceHandler extends AbstractPersistenceHandler
         HBaseManagedConnection mconn = (HBaseManagedConnection) storeMgr.getConnection(sm.getExecutionContext());
         try
         {
-            AbstractClassMetaData acmd = sm.getClassMetaData();
-            ClassLoaderResolver clr = sm.getExecutionContext().getClassLoaderResolver();
-            for (int field : acmd.getRelationMemberPositions(sm.getExecutionContext().getClassLoaderResolver(),
-                storeMgr.getMetaDataManager()))
+            deleteRows(sm.getExecutionContext(), mconn, Collections.singletonList(new RowRef(getDescriptor(sm), Utils.getPrimaryKeyBytes(sm), null)));
+        }
+        catch (IOException e)
+        {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+        finally
+        {
+            mconn.release();
+        }
+    }
+
+    /**
+     * Deletes the rows of objects of a class given by their row keys, as {@link #deleteObject(ObjectProvider)} would
+     * delete the objects, without loading them: the objects they own are deleted too. Objects in the cache of the
+     * context are deleted through the context instead, so that they move to the deleted state. Used by bulk deletes.
+     * @param ectx Execution context
+     * @param mconn Connection
+     * @param acmd Class of the objects
+     * @param keys Row keys of the objects
+     */
+    public void deleteRows(ExecutionContext ectx, HBaseManagedConnection mconn, AbstractClassMetaData acmd, List<byte[]> keys)
+            throws IOException
+    {
+        HBaseClassDescriptor descriptor = storeMgr.getDescriptor(acmd, ectx.getClassLoaderResolver());
+        List<RowRef> roots = new ArrayList<RowRef>(keys.size());
+        for (byte[] key : keys)
+        {
+            roots.add(new RowRef(descriptor, key, descriptor.newObjectId(ectx.getApiAdapter(), key)));
+        }
+        deleteRows(ectx, mconn, roots);
+    }
+
+    /**
+     * Deletes the rows of objects together with the rows of the objects they own through ONE_TO_ONE_BI and
+     * ONE_TO_MANY_BI collection fields. The ids of the owned objects are decoded from the stored relation cells, so
+     * neither the owners nor their children are loaded. The graph is walked breadth-first: each level reads the
+     * relation cells of its rows and then deletes its rows, with one batch per table for both.
+     * <p>
+     * An object of the graph found in the cache of the context is handed to the context to delete, which moves it to
+     * the deleted state and comes back to {@link #deleteObject(ObjectProvider)} for its row and the objects it owns.
+     * Objects already being deleted are skipped.
+     */
+    private void deleteRows(ExecutionContext ectx, HBaseManagedConnection mconn, List<RowRef> roots) throws IOException
+    {
+        ApiAdapter api = ectx.getApiAdapter();
+        Set<String> visited = new HashSet<String>();
+        List<RowRef> level = new ArrayList<RowRef>();
+        for (RowRef root : roots)
+        {
+            if (visited.add(root.getKey()))
             {
-                AbstractMemberMetaData fieldMetaData = acmd.getMetaDataForManagedMemberAtAbsolutePosition(field);
-                int relationType = fieldMetaData.getRelationType(clr);
-                if (relationType == Relation.ONE_TO_ONE_BI)
+                level.add(root);
+            }
+        }
+        while (!level.isEmpty())
+        {
+            List<RowRef> next = new ArrayList<RowRef>();
+
+            // Managed objects are left to the context
+            List<Object> managed = new ArrayList<Object>();
+            List<RowRef> rows = new ArrayList<RowRef>(level.size());
+            for (RowRef row : level)
+            {
+                Object pc = row.id == null ? null : ectx.getObjectFromCache(row.id);
+                if (pc == null)
                 {
-                    sm.loadField(field);
-                    Object obj = sm.provideField(field);
-                    sm.getExecutionContext().deleteObject(obj);
+                    rows.add(row);
                 }
-                else if (relationType == Relation.ONE_TO_MANY_BI)
+                else if (!api.isDeleted(pc))
                 {
-                    sm.loadField(field);
-                    Collection<Object> collection = (Collection<Object>) sm.provideField(field);
-                    for (Object obj : collection)
+                    managed.add(pc);
+                }
+            }
+
+            // Read the relation cells of the rows whose class owns other objects, and queue the owned rows
+            Map<String, List<RowRef>> owners = new LinkedHashMap<String, List<RowRef>>();
+            for (RowRef row : rows)
+            {
+                if (row.descriptor.getOwnedFieldNumbers().length > 0)
+                {
+                    getList(owners, row.tableName).add(row);
+                }
+            }
+            for (Map.Entry<String, List<RowRef>> entry : owners.entrySet())
+            {
+                List<Get> gets = new ArrayList<Get>();
+                for (RowRef row : entry.getValue())
+                {
+                    Get get = new Get(row.pk);
+                    row.descriptor.addColumns(get, row.descriptor.getOwnedFieldNumbers());
+                    gets.add(get);
+                }
+                Result[] results = mconn.get(entry.getKey(), gets);
+                for (int i = 0; i < results.length; i++)
+                {
+                    RowRef row = entry.getValue().get(i);
+                    for (int fieldNumber : row.descriptor.getOwnedFieldNumbers())
                     {
-                        sm.getExecutionContext().deleteObject(obj);
+                        byte[] bytes = results[i].getValue(row.descriptor.getFamily(fieldNumber), row.descriptor.getQualifier(fieldNumber));
+                        if (bytes == null || bytes.length == 0)
+                        {
+                            continue;
+                        }
+                        List<HBaseRowReference> references = null;
+                        if (HBaseWideRowLayout.isWideRow(bytes))
+                        {
+                            references = HBaseWideRowLayout.load(results[i], row.descriptor.getFamily(fieldNumber), row.descriptor.getQualifier(fieldNumber));
+                        }
+                        else if (HBaseRowReference.isReference(bytes))
+                        {
+                            references = HBaseRowReference.decode(bytes);
+                        }
+                        if (references != null)
+                        {
+                            // Row keys are stored, no need to go through the ids
+                            String className = row.descriptor.getRelatedClassName(fieldNumber);
+                            for (HBaseRowReference reference : references)
+                            {
+                                if (reference.key != null)
+                                {
+                                    HBaseClassDescriptor descriptor = reference.getDescriptor(ectx, className);
+                                    RowRef child = new RowRef(descriptor, reference.key, descriptor.newObjectId(ectx.getApiAdapter(), reference.key));
+                                    if (visited.add(child.getKey()))
+                                    {
+                                        next.add(child);
+                                    }
+                                }
+                            }
+                            continue;
+                        }
+                        Object value = row.descriptor.getCodec(fieldNumber).decode(bytes, ectx.getClassLoaderResolver());
+                        Collection<?> ids = value instanceof Collection ? (Collection<?>) value : Collections.singleton(value);
+                        for (Object id : ids)
+                        {
+                            RowRef child = newRowRef(ectx, id);
+                            if (child != null && visited.add(child.getKey()))
+                            {
+                                next.add(child);
+                            }
+                        }
                     }
                 }
             }
 
-            HTable table = mconn.getHTable(Utils.getTableName(acmd));
+            // Delete the rows of this level
+            Map<String, List<Delete>> deletes = new LinkedHashMap<String, List<Delete>>();
+            for (RowRef row : rows)
+            {
+                getList(deletes, row.tableName).add(new Delete(row.pk));
+            }
+            for (Map.Entry<String, List<Delete>> entry : deletes.entrySet())
+            {
+                mconn.delete(entry.getKey(), entry.getValue());
+            }
+            for (Object pc : managed)
+            {
+                ectx.deleteObjectInternal(pc);
+            }
+
+            level = next;
+        }
+    }
 
-            table.delete(newDelete(sm));
+    private RowRef newRowRef(ExecutionContext ectx, Object id) throws IOException
+    {
+        ApiAdapter api = ectx.getApiAdapter();
+        if (id == null || !api.isSingleFieldIdentity(id))
+        {
+            return null;
         }
-        catch (IOException e)
+        ClassLoaderResolver clr = ectx.getClassLoaderResolver();
+        String className = storeMgr.getClassNameForObjectID(id, clr, ectx);
+        AbstractClassMetaData acmd = className == null ? null : storeMgr.getMetaDataManager().getMetaDataForClass(className, clr);
+        if (acmd == null)
         {
-            throw new NucleusDataStoreException(e.getMessage(), e);
+            return null;
         }
-        finally
+        return new RowRef(storeMgr.getDescriptor(acmd, clr), Utils.getPrimaryKeyBytes(acmd, api.getTargetKeyForSingleFieldIdentity(id)), id);
+    }
+
+    private static <T> List<T> getList(Map<String, List<T>> map, String key)
+    {
+        List<T> list = map.get(key);
+        if (list == null)
         {
-            mconn.release();
+            list = new ArrayList<T>();
+            map.put(key, list);
+        }
+        return list;
+    }
+
+    /**
+     * Row of an object taking part in a cascade delete.
+     */
+    private static class RowRef
+    {
+        final HBaseClassDescriptor descriptor;
+
+        final String tableName;
+
+        final byte[] pk;
+
+        /** Id of the object, null for an object deleted through the context. */
+        final Object id;
+
+        RowRef(HBaseClassDescriptor descriptor, byte[] pk, Object id)
+        {
+            this.descriptor = descriptor;
+            this.tableName = descriptor.getTableName();
+            this.pk = pk;
+            this.id = id;
+        }
+
+        String getKey()
+        {
+            return tableName + "/" + Bytes.toStringBinary(pk);
         }
     }
 
@@ -113,17 +308,18 @@ public class HBasePersistenceHandler extends AbstractPersistenceHandler
         HBaseManagedConnection mconn = (HBaseManagedConnection) storeMgr.getConnection(sm.getExecutionContext());
         try
         {
-            AbstractClassMetaData acmd = sm.getClassMetaData();
-            HTable table = mconn.getHTable(Utils.getTableName(acmd));
-            Result result = getResult(sm, table);
+            HBaseClassDescriptor descriptor = getDescriptor(sm);
+            String tableName = descriptor.getTableName();
+            mconn.flushTable(tableName);
+            HTable table = mconn.getHTable(tableName);
+            Result result = getResult(sm, descriptor, table, fieldNumbers);
             if (result.isEmpty())
             {
                 // Should not be reached since we called locateObject at the beginning
                 throw new NucleusObjectNotFoundException();
             }
             HBaseFetchFieldManager fm = new HBaseFetchFieldManager(sm, result);
-            sm.replaceFields(acmd.getAllMemberPositions(), fm);
-            table.close();
+            sm.replaceFields(fieldNumbers, fm);
         }
         catch (IOException e)
         {
@@ -137,42 +333,165 @@ public class HBasePersistenceHandler extends AbstractPersistenceHandler
 
     public Object findObject(ExecutionContext ectx, Object id)
     {
-        // TODO Auto-generated method stub
-        return null;
+        return findObjects(ectx, new Object[]{id})[0];
     }
 
-    public void insertObject(ObjectProvider sm)
+    /**
+     * Loads the objects with the given ids that aren't cached yet, reading the rows of each table with one batch of
+     * gets. The fields in the fetch plan are hydrated from the rows, except the relations which stay unloaded until
+     * accessed so that loading an object never loads its whole graph.
+     * <p>
+     * PersistenceManager.getObjectsById reaches this through ObjectManager.findObjects, and the elements of a
+     * collection of persistable objects are loaded with it by {@link HBaseFetchFieldManager}. Detaching all the objects
+     * of a context has no bulk hook in the DataNucleus 2.x API: ObjectManager.detachAll detaches the cached objects one
+     * at a time, loading their unloaded fields through {@link #fetchObject(ObjectProvider, int[])}, so a detach reads
+     * one row per object.
+     * @param ectx ExecutionContext
+     * @param ids The ids
+     * @return The objects, in the order of the ids. An object is null when it is cached already, when its id isn't a
+     * single field identity, or when its row doesn't exist; these are left to the ExecutionContext
+     */
+    public Object[] findObjects(ExecutionContext ectx, Object[] ids)
     {
-        // Check if read-only so update not permitted
-        storeMgr.assertReadOnlyForUpdateOfObject(sm);
+        Object[] objects = new Object[ids.length];
+        ApiAdapter api = ectx.getApiAdapter();
+        ClassLoaderResolver clr = ectx.getClassLoaderResolver();
 
-        if (!storeMgr.managesClass(sm.getClassMetaData().getFullClassName()))
+        // Group the ids by table so that each table gets one batch
+        AbstractClassMetaData[] cmds = new AbstractClassMetaData[ids.length];
+        HBaseClassDescriptor[] descriptors = new HBaseClassDescriptor[ids.length];
+        Map<String, List<Integer>> positionsByTable = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < ids.length; i++)
         {
-            storeMgr.addClass(sm.getClassMetaData().getFullClassName(), sm.getExecutionContext().getClassLoaderResolver());
+            Object id = ids[i];
+            if (id == null || !api.isSingleFieldIdentity(id) || ectx.getObjectFromCache(id) != null)
+            {
+                continue;
+            }
+            String className = storeMgr.getClassNameForObjectID(id, clr, ectx);
+            AbstractClassMetaData acmd = className == null ? null : storeMgr.getMetaDataManager().getMetaDataForClass(className, clr);
+            if (acmd == null)
+            {
+                continue;
+            }
+            storeMgr.validateMetaDataForClass(acmd, clr);
+            cmds[i] = acmd;
+            descriptors[i] = storeMgr.getDescriptor(acmd, clr);
+            String tableName = descriptors[i].getTableName();
+            List<Integer> positions = positionsByTable.get(tableName);
+            if (positions == null)
+            {
+                positions = new ArrayList<Integer>();
+                positionsByTable.put(tableName, positions);
+            }
+            positions.add(i);
+        }
+        if (positionsByTable.isEmpty())
+        {
+            return objects;
         }
-        // Check existence of the object since HBase doesn't enforce application identity
+
+        HBaseManagedConnection mconn = (HBaseManagedConnection) storeMgr.getConnection(ectx);
         try
         {
-            locateObject(sm);
-            throw new NucleusUserException(LOCALISER.msg("HBase.Insert.ObjectWithIdAlreadyExists", sm.toPrintableID(),
-                sm.getInternalObjectId()));
+            for (Map.Entry<String, List<Integer>> entry : positionsByTable.entrySet())
+            {
+                List<Integer> positions = entry.getValue();
+                List<Get> gets = new ArrayList<Get>(positions.size());
+                int[][] fieldNumbers = new int[positions.size()][];
+                for (int i = 0; i < positions.size(); i++)
+                {
+                    int position = positions.get(i);
+                    AbstractClassMetaData acmd = cmds[position];
+                    fieldNumbers[i] = getFieldNumbersToHydrate(ectx, acmd, descriptors[position]);
+                    Get get = new Get(Utils.getPrimaryKeyBytes(acmd, api.getTargetKeyForSingleFieldIdentity(ids[position])));
+                    descriptors[position].addColumns(get, fieldNumbers[i]);
+                    gets.add(get);
+                }
+
+                Result[] results = mconn.get(entry.getKey(), gets);
+                for (int i = 0; i < results.length; i++)
+                {
+                    if (results[i] != null && !results[i].isEmpty())
+                    {
+                        int position = positions.get(i);
+                        objects[position] = hydrate(ectx, cmds[position], fieldNumbers[i], results[i]);
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new NucleusDataStoreException(e.getMessage(), e);
         }
-        catch (NucleusObjectNotFoundException onfe)
+        finally
         {
-            // Do nothing since object with this id doesn't exist
+            mconn.release();
         }
+        return objects;
+    }
 
-        HBaseManagedConnection mconn = (HBaseManagedConnection) storeMgr.getConnection(sm.getExecutionContext());
+    /**
+     * Checks the existence of several objects, reading the PK column of the rows of each table with one batch of gets.
+     * @throws NucleusObjectNotFoundException if one of the objects doesn't exist
+     */
+    public void locateObjects(ObjectProvider[] sms)
+    {
+        if (sms.length == 0)
+        {
+            return;
+        }
+        if (sms.length == 1)
+        {
+            locateObject(sms[0]);
+            return;
+        }
+
+        Map<String, List<ObjectProvider>> smsByTable = new LinkedHashMap<String, List<ObjectProvider>>();
+        for (ObjectProvider sm : sms)
+        {
+            storeMgr.validateMetaDataForClass(sm.getClassMetaData(), sm.getExecutionContext().getClassLoaderResolver());
+            String tableName = getDescriptor(sm).getTableName();
+            List<ObjectProvider> tableSms = smsByTable.get(tableName);
+            if (tableSms == null)
+            {
+                tableSms = new ArrayList<ObjectProvider>();
+                smsByTable.put(tableName, tableSms);
+            }
+            tableSms.add(sm);
+        }
+
+        HBaseManagedConnection mconn = (HBaseManagedConnection) storeMgr.getConnection(sms[0].getExecutionContext());
         try
         {
-            AbstractClassMetaData acmd = sm.getClassMetaData();
-            HTable table = mconn.getHTable(Utils.getTableName(acmd));
-            Put put = newPut(sm);
-            Delete delete = newDelete(sm);
-            HBaseInsertFieldManager fm = new HBaseInsertFieldManager(sm, put, delete);
-            sm.provideFields(acmd.getAllMemberPositions(), fm);
-            table.put(put);
-            table.close();
+            for (Map.Entry<String, List<ObjectProvider>> entry : smsByTable.entrySet())
+            {
+                String tableName = entry.getKey();
+                List<Get> gets = new ArrayList<Get>();
+                for (ObjectProvider sm : entry.getValue())
+                {
+                    byte[] pk = Utils.getPrimaryKeyBytes(sm);
+                    Boolean pending = mconn.existsInWriteBuffer(tableName, pk);
+                    if (pending == null)
+                    {
+                        HBaseClassDescriptor descriptor = getDescriptor(sm);
+                        Get get = new Get(pk);
+                        descriptor.addColumns(get, descriptor.getPKFieldNumber());
+                        gets.add(get);
+                    }
+                    else if (!pending.booleanValue())
+                    {
+                        throw new NucleusObjectNotFoundException();
+                    }
+                }
+                for (Result result : mconn.get(tableName, gets))
+                {
+                    if (result == null || result.isEmpty())
+                    {
+                        throw new NucleusObjectNotFoundException();
+                    }
+                }
+            }
         }
         catch (IOException e)
         {
@@ -184,39 +503,206 @@ public class HBasePersistenceHandler extends AbstractPersistenceHandler
         }
     }
 
-    private Put newPut(ObjectProvider sm) throws IOException
+    /**
+     * The fields of the class that a batch load hydrates: the PK and the non relation fields of the fetch plan.
+     */
+    private int[] getFieldNumbersToHydrate(ExecutionContext ectx, AbstractClassMetaData acmd, HBaseClassDescriptor descriptor)
     {
-        byte[] pk = Utils.getPrimaryKeyBytes(sm);
-        Put batch = new Put(pk);
-        return batch;
+        Set<Integer> fieldNumbers = new TreeSet<Integer>();
+        for (int fieldNumber : acmd.getPKMemberPositions())
+        {
+            fieldNumbers.add(fieldNumber);
+        }
+        for (int fieldNumber : ectx.getFetchPlan().getFetchPlanForClass(acmd).getMemberNumbers())
+        {
+            fieldNumbers.add(fieldNumber);
+        }
+        for (int fieldNumber : descriptor.getRelationFieldNumbers())
+        {
+            fieldNumbers.remove(fieldNumber);
+        }
+        int[] result = new int[fieldNumbers.size()];
+        int i = 0;
+        for (Integer fieldNumber : fieldNumbers)
+        {
+            result[i++] = fieldNumber;
+        }
+        return result;
     }
 
-    private Delete newDelete(ObjectProvider sm) throws IOException
+    private Object hydrate(final ExecutionContext ectx, AbstractClassMetaData acmd, final int[] fieldNumbers, final Result result)
     {
+        Class<?> cls = ectx.getClassLoaderResolver().classForName(acmd.getFullClassName());
+        return ectx.findObjectUsingAID(new Type(cls), new FieldValues2()
+        {
+            public void fetchFields(ObjectProvider sm)
+            {
+                sm.replaceFields(fieldNumbers, new HBaseFetchFieldManager(sm, result));
+            }
 
-        byte[] pk = Utils.getPrimaryKeyBytes(sm);
-        Delete batch = new Delete(pk);
-        return batch;
+            public void fetchNonLoadedFields(ObjectProvider sm)
+            {
+                sm.replaceNonLoadedFields(fieldNumbers, new HBaseFetchFieldManager(sm, result));
+            }
+
+            public FetchPlan getFetchPlanForLoading()
+            {
+                return ectx.getFetchPlan();
+            }
+        }, false, true);
     }
 
-    private Result getResult(ObjectProvider sm, HTable table) throws IOException
+    public void insertObject(ObjectProvider sm)
+    {
+        // Check if read-only so update not permitted
+        storeMgr.assertReadOnlyForUpdateOfObject(sm);
+
+        if (!storeMgr.managesClass(sm.getClassMetaData().getFullClassName()))
+        {
+            storeMgr.addClass(sm.getClassMetaData().getFullClassName(), sm.getExecutionContext().getClassLoaderResolver());
+        }
+
+        HBaseManagedConnection mconn = (HBaseManagedConnection) storeMgr.getConnection(sm.getExecutionContext());
+        try
+        {
+            AbstractClassMetaData acmd = sm.getClassMetaData();
+            HBaseClassDescriptor descriptor = getDescriptor(sm);
+            String tableName = descriptor.getTableName();
+            byte[] pk = Utils.getPrimaryKeyBytes(sm);
+            Put put = new Put(pk);
+            Delete delete = new Delete(pk);
+
+            if (isBlindUpsert(acmd))
+            {
+                // Append-only data, the caller guarantees the id is new (or wants the row overwritten)
+                sm.provideFields(acmd.getAllMemberPositions(), new HBaseInsertFieldManager(sm, put, delete));
+                mconn.put(tableName, put);
+            }
+            else if (storeMgr.isWriteBehind())
+            {
+                // An id taken in the write buffer is rejected now, before providing the fields, as storing a
+                // relation persists the related objects. Whether HBase has a row with the id is checked when the
+                // buffer is flushed, with one batched read per table and before anything is written
+                if (Boolean.TRUE.equals(mconn.existsInWriteBuffer(tableName, pk)))
+                {
+                    throw new NucleusUserException(LOCALISER.msg("HBase.Insert.ObjectWithIdAlreadyExists",
+                        sm.toPrintableID(), sm.getInternalObjectId()));
+                }
+                sm.provideFields(acmd.getAllMemberPositions(), new HBaseInsertFieldManager(sm, put, delete));
+                int pkFieldNumber = descriptor.getPKFieldNumber();
+                mconn.insert(tableName, put, descriptor.getFamily(pkFieldNumber), descriptor.getQualifier(pkFieldNumber));
+            }
+            else
+            {
+                // HBase doesn't enforce application identity, so insert only if the PK column is absent.
+                // Every row has its PK column written, which makes it the sentinel for the row existing.
+                // The relations are stored once the row is ours, so that a duplicate id doesn't leave the related
+                // objects persisted without their owner
+                sm.provideFields(descriptor.getNonRelationFieldNumbers(), new HBaseInsertFieldManager(sm, put, delete));
+                int pkFieldNumber = descriptor.getPKFieldNumber();
+                byte[] family = descriptor.getFamily(pkFieldNumber);
+                byte[] qualifier = descriptor.getQualifier(pkFieldNumber);
+                HTable table = mconn.getHTable(tableName);
+                if (!table.checkAndPut(pk, family, qualifier, HConstants.EMPTY_BYTE_ARRAY, put))
+                {
+                    throw new NucleusUserException(LOCALISER.msg("HBase.Insert.ObjectWithIdAlreadyExists",
+                        sm.toPrintableID(), sm.getInternalObjectId()));
+                }
+
+                int[] relationFieldNumbers = descriptor.getRelationFieldNumbers();
+                if (relationFieldNumbers.length > 0)
+                {
+                    Put relations = new Put(pk);
+                    sm.provideFields(relationFieldNumbers, new HBaseInsertFieldManager(sm, relations, delete));
+                    if (!relations.isEmpty())
+                    {
+                        mconn.put(tableName, relations);
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+        finally
+        {
+            mconn.release();
+        }
+    }
+
+    /**
+     * Whether inserts of the class skip the existence check, set with the class extension "hbase.blindUpsert".
+     * An insert then overwrites any row already stored with the same id.
+     */
+    private boolean isBlindUpsert(AbstractClassMetaData acmd)
+    {
+        return "true".equalsIgnoreCase(acmd.getValueForExtension("hbase.blindUpsert"));
+    }
+
+    /**
+     * Reads the columns of the given fields from the row of the object. The PK column is always read as well, so
+     * that the result is only empty when the row doesn't exist.
+     */
+    private Result getResult(ObjectProvider sm, HBaseClassDescriptor descriptor, HTable table, int[] fieldNumbers)
+            throws IOException
     {
         byte[] pk = Utils.getPrimaryKeyBytes(sm);
         Get get = new Get(pk);
+        descriptor.addColumns(get, descriptor.getPKFieldNumber());
+        descriptor.addColumns(get, fieldNumbers);
         Result result = table.get(get);
 
         return result;
     }
 
-    private boolean exists(ObjectProvider sm, HTable table) throws IOException
+    /**
+     * Reads the cells of the wide row collections among the given fields, for the update to only write the elements
+     * that changed. Only the cells of those fields are read, and pending writes are only flushed when they touch the
+     * row.
+     * @return The cells, null when there is no such field
+     */
+    private Result getWideRowCells(ObjectProvider sm, HBaseManagedConnection mconn, byte[] pk, int[] fieldNumbers)
+            throws IOException
+    {
+        HBaseClassDescriptor descriptor = getDescriptor(sm);
+        int[] wideRowFieldNumbers = new int[fieldNumbers.length];
+        int count = 0;
+        for (int fieldNumber : fieldNumbers)
+        {
+            if (descriptor.isWideRow(fieldNumber))
+            {
+                wideRowFieldNumbers[count++] = fieldNumber;
+            }
+        }
+        if (count == 0)
+        {
+            return null;
+        }
+        Get get = new Get(pk);
+        descriptor.addWideRowColumns(get, Arrays.copyOf(wideRowFieldNumbers, count));
+        mconn.flushRow(descriptor.getTableName(), pk);
+        return mconn.getHTable(descriptor.getTableName()).get(get);
+    }
+
+    private HBaseClassDescriptor getDescriptor(ObjectProvider sm)
+    {
+        return storeMgr.getDescriptor(sm.getClassMetaData(), sm.getExecutionContext().getClassLoaderResolver());
+    }
+
+    private boolean exists(byte[] pk, HBaseManagedConnection mconn, String tableName) throws IOException
     {
-        byte[] pk = Utils.getPrimaryKeyBytes(sm);
         if (pk == null)
         {
             return false;
         }
+        Boolean pending = mconn.existsInWriteBuffer(tableName, pk);
+        if (pending != null)
+        {
+            return pending.booleanValue();
+        }
         Get get = new Get(pk);
-        boolean result = table.exists(get);
+        boolean result = mconn.getHTable(tableName).exists(get);
         return result;
     }
 
@@ -226,13 +712,10 @@ public class HBasePersistenceHandler extends AbstractPersistenceHandler
         HBaseManagedConnection mconn = (HBaseManagedConnection) storeMgr.getConnection(sm.getExecutionContext());
         try
         {
-            AbstractClassMetaData acmd = sm.getClassMetaData();
-            HTable table = mconn.getHTable(Utils.getTableName(acmd));
-            if (!exists(sm, table))
+            if (!exists(Utils.getPrimaryKeyBytes(sm), mconn, getDescriptor(sm).getTableName()))
             {
                 throw new NucleusObjectNotFoundException();
             }
-            table.close();
         }
         catch (IOException e)
         {
@@ -244,8 +727,16 @@ public class HBasePersistenceHandler extends AbstractPersistenceHandler
         }
     }
 
+    /**
+     * Writes the given (dirty) fields of the object. Relation fields are only rewritten when they are among them,
+     * i.e. when the reference was changed or the SCO wrapper of the collection/map marked the field dirty.
+     */
     public void updateObject(ObjectProvider sm, int[] fieldNumbers)
     {
+        if (fieldNumbers == null || fieldNumbers.length == 0)
+        {
+            return;
+        }
         // Check if read-only so update not permitted
         storeMgr.assertReadOnlyForUpdateOfObject(sm);
         storeMgr.validateMetaDataForClass(sm.getClassMetaData(), sm.getExecutionContext().getClassLoaderResolver());
@@ -253,29 +744,22 @@ public class HBasePersistenceHandler extends AbstractPersistenceHandler
         HBaseManagedConnection mconn = (HBaseManagedConnection) storeMgr.getConnection(sm.getExecutionContext());
         try
         {
-            AbstractClassMetaData acmd = sm.getClassMetaData();
-            ClassLoaderResolver clr = sm.getExecutionContext().getClassLoaderResolver();
-            HTable table = mconn.getHTable(Utils.getTableName(acmd));
-            Put put = newPut(sm);
-            Delete delete = newDelete(sm); // we will ignore the delete object
-            HBaseInsertFieldManager fm = new HBaseInsertFieldManager(sm, put, delete);
+            String tableName = getDescriptor(sm).getTableName();
+            byte[] pk = Utils.getPrimaryKeyBytes(sm);
+            Put put = new Put(pk);
+            Delete delete = new Delete(pk);
+            HBaseInsertFieldManager fm = new HBaseInsertFieldManager(sm, put, delete, getWideRowCells(sm, mconn, pk, fieldNumbers));
             sm.provideFields(fieldNumbers, fm);
-            // Update relational fields
-            for (int field : acmd.getRelationMemberPositions(clr, storeMgr.getMetaDataManager()))
-            {
-                sm.provideFields(new int[]{field}, fm);
-            }
             if (!put.isEmpty())
             {
-                table.put(put);
+                mconn.put(tableName, put);
             }
             if (!delete.isEmpty())
             {
                 // only delete if there are columns to delete. Otherwise an empty delete would cause the
                 // entire row to be deleted
-                table.delete(delete);
+                mconn.delete(tableName, delete);
             }
-            table.close();
         }
         catch (IOException e)
         {
@@ -0,0 +1,221 @@
+/**********************************************************************
+Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package org.datanucleus.store.hbase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.WritableUtils;
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.api.ApiAdapter;
+import org.datanucleus.store.ExecutionContext;
+
+/**
+ * Reference to the row of a related object, as stored in the cell of a ONE_TO_ONE or ONE_TO_MANY collection field:
+ * the row key of the object, preceded by its class name only when that isn't the declared type of the field (or of
+ * its elements). A collection is stored as the number of elements followed by their references. Ids are rebuilt from
+ * the row keys, without deserializing identity objects.
+ */
+class HBaseRowReference
+{
+    /** First byte of a cell holding one reference. Cells of the field codecs start with 0x01 or 0xAC. */
+    static final byte REFERENCE_MARKER = 0x02;
+
+    /** First byte of a cell holding a list of references */
+    static final byte REFERENCE_LIST_MARKER = 0x03;
+
+    /** Class of the related object, null when it is the declared class */
+    final String className;
+
+    /** Row key of the related object, null for a null element */
+    final byte[] key;
+
+    HBaseRowReference(String className, byte[] key)
+    {
+        this.className = className;
+        this.key = key;
+    }
+
+    /**
+     * @param ec Execution context
+     * @param pc The related (persisted) object, may be null
+     * @param declaredClassName The declared class of the related object
+     * @return The reference to the row of the object
+     */
+    static HBaseRowReference forObject(ExecutionContext ec, Object pc, String declaredClassName) throws IOException
+    {
+        if (pc == null)
+        {
+            return new HBaseRowReference(null, null);
+        }
+        ApiAdapter api = ec.getApiAdapter();
+        Object id = api.getIdForObject(pc);
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        String className = pc.getClass().getName();
+        byte[] key = Utils.getPrimaryKeyBytes(ec.getMetaDataManager().getMetaDataForClass(className, clr),
+            api.getTargetKeyForSingleFieldIdentity(id));
+        return new HBaseRowReference(className.equals(declaredClassName) ? null : className, key);
+    }
+
+    /**
+     * @param bytes Bytes of a relation cell, not empty
+     * @return Whether the cell holds references, false for cells written by a field codec before references existed
+     */
+    static boolean isReference(byte[] bytes)
+    {
+        return bytes[0] == REFERENCE_MARKER || bytes[0] == REFERENCE_LIST_MARKER;
+    }
+
+    static byte[] encode(HBaseRowReference reference) throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(REFERENCE_MARKER);
+        reference.write(out);
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    static byte[] encode(List<HBaseRowReference> references) throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(REFERENCE_LIST_MARKER);
+        WritableUtils.writeVInt(out, references.size());
+        for (HBaseRowReference reference : references)
+        {
+            reference.write(out);
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    /**
+     * @param bytes Bytes of a cell for which {@link #isReference(byte[])} holds
+     * @return The references, a single one for a REFERENCE_MARKER cell
+     */
+    static List<HBaseRowReference> decode(byte[] bytes) throws IOException
+    {
+        DataInput in = new DataInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+        if (bytes[0] == REFERENCE_MARKER)
+        {
+            return Collections.singletonList(read(in));
+        }
+        int size = WritableUtils.readVInt(in);
+        List<HBaseRowReference> references = new ArrayList<HBaseRowReference>(size);
+        for (int i = 0; i < size; i++)
+        {
+            references.add(read(in));
+        }
+        return references;
+    }
+
+    /**
+     * @return The reference alone, without marker
+     */
+    byte[] toBytes() throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        write(out);
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    /**
+     * @param bytes Bytes of a reference alone, as returned by {@link #toBytes()}
+     */
+    static HBaseRowReference fromBytes(byte[] bytes, int offset, int length) throws IOException
+    {
+        return read(new DataInputStream(new ByteArrayInputStream(bytes, offset, length)));
+    }
+
+    /**
+     * @return Descriptor of the class of the related object
+     */
+    HBaseClassDescriptor getDescriptor(ExecutionContext ec, String declaredClassName)
+    {
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        String name = className == null ? declaredClassName : className;
+        return ((HBaseStoreManager) ec.getStoreManager()).getDescriptor(ec.getMetaDataManager().getMetaDataForClass(name, clr), clr);
+    }
+
+    /**
+     * @return Id of the related object, null for a null element
+     */
+    Object getId(ExecutionContext ec, String declaredClassName) throws IOException
+    {
+        if (key == null)
+        {
+            return null;
+        }
+        return getDescriptor(ec, declaredClassName).newObjectId(ec.getApiAdapter(), key);
+    }
+
+    private void write(DataOutput out) throws IOException
+    {
+        if (className == null)
+        {
+            WritableUtils.writeVInt(out, 0);
+        }
+        else
+        {
+            byte[] name = Bytes.toBytes(className);
+            WritableUtils.writeVInt(out, name.length);
+            out.write(name);
+        }
+        if (key == null)
+        {
+            WritableUtils.writeVInt(out, -1);
+        }
+        else
+        {
+            WritableUtils.writeVInt(out, key.length);
+            out.write(key);
+        }
+    }
+
+    private static HBaseRowReference read(DataInput in) throws IOException
+    {
+        String className = null;
+        int length = WritableUtils.readVInt(in);
+        if (length > 0)
+        {
+            byte[] name = new byte[length];
+            in.readFully(name);
+            className = Bytes.toString(name);
+        }
+        byte[] key = null;
+        length = WritableUtils.readVInt(in);
+        if (length >= 0)
+        {
+            key = new byte[length];
+            in.readFully(key);
+        }
+        return new HBaseRowReference(className, key);
+    }
+}
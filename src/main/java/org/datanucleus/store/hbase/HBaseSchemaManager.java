@@ -0,0 +1,654 @@
+/**********************************************************************
+Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package org.datanucleus.store.hbase;
+
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableExistsException;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.io.hfile.Compression;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.datanucleus.PersistenceConfiguration;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.util.NucleusLogger;
+
+/**
+ * Creates the tables and families of the persistent classes as their metadata is loaded. The descriptors of all
+ * tables are read once, with a single listTables, and the classes are checked against them, so that an up to date
+ * schema needs no other call to HBase.
+ * <p>
+ * The families missing from a table are collected and applied in one pass per table - one create, or one
+ * disable/modify/enable - as a task of the store executor, so that the tables are updated in parallel and the
+ * classes mapped to a table changed together take it offline once. Operations on a table wait for its pending
+ * changes with {@link #awaitSchema(String)}.
+ * <p>
+ * The families are created with the settings given by the extensions "hbase.family.*" of their fields or class, or
+ * else by the properties "datanucleus.hbase.family.*": "compression" (none, gz, lzo), "bloomFilter" (as named by
+ * the version of HBase), "blockSize", "inMemory", "blockCache", "maxVersions" and "timeToLive" (seconds). Settings
+ * that differ on existing families are changed when "datanucleus.autoCreateColumns" is set, and logged otherwise.
+ */
+class HBaseSchemaManager
+{
+    /** Prefix of the extensions of classes and fields giving the settings of families */
+    static final String FAMILY_EXTENSION_PREFIX = "hbase.family.";
+
+    /** Settings of families that can be given by the metadata */
+    static final String[] FAMILY_SETTINGS =
+        {"compression", "bloomFilter", "blockSize", "inMemory", "blockCache", "maxVersions", "timeToLive"};
+
+    private final HBaseStoreManager storeMgr;
+
+    /** Admin shared by all schema changes, created on first use */
+    private HBaseAdmin admin;
+
+    /** Descriptors of the tables in HBase by name, read once and kept up to date with the changes applied */
+    private Map<String, HTableDescriptor> tables;
+
+    /** Families to add to each table, by name, waiting for the task of the table */
+    private final Map<String, Map<String, HColumnDescriptor>> pending = new HashMap<String, Map<String, HColumnDescriptor>>();
+
+    /** Tables with a task applying their changes */
+    private final Set<String> running = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Failures of the changes of each table, thrown to every operation on the table until the changes are applied by
+     * a later task of the table
+     */
+    private final Map<String, NucleusDataStoreException> failures = new ConcurrentHashMap<String, NucleusDataStoreException>();
+
+    /** Families of each table whose changes failed, retried with the next changes of the table */
+    private final Map<String, Map<String, HColumnDescriptor>> failed = new HashMap<String, Map<String, HColumnDescriptor>>();
+
+    /** Tables of classes that aren't only embedded, warmed up once their changes are applied */
+    private final Set<String> warmUpTables = new HashSet<String>();
+
+    /** Families whose settings were reported as differing from the metadata, as "table:family" */
+    private final Set<String> reportedDrifts = new HashSet<String>();
+
+    /** Settings of families given by the properties "datanucleus.hbase.family.*" */
+    private final Map<String, String> familyDefaults = new HashMap<String, String>();
+
+    HBaseSchemaManager(HBaseStoreManager storeMgr)
+    {
+        this.storeMgr = storeMgr;
+        PersistenceConfiguration conf = storeMgr.getOMFContext().getPersistenceConfiguration();
+        for (String setting : FAMILY_SETTINGS)
+        {
+            String value = conf.getStringProperty("datanucleus.hbase.family." + setting);
+            if (value != null)
+            {
+                familyDefaults.put(setting, value);
+            }
+        }
+    }
+
+    /**
+     * Adds the table and families of a class that are missing in HBase, and applies the settings of its families that
+     * differ, when "datanucleus.autoCreateTables" or "datanucleus.autoCreateColumns" allow it. The changes are applied
+     * in the background. Settings that differ and can't be applied are logged.
+     * @param acmd Metadata of the class
+     */
+    void createSchema(AbstractClassMetaData acmd)
+    {
+        String tableName = Utils.getTableName(acmd);
+        Map<String, Map<String, String>> families = getFamilySettings(acmd);
+        boolean tuned = false;
+        for (Map<String, String> settings : families.values())
+        {
+            tuned |= !settings.isEmpty();
+        }
+        boolean autoCreateTables = storeMgr.isAutoCreateTables();
+        boolean autoCreateColumns = storeMgr.isAutoCreateColumns();
+        if (!autoCreateTables && !autoCreateColumns && !tuned)
+        {
+            // Nothing to check
+            if (!acmd.isEmbeddedOnly())
+            {
+                storeMgr.warmUp(tableName);
+            }
+            return;
+        }
+
+        boolean schedule = false;
+        boolean upToDate = false;
+        synchronized (this)
+        {
+            HTableDescriptor table = getTables().get(tableName);
+            Map<String, HColumnDescriptor> changes = new LinkedHashMap<String, HColumnDescriptor>();
+            for (Map.Entry<String, Map<String, String>> family : families.entrySet())
+            {
+                String familyName = family.getKey();
+                HColumnDescriptor current = table == null ? null : table.getFamily(Bytes.toBytes(familyName));
+                if (current == null)
+                {
+                    if (autoCreateColumns)
+                    {
+                        changes.put(familyName, newFamily(new HColumnDescriptor(familyName), family.getValue()));
+                    }
+                    continue;
+                }
+
+                List<String> drift = getDrift(current, family.getValue());
+                if (drift.isEmpty())
+                {
+                    continue;
+                }
+                if (autoCreateColumns)
+                {
+                    changes.put(familyName, newFamily(new HColumnDescriptor(current), family.getValue()));
+                }
+                else if (reportedDrifts.add(tableName + ":" + familyName))
+                {
+                    NucleusLogger.DATASTORE.warn("Family " + familyName + " of table " + tableName
+                        + " differs from the metadata of " + acmd.getFullClassName() + " for " + drift
+                        + ", not changed as datanucleus.autoCreateColumns is not set");
+                }
+            }
+            Map<String, HColumnDescriptor> retried = failed.remove(tableName);
+            if (retried != null)
+            {
+                for (Map.Entry<String, HColumnDescriptor> family : retried.entrySet())
+                {
+                    if (!changes.containsKey(family.getKey()))
+                    {
+                        changes.put(family.getKey(), family.getValue());
+                    }
+                }
+            }
+            if (!acmd.isEmbeddedOnly())
+            {
+                warmUpTables.add(tableName);
+            }
+
+            if ((table != null || !(autoCreateTables || autoCreateColumns)) && changes.isEmpty())
+            {
+                // Nothing to change, unless the task of the table is still changing it
+                upToDate = !running.contains(tableName);
+            }
+            else
+            {
+                Map<String, HColumnDescriptor> tablePending = pending.get(tableName);
+                if (tablePending == null)
+                {
+                    tablePending = new LinkedHashMap<String, HColumnDescriptor>();
+                    pending.put(tableName, tablePending);
+                }
+                for (Map.Entry<String, HColumnDescriptor> family : changes.entrySet())
+                {
+                    if (!tablePending.containsKey(family.getKey()))
+                    {
+                        tablePending.put(family.getKey(), family.getValue());
+                    }
+                }
+                schedule = running.add(tableName);
+            }
+        }
+
+        if (schedule)
+        {
+            schedule(tableName);
+        }
+        else if (upToDate && !acmd.isEmbeddedOnly())
+        {
+            storeMgr.warmUp(tableName);
+        }
+    }
+
+    /**
+     * Families of the table of a class, each with the settings given to it by the metadata: the extensions
+     * "hbase.family.*" of the fields stored in it, else of the class, else the properties "datanucleus.hbase.family.*".
+     * When fields of a family disagree, the first one wins.
+     * @param acmd Metadata of the class
+     * @return The settings by family name
+     */
+    private Map<String, Map<String, String>> getFamilySettings(AbstractClassMetaData acmd)
+    {
+        Map<String, Map<String, String>> families = new LinkedHashMap<String, Map<String, String>>();
+        String tableName = Utils.getTableName(acmd);
+        families.put(tableName, getSettings(acmd, null));
+        int[] fieldNumbers = acmd.getAllMemberPositions();
+        for (int i = 0; i < fieldNumbers.length; i++)
+        {
+            AbstractMemberMetaData mmd = acmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumbers[i]);
+            String familyName = Utils.getFamilyName(acmd, fieldNumbers[i]);
+            Map<String, String> settings = getSettings(acmd, mmd);
+            Map<String, String> existing = families.get(familyName);
+            if (existing == null)
+            {
+                families.put(familyName, settings);
+            }
+            else if (!existing.equals(settings) && hasFamilySettings(mmd))
+            {
+                NucleusLogger.DATASTORE.warn("Field " + mmd.getFullFieldName() + " gives family " + familyName
+                    + " the settings " + settings + " but it has " + existing);
+            }
+        }
+        return families;
+    }
+
+    private static boolean hasFamilySettings(AbstractMemberMetaData mmd)
+    {
+        for (String setting : FAMILY_SETTINGS)
+        {
+            if (mmd.getValueForExtension(FAMILY_EXTENSION_PREFIX + setting) != null)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Map<String, String> getSettings(AbstractClassMetaData acmd, AbstractMemberMetaData mmd)
+    {
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        for (String setting : FAMILY_SETTINGS)
+        {
+            String value = mmd == null ? null : mmd.getValueForExtension(FAMILY_EXTENSION_PREFIX + setting);
+            if (value == null)
+            {
+                value = acmd.getValueForExtension(FAMILY_EXTENSION_PREFIX + setting);
+            }
+            if (value == null)
+            {
+                value = familyDefaults.get(setting);
+            }
+            if (value != null)
+            {
+                settings.put(setting, value.trim());
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Applies settings to a family.
+     * @param family The family
+     * @param settings Values by setting name
+     * @return The family
+     */
+    static HColumnDescriptor newFamily(HColumnDescriptor family, Map<String, String> settings)
+    {
+        for (Map.Entry<String, String> setting : settings.entrySet())
+        {
+            String name = setting.getKey();
+            String value = setting.getValue();
+            try
+            {
+                if (name.equals("compression"))
+                {
+                    family.setCompressionType(Compression.Algorithm.valueOf(value.toUpperCase()));
+                }
+                else if (name.equals("bloomFilter"))
+                {
+                    // Not typed, the types of filters depend on the version of HBase
+                    family.setValue(HColumnDescriptor.BLOOMFILTER, value.toUpperCase());
+                }
+                else if (name.equals("blockSize"))
+                {
+                    family.setBlocksize(Integer.parseInt(value));
+                }
+                else if (name.equals("inMemory"))
+                {
+                    family.setInMemory(Boolean.valueOf(value).booleanValue());
+                }
+                else if (name.equals("blockCache"))
+                {
+                    family.setBlockCacheEnabled(Boolean.valueOf(value).booleanValue());
+                }
+                else if (name.equals("maxVersions"))
+                {
+                    family.setMaxVersions(Integer.parseInt(value));
+                }
+                else if (name.equals("timeToLive"))
+                {
+                    family.setTimeToLive(Integer.parseInt(value));
+                }
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new NucleusUserException("Invalid value \"" + value + "\" of " + name + " for family "
+                    + family.getNameAsString(), e);
+            }
+        }
+        return family;
+    }
+
+    /**
+     * Settings of a family that differ from the ones given.
+     * @param family The family
+     * @param settings Values by setting name
+     * @return Names of the settings that differ
+     */
+    static List<String> getDrift(HColumnDescriptor family, Map<String, String> settings)
+    {
+        List<String> drift = new ArrayList<String>();
+        if (settings.isEmpty())
+        {
+            return drift;
+        }
+        HColumnDescriptor expected = newFamily(new HColumnDescriptor(family), settings);
+        for (String setting : settings.keySet())
+        {
+            if (!getSetting(family, setting).equalsIgnoreCase(getSetting(expected, setting)))
+            {
+                drift.add(setting);
+            }
+        }
+        return drift;
+    }
+
+    private static String getSetting(HColumnDescriptor family, String name)
+    {
+        if (name.equals("compression"))
+        {
+            return family.getCompressionType().getName();
+        }
+        else if (name.equals("bloomFilter"))
+        {
+            return String.valueOf(family.getValue(HColumnDescriptor.BLOOMFILTER));
+        }
+        else if (name.equals("blockSize"))
+        {
+            return String.valueOf(family.getBlocksize());
+        }
+        else if (name.equals("inMemory"))
+        {
+            return String.valueOf(family.isInMemory());
+        }
+        else if (name.equals("blockCache"))
+        {
+            return String.valueOf(family.isBlockCacheEnabled());
+        }
+        else if (name.equals("maxVersions"))
+        {
+            return String.valueOf(family.getMaxVersions());
+        }
+        else if (name.equals("timeToLive"))
+        {
+            return String.valueOf(family.getTimeToLive());
+        }
+        return "";
+    }
+
+    /**
+     * Waits for the changes of the schema of a table to be applied.
+     * @param tableName Name of the table
+     * @throws NucleusDataStoreException if the changes failed, to every caller until the metadata of a class of the
+     * table is loaded and the changes are applied with its own
+     */
+    void awaitSchema(String tableName)
+    {
+        if (!running.contains(tableName) && failures.isEmpty())
+        {
+            return;
+        }
+        synchronized (this)
+        {
+            try
+            {
+                while (running.contains(tableName))
+                {
+                    wait();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new NucleusDataStoreException("Interrupted while waiting for the schema of table " + tableName, e);
+            }
+        }
+        NucleusDataStoreException failure = failures.get(tableName);
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    private void schedule(final String tableName)
+    {
+        try
+        {
+            storeMgr.getExecutor().execute(new Runnable()
+            {
+                public void run()
+                {
+                    applyPending(tableName);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The store is being closed
+            synchronized (this)
+            {
+                pending.remove(tableName);
+                running.remove(tableName);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Applies the changes of a table until none is left. Run by the task of the table.
+     */
+    private void applyPending(String tableName)
+    {
+        boolean warmUp;
+        while (true)
+        {
+            HTableDescriptor table;
+            Map<String, HColumnDescriptor> families;
+            synchronized (this)
+            {
+                families = pending.remove(tableName);
+                table = tables.get(tableName);
+                if (families == null)
+                {
+                    running.remove(tableName);
+                    warmUp = warmUpTables.contains(tableName) && table != null;
+                    notifyAll();
+                    break;
+                }
+            }
+
+            try
+            {
+                table = apply(tableName, table, families);
+                synchronized (this)
+                {
+                    tables.put(tableName, table);
+                    if (!failed.containsKey(tableName))
+                    {
+                        // The families that failed before were part of these changes
+                        failures.remove(tableName);
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                NucleusLogger.DATASTORE.error("Failed to update the schema of table " + tableName + " : " + e.getMessage());
+                synchronized (this)
+                {
+                    failures.put(tableName, new NucleusDataStoreException(e.getMessage(), e));
+                    Map<String, HColumnDescriptor> tableFailed = failed.get(tableName);
+                    if (tableFailed == null)
+                    {
+                        failed.put(tableName, families);
+                    }
+                    else
+                    {
+                        tableFailed.putAll(families);
+                    }
+                }
+            }
+        }
+
+        if (warmUp)
+        {
+            storeMgr.warmUp(tableName);
+        }
+    }
+
+    /**
+     * Creates the table with the given families, or adds them to it.
+     * @param tableName Name of the table
+     * @param table Descriptor of the table, null if it doesn't exist
+     * @param families Families missing from the table
+     * @return The descriptor of the table now
+     */
+    private HTableDescriptor apply(final String tableName, final HTableDescriptor table,
+            final Map<String, HColumnDescriptor> families) throws Exception
+    {
+        final HBaseAdmin hBaseAdmin = getAdmin();
+        try
+        {
+            return (HTableDescriptor) AccessController.doPrivileged(new PrivilegedExceptionAction()
+            {
+                public Object run() throws Exception
+                {
+                    HTableDescriptor current = table;
+                    if (current == null)
+                    {
+                        HTableDescriptor created = new HTableDescriptor(tableName);
+                        for (HColumnDescriptor family : families.values())
+                        {
+                            created.addFamily(family);
+                        }
+                        try
+                        {
+                            hBaseAdmin.createTable(created);
+                            return created;
+                        }
+                        catch (TableExistsException e)
+                        {
+                            // Created by someone else since the tables were listed
+                            current = hBaseAdmin.getTableDescriptor(Bytes.toBytes(tableName));
+                        }
+                    }
+
+                    HTableDescriptor modified = new HTableDescriptor(current);
+                    boolean changed = false;
+                    for (HColumnDescriptor family : families.values())
+                    {
+                        // Missing, or with settings to change
+                        if (!family.equals(modified.getFamily(family.getName())))
+                        {
+                            modified.addFamily(family);
+                            changed = true;
+                        }
+                    }
+                    if (changed)
+                    {
+                        hBaseAdmin.disableTable(modified.getName());
+                        try
+                        {
+                            hBaseAdmin.modifyTable(modified.getName(), modified);
+                        }
+                        finally
+                        {
+                            hBaseAdmin.enableTable(modified.getName());
+                        }
+                    }
+                    return modified;
+                }
+            });
+        }
+        catch (PrivilegedActionException e)
+        {
+            throw e.getException();
+        }
+    }
+
+    /**
+     * Descriptors of the tables in HBase, listed on first use. Called with the lock held.
+     */
+    private Map<String, HTableDescriptor> getTables()
+    {
+        if (tables == null)
+        {
+            final HBaseAdmin hBaseAdmin = getAdmin();
+            try
+            {
+                HTableDescriptor[] descriptors = (HTableDescriptor[]) AccessController.doPrivileged(new PrivilegedExceptionAction()
+                {
+                    public Object run() throws Exception
+                    {
+                        return hBaseAdmin.listTables();
+                    }
+                });
+                tables = new HashMap<String, HTableDescriptor>();
+                for (HTableDescriptor descriptor : descriptors)
+                {
+                    tables.put(descriptor.getNameAsString(), descriptor);
+                }
+            }
+            catch (PrivilegedActionException e)
+            {
+                throw new NucleusDataStoreException(e.getMessage(), e.getCause());
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Replaces the admin applying the changes, which is otherwise created on first use.
+     */
+    synchronized void setAdmin(HBaseAdmin admin)
+    {
+        this.admin = admin;
+    }
+
+    private synchronized HBaseAdmin getAdmin()
+    {
+        if (admin == null)
+        {
+            try
+            {
+                admin = (HBaseAdmin) AccessController.doPrivileged(new PrivilegedExceptionAction()
+                {
+                    public Object run() throws Exception
+                    {
+                        return new HBaseAdmin(storeMgr.getHbaseConfig());
+                    }
+                });
+            }
+            catch (PrivilegedActionException e)
+            {
+                throw new NucleusDataStoreException(e.getMessage(), e.getCause());
+            }
+        }
+        return admin;
+    }
+}
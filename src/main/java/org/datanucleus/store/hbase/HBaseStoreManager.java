@@ -17,20 +17,30 @@ Contributors :
  ***********************************************************************/
 package org.datanucleus.store.hbase;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.OMFContext;
 import org.datanucleus.PersistenceConfiguration;
+import org.datanucleus.management.ManagementManager;
 import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.metadata.MetaDataListener;
 import org.datanucleus.store.AbstractStoreManager;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.NucleusConnection;
+import org.datanucleus.util.ClassUtils;
 
 public class HBaseStoreManager extends AbstractStoreManager
 {
@@ -41,6 +51,9 @@ public class HBaseStoreManager extends AbstractStoreManager
      */
     private final Set<String> validatedClasses = Collections.synchronizedSet(new HashSet<String>());
 
+    /** Column mappings by class name, built when the metadata of the class is validated. */
+    private final ConcurrentMap<String, HBaseClassDescriptor> descriptors = new ConcurrentHashMap<String, HBaseClassDescriptor>();
+
     MetaDataListener metadataListener;
 
     private HBaseConfiguration hbaseConfig;
@@ -53,6 +66,42 @@ public class HBaseStoreManager extends AbstractStoreManager
 
     private int poolMinEvictableIdleTimeMillis;
 
+    private int poolMinIdle;
+
+    private int poolMaxIdle;
+
+    private boolean writeBehind = false;
+
+    private int writeBehindFlushThreshold;
+
+    private int executorThreads;
+
+    private int queryBatchSize;
+
+    private boolean queryParallelScan = false;
+
+    private int tablePoolMaxActive;
+
+    private int tablePoolMaxWait;
+
+    /** Creates the tables and families of the classes as their metadata is loaded. */
+    private HBaseSchemaManager schemaManager;
+
+    /** Warms up the tables of the classes as their metadata is loaded, null when not enabled. */
+    private HBaseTableWarmer tableWarmer;
+
+    /** Handles of the tables, shared by all connections. Created on first use. */
+    private HBaseTablePool tablePool;
+
+    /** Executor for work run in parallel against several tables or regions. Created on first use. */
+    private ExecutorService executor;
+
+    /** Connection pools of the connection factories, closed with the store. */
+    private final List<HBaseConnectionPool> connectionPools = new ArrayList<HBaseConnectionPool>();
+
+    /** Names of the MBeans registered by the store, unregistered when it is closed. */
+    private final List<String> mbeanNames = new ArrayList<String>();
+
     /**
      * Constructor.
      * @param clr ClassLoader resolver
@@ -97,6 +146,66 @@ public class HBaseStoreManager extends AbstractStoreManager
             poolMinEvictableIdleTimeMillis = 30 * 1000; // default, 30 secs
         }
 
+        // how many idle connections are kept even once timed out
+        poolMinIdle = Math.max(0, conf.getIntProperty("datanucleus.connectionPool.minIdle"));
+
+        // how many idle connections may be kept before the longest idle are evicted
+        poolMaxIdle = -1; // default, no limit
+        if (conf.hasProperty("datanucleus.connectionPool.maxIdle"))
+        {
+            poolMaxIdle = conf.getIntProperty("datanucleus.connectionPool.maxIdle");
+        }
+
+        // buffer writes in the connection and send them as batches at commit
+        writeBehind = conf.getBooleanProperty("datanucleus.hbase.writeBehind");
+
+        // how many rows may be pending in a connection before its buffer is flushed
+        writeBehindFlushThreshold = conf.getIntProperty("datanucleus.hbase.writeBehind.flushThreshold");
+        if (writeBehindFlushThreshold <= 0)
+        {
+            writeBehindFlushThreshold = 1000; // default, 1000 rows
+        }
+
+        // how many threads may be used for parallel work against HBase
+        executorThreads = conf.getIntProperty("datanucleus.hbase.executorThreads");
+        if (executorThreads <= 0)
+        {
+            executorThreads = 8; // default, 8 threads
+        }
+
+        // how many rows a query reads from HBase at a time
+        queryBatchSize = conf.getIntProperty("datanucleus.hbase.query.batchSize");
+        if (queryBatchSize <= 0)
+        {
+            queryBatchSize = 100; // default, 100 rows
+        }
+
+        // whether queries scan the regions of a table in parallel, unless the query says otherwise
+        queryParallelScan = conf.getBooleanProperty("datanucleus.hbase.query.parallelScan");
+
+        // how many handles of a table may be in use at once, whatever the number of threads
+        tablePoolMaxActive = conf.getIntProperty("datanucleus.hbase.tablePool.maxActive");
+        if (tablePoolMaxActive <= 0)
+        {
+            tablePoolMaxActive = 32; // default, 32 handles
+        }
+
+        // how long to wait for a handle of a table when they are all in use, negative for no limit
+        tablePoolMaxWait = conf.getIntProperty("datanucleus.hbase.tablePool.maxWait");
+        if (tablePoolMaxWait == 0)
+        {
+            tablePoolMaxWait = 30 * 1000; // default, 30 secs
+        }
+
+        schemaManager = new HBaseSchemaManager(this);
+
+        // whether the region locations and handles of the tables are loaded when the metadata of their class is
+        if (conf.getBooleanProperty("datanucleus.hbase.warmUp"))
+        {
+            // how many handles of each table are opened
+            tableWarmer = new HBaseTableWarmer(this, conf.getIntProperty("datanucleus.hbase.warmUp.tableHandles"));
+        }
+
         logConfiguration();
     }
 
@@ -113,6 +222,33 @@ public class HBaseStoreManager extends AbstractStoreManager
     {
         omfContext.getMetaDataManager().deregisterListener(metadataListener);
         validatedClasses.clear();
+        synchronized (this)
+        {
+            for (HBaseConnectionPool connectionPool : connectionPools)
+            {
+                connectionPool.close();
+            }
+            connectionPools.clear();
+            ManagementManager mgmtMgr = omfContext.getJMXManager();
+            if (mgmtMgr != null)
+            {
+                for (String mbeanName : mbeanNames)
+                {
+                    mgmtMgr.getManagementServer().unregisterMBean(mbeanName);
+                }
+            }
+            mbeanNames.clear();
+            if (executor != null)
+            {
+                executor.shutdown();
+                executor = null;
+            }
+            if (tablePool != null)
+            {
+                tablePool.close();
+                tablePool = null;
+            }
+        }
         super.close();
     }
 
@@ -157,6 +293,171 @@ public class HBaseStoreManager extends AbstractStoreManager
         return poolTimeBetweenEvictionRunsMillis;
     }
 
+    public int getPoolMinIdle()
+    {
+        return poolMinIdle;
+    }
+
+    /**
+     * Accessor for the number of idle connections above which the evictor disposes of the longest idle.
+     * @return The maximum, negative for no limit
+     */
+    public int getPoolMaxIdle()
+    {
+        return poolMaxIdle;
+    }
+
+    /**
+     * Whether writes are buffered per connection and sent when the transaction commits or flushes, set with
+     * "datanucleus.hbase.writeBehind". Inserts then make no round trip: whether their ids are already taken in HBase
+     * is checked when the buffer is flushed, with one batched read per table, and a taken id fails the flush.
+     * @return Whether writes are buffered
+     */
+    public boolean isWriteBehind()
+    {
+        return writeBehind;
+    }
+
+    public int getWriteBehindFlushThreshold()
+    {
+        return writeBehindFlushThreshold;
+    }
+
+    public int getExecutorThreads()
+    {
+        return executorThreads;
+    }
+
+    /**
+     * Accessor for the number of rows a query reads at a time: the scanner caching, and the number of rows turned
+     * into objects and filtered at a time when the results are streamed.
+     * @return The batch size
+     */
+    public int getQueryBatchSize()
+    {
+        return queryBatchSize;
+    }
+
+    /**
+     * Accessor for whether queries scan the regions of their table in parallel by default. A query can override it
+     * with the extension "datanucleus.hbase.query.parallelScan".
+     * @return Whether scans are parallel by default
+     */
+    public boolean isQueryParallelScan()
+    {
+        return queryParallelScan;
+    }
+
+    /**
+     * Prepares the table of a class whose metadata was loaded. Its missing table and families are created, and the
+     * settings of its families updated, in the background when "datanucleus.autoCreateTables" or
+     * "datanucleus.autoCreateColumns" is set. It is then warmed up when "datanucleus.hbase.warmUp" is set.
+     * @param acmd Metadata of the class
+     */
+    public void prepareTable(AbstractClassMetaData acmd)
+    {
+        schemaManager.createSchema(acmd);
+    }
+
+    /**
+     * Waits for the changes of the schema of a table made by {@link #prepareTable(AbstractClassMetaData)}. Called
+     * before the table is first used by a connection.
+     * @param tableName Name of the table
+     */
+    public void awaitSchema(String tableName)
+    {
+        schemaManager.awaitSchema(tableName);
+    }
+
+    /**
+     * Starts warming up a table in the background when "datanucleus.hbase.warmUp" is set: the locations of its
+     * regions are cached and "datanucleus.hbase.warmUp.tableHandles" handles are opened in the table pool.
+     * @param tableName Name of the table
+     */
+    void warmUp(String tableName)
+    {
+        if (tableWarmer != null)
+        {
+            tableWarmer.warmUp(tableName);
+        }
+    }
+
+    HBaseSchemaManager getSchemaManager()
+    {
+        return schemaManager;
+    }
+
+    /**
+     * Accessor for the pool of table handles shared by the connections, holding at most
+     * "datanucleus.hbase.tablePool.maxActive" handles of each table.
+     * @return The pool
+     */
+    public synchronized HBaseTablePool getTablePool()
+    {
+        if (tablePool == null)
+        {
+            tablePool = new HBaseTablePool(hbaseConfig, tablePoolMaxActive, tablePoolMaxWait);
+            registerMBean(tablePool, "TablePool");
+        }
+        return tablePool;
+    }
+
+    /**
+     * Creates the pool of connections of a connection factory, closed with the store.
+     * @param resourceType Type of resource of the factory (tx, nontx)
+     * @return The pool
+     */
+    synchronized HBaseConnectionPool createConnectionPool(String resourceType)
+    {
+        HBaseConnectionPool connectionPool =
+            new HBaseConnectionPool(poolTimeBetweenEvictionRunsMillis, poolMinIdle, poolMaxIdle);
+        connectionPools.add(connectionPool);
+        registerMBean(connectionPool, "ConnectionPool-" + resourceType);
+        return connectionPool;
+    }
+
+    /**
+     * Registers the runtime statistics of a component of the store with JMX, when enabled with "datanucleus.jmxType".
+     * @param mbean The MBean
+     * @param name Name of the component
+     */
+    private void registerMBean(Object mbean, String name)
+    {
+        ManagementManager mgmtMgr = omfContext.getJMXManager();
+        if (mgmtMgr == null)
+        {
+            return;
+        }
+        String mbeanName = mgmtMgr.getDomainName() + ":InstanceName=" + mgmtMgr.getInstanceName() +
+            ",Type=" + ClassUtils.getClassNameForClass(mbean.getClass()) + ",Name=" + name;
+        mgmtMgr.getManagementServer().registerMBean(mbean, mbeanName);
+        mbeanNames.add(mbeanName);
+    }
+
+    /**
+     * Accessor for the executor used for work run in parallel against HBase (e.g. flushing several tables). The
+     * tasks submitted to it must not wait on other tasks of the same executor.
+     * @return The executor
+     */
+    public synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            executor = Executors.newFixedThreadPool(executorThreads, new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "HBase Worker " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
     /**
      * Perform appengine-specific validation on the provided meta data.
      * @param acmd The meta data to validate.
@@ -168,6 +469,30 @@ public class HBaseStoreManager extends AbstractStoreManager
         if (validatedClasses.add(acmd.getFullClassName()))
         {
             new MetaDataValidator(acmd, getMetaDataManager(), clr).validate();
+            // Build the column mapping now rather than on the first read or write
+            getDescriptor(acmd, clr);
+        }
+    }
+
+    /**
+     * Accessor for the column mapping of a class. It is built when the metadata of the class is validated, so this
+     * is a lookup without locking; a class used before being validated gets its descriptor built here.
+     * @param acmd Metadata of the class
+     * @param clr ClassLoader resolver
+     * @return The descriptor
+     */
+    public HBaseClassDescriptor getDescriptor(AbstractClassMetaData acmd, ClassLoaderResolver clr)
+    {
+        HBaseClassDescriptor descriptor = descriptors.get(acmd.getFullClassName());
+        if (descriptor == null)
+        {
+            descriptor = new HBaseClassDescriptor(acmd, clr);
+            HBaseClassDescriptor existing = descriptors.putIfAbsent(acmd.getFullClassName(), descriptor);
+            if (existing != null)
+            {
+                descriptor = existing;
+            }
         }
+        return descriptor;
     }
 }
@@ -0,0 +1,320 @@
+/**********************************************************************
+Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package org.datanucleus.store.hbase;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.util.NucleusLogger;
+
+/**
+ * Pool of HTable handles shared by all connections of the store, keyed by table name. A handle is borrowed for the
+ * time it is used by one thread and then returned, and at most a fixed number of handles of a table exist at once,
+ * so the number of HTables (with their write buffers) stays the same whatever the number of threads.
+ * <p>
+ * Borrowing waits for a handle to be returned when all handles of the table are in use, up to a maximum time.
+ * Tasks run on the store executor use {@link #tryBorrowTable(String)} instead, which never waits, so that they can't
+ * wait on threads that wait on them. A thread holding handles of several tables while waiting for another can still
+ * wait on a thread doing the same in the opposite order, see {@link HBaseManagedConnection}.
+ */
+public class HBaseTablePool implements HBaseTablePoolMBean
+{
+    private final Configuration config;
+
+    private final int maxActive;
+
+    private final long maxWaitMillis;
+
+    private final ConcurrentMap<String, TableHandles> handles = new ConcurrentHashMap<String, TableHandles>();
+
+    private volatile boolean closed = false;
+
+    private final AtomicLong handlesCreated = new AtomicLong();
+
+    private final AtomicLong borrowCount = new AtomicLong();
+
+    private final AtomicLong borrowWaitTimeTotal = new AtomicLong();
+
+    private final AtomicLong borrowWaitTimeMax = new AtomicLong();
+
+    private final AtomicLong borrowTimeouts = new AtomicLong();
+
+    /**
+     * @param config Configuration of HBase
+     * @param maxActive Maximum number of handles of a table in use at once
+     * @param maxWaitMillis Time a borrow waits for a handle to be returned, no limit when negative
+     */
+    public HBaseTablePool(Configuration config, int maxActive, long maxWaitMillis)
+    {
+        this.config = config;
+        this.maxActive = maxActive;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Borrows a handle of a table, waiting for one to be returned if all are in use.
+     * @param tableName Name of the table
+     * @return The handle, to give back with {@link #returnTable(HTable)}
+     */
+    public HTable borrowTable(String tableName)
+    {
+        TableHandles tableHandles = getHandles(tableName);
+        if (tableHandles.permits.tryAcquire())
+        {
+            borrowCount.incrementAndGet();
+            return take(tableHandles, tableName);
+        }
+
+        long start = System.currentTimeMillis();
+        try
+        {
+            if (maxWaitMillis < 0)
+            {
+                tableHandles.permits.acquire();
+            }
+            else if (!tableHandles.permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS))
+            {
+                borrowTimeouts.incrementAndGet();
+                recordWait(start);
+                throw new NucleusDataStoreException("Timed out after " + maxWaitMillis + " ms waiting for one of the "
+                    + maxActive + " handles of table " + tableName + " to be returned");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new NucleusDataStoreException("Interrupted while waiting for a handle of table " + tableName, e);
+        }
+        recordWait(start);
+        borrowCount.incrementAndGet();
+        return take(tableHandles, tableName);
+    }
+
+    /**
+     * Borrows a handle of a table if one is free.
+     * @param tableName Name of the table
+     * @return The handle, to give back with {@link #returnTable(HTable)}, null if all are in use
+     */
+    public HTable tryBorrowTable(String tableName)
+    {
+        TableHandles tableHandles = getHandles(tableName);
+        if (!tableHandles.permits.tryAcquire())
+        {
+            return null;
+        }
+        borrowCount.incrementAndGet();
+        return take(tableHandles, tableName);
+    }
+
+    /**
+     * Gives back a borrowed handle. Writes it still buffers are sent first.
+     * @param table The handle
+     */
+    public void returnTable(HTable table)
+    {
+        TableHandles tableHandles = handles.get(Bytes.toString(table.getTableName()));
+        try
+        {
+            if (!table.isAutoFlush())
+            {
+                table.flushCommits();
+                table.setAutoFlush(true);
+            }
+            if (closed)
+            {
+                table.close();
+            }
+            else
+            {
+                tableHandles.idle.add(table);
+            }
+        }
+        catch (IOException e)
+        {
+            // The handle is dropped, another one is created when needed
+            NucleusLogger.DATASTORE.warn("Dropping handle of table " + Bytes.toString(table.getTableName()) + " : " + e.getMessage());
+        }
+        finally
+        {
+            tableHandles.permits.release();
+        }
+    }
+
+    /**
+     * Closes the handles not in use. Handles returned afterwards are closed too.
+     */
+    public void close()
+    {
+        closed = true;
+        for (TableHandles tableHandles : handles.values())
+        {
+            for (HTable table = tableHandles.idle.poll(); table != null; table = tableHandles.idle.poll())
+            {
+                try
+                {
+                    table.close();
+                }
+                catch (IOException e)
+                {
+                    NucleusLogger.DATASTORE.warn("Failed to close handle of table " + Bytes.toString(table.getTableName()) + " : " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public String[] getTableNames()
+    {
+        Set<String> tableNames = handles.keySet();
+        return tableNames.toArray(new String[tableNames.size()]);
+    }
+
+    public int getActiveHandles(String tableName)
+    {
+        TableHandles tableHandles = handles.get(tableName);
+        return tableHandles == null ? 0 : maxActive - tableHandles.permits.availablePermits();
+    }
+
+    public int getIdleHandles(String tableName)
+    {
+        TableHandles tableHandles = handles.get(tableName);
+        return tableHandles == null ? 0 : tableHandles.idle.size();
+    }
+
+    public int getActiveHandles()
+    {
+        int active = 0;
+        for (TableHandles tableHandles : handles.values())
+        {
+            active += maxActive - tableHandles.permits.availablePermits();
+        }
+        return active;
+    }
+
+    public int getIdleHandles()
+    {
+        int idle = 0;
+        for (TableHandles tableHandles : handles.values())
+        {
+            idle += tableHandles.idle.size();
+        }
+        return idle;
+    }
+
+    public long getHandlesCreated()
+    {
+        return handlesCreated.get();
+    }
+
+    public long getBorrowCount()
+    {
+        return borrowCount.get();
+    }
+
+    public long getBorrowWaitTimeTotalMillis()
+    {
+        return borrowWaitTimeTotal.get();
+    }
+
+    public long getBorrowWaitTimeMaxMillis()
+    {
+        return borrowWaitTimeMax.get();
+    }
+
+    public long getBorrowTimeouts()
+    {
+        return borrowTimeouts.get();
+    }
+
+    private void recordWait(long start)
+    {
+        long wait = System.currentTimeMillis() - start;
+        borrowWaitTimeTotal.addAndGet(wait);
+        for (long max = borrowWaitTimeMax.get(); wait > max; max = borrowWaitTimeMax.get())
+        {
+            if (borrowWaitTimeMax.compareAndSet(max, wait))
+            {
+                break;
+            }
+        }
+    }
+
+    private TableHandles getHandles(String tableName)
+    {
+        TableHandles tableHandles = handles.get(tableName);
+        if (tableHandles == null)
+        {
+            tableHandles = new TableHandles(maxActive);
+            TableHandles existing = handles.putIfAbsent(tableName, tableHandles);
+            if (existing != null)
+            {
+                tableHandles = existing;
+            }
+        }
+        return tableHandles;
+    }
+
+    /**
+     * Takes an idle handle of the table, or creates one. Called with a permit of the table acquired.
+     */
+    private HTable take(TableHandles tableHandles, String tableName)
+    {
+        HTable table = tableHandles.idle.poll();
+        if (table != null)
+        {
+            return table;
+        }
+        try
+        {
+            table = new HTable(config, tableName);
+            handlesCreated.incrementAndGet();
+            return table;
+        }
+        catch (IOException e)
+        {
+            tableHandles.permits.release();
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Handles of one table.
+     */
+    private static class TableHandles
+    {
+        /** One permit per handle that may still be borrowed */
+        final Semaphore permits;
+
+        final Queue<HTable> idle = new ConcurrentLinkedQueue<HTable>();
+
+        TableHandles(int maxActive)
+        {
+            this.permits = new Semaphore(maxActive, true);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**********************************************************************
+Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package org.datanucleus.store.hbase;
+
+/**
+ * Runtime statistics of the {@link HBaseTablePool} of a store, registered with JMX when "datanucleus.jmxType" is set.
+ */
+public interface HBaseTablePoolMBean
+{
+    /**
+     * @return Names of the tables that had handles borrowed
+     */
+    String[] getTableNames();
+
+    /**
+     * @param tableName Name of a table
+     * @return Number of handles of the table in use
+     */
+    int getActiveHandles(String tableName);
+
+    /**
+     * @param tableName Name of a table
+     * @return Number of handles of the table waiting in the pool to be used again
+     */
+    int getIdleHandles(String tableName);
+
+    /**
+     * @return Number of handles of all tables in use
+     */
+    int getActiveHandles();
+
+    /**
+     * @return Number of handles of all tables waiting in the pool to be used again
+     */
+    int getIdleHandles();
+
+    /**
+     * @return Number of handles created since the pool started
+     */
+    long getHandlesCreated();
+
+    /**
+     * @return Number of handles borrowed since the pool started
+     */
+    long getBorrowCount();
+
+    /**
+     * @return Time spent by borrows waiting for a handle to be returned, in total
+     */
+    long getBorrowWaitTimeTotalMillis();
+
+    /**
+     * @return Longest time a borrow waited for a handle to be returned
+     */
+    long getBorrowWaitTimeMaxMillis();
+
+    /**
+     * @return Number of borrows that gave up waiting for a handle
+     */
+    long getBorrowTimeouts();
+}
@@ -0,0 +1,160 @@
+/**********************************************************************
+Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package org.datanucleus.store.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HConnectionManager;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.datanucleus.util.NucleusLogger;
+
+/**
+ * Warms up the client for the tables of the persistent classes as their metadata is loaded, so that the first
+ * operations on a table don't pay for the lookup of its regions in META nor for opening its handles. For each table,
+ * the locations of all its regions are looked up in parallel and cached by the HBase connection, and a number of
+ * handles are opened in the table pool.
+ * <p>
+ * The work runs on the store executor and nothing waits for it: an operation arriving before its table is warm does
+ * the lookups itself, as it would without warm-up.
+ */
+class HBaseTableWarmer
+{
+    private final HBaseStoreManager storeMgr;
+
+    private final int tableHandles;
+
+    /** Tables already warmed up, or being warmed up */
+    private final Set<String> tableNames = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * @param storeMgr The store
+     * @param tableHandles Number of handles of each table opened in the table pool
+     */
+    HBaseTableWarmer(HBaseStoreManager storeMgr, int tableHandles)
+    {
+        this.storeMgr = storeMgr;
+        this.tableHandles = Math.max(0, tableHandles);
+    }
+
+    /**
+     * Starts warming up a table, unless it already was.
+     * @param tableName Name of the table
+     */
+    void warmUp(final String tableName)
+    {
+        if (!tableNames.add(tableName))
+        {
+            return;
+        }
+        submit(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    warmUpTable(tableName);
+                }
+                catch (Exception e)
+                {
+                    // Only a missed optimisation, the table is looked up again when used
+                    NucleusLogger.DATASTORE.warn("Failed to warm up table " + tableName + " : " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private void warmUpTable(String tableName) throws IOException
+    {
+        HBaseTablePool tablePool = storeMgr.getTablePool();
+        List<HTable> tables = new ArrayList<HTable>(Math.max(1, tableHandles));
+        byte[][] startKeys;
+        try
+        {
+            // Never waits, the handles in use by the application are warm already
+            for (int i = 0; i < Math.max(1, tableHandles); i++)
+            {
+                HTable table = tablePool.tryBorrowTable(tableName);
+                if (table == null)
+                {
+                    break;
+                }
+                tables.add(table);
+            }
+            if (tables.isEmpty())
+            {
+                return;
+            }
+            startKeys = tables.get(0).getStartKeys();
+        }
+        finally
+        {
+            for (HTable table : tables)
+            {
+                tablePool.returnTable(table);
+            }
+        }
+
+        final HConnection connection = HConnectionManager.getConnection(storeMgr.getHbaseConfig());
+        final byte[] table = Bytes.toBytes(tableName);
+        for (final byte[] startKey : startKeys)
+        {
+            submit(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        connection.locateRegion(table, startKey);
+                    }
+                    catch (IOException e)
+                    {
+                        NucleusLogger.DATASTORE.debug("Failed to locate region of table " + Bytes.toString(table)
+                            + " starting at " + Bytes.toStringBinary(startKey) + " : " + e.getMessage());
+                    }
+                }
+            });
+        }
+        if (NucleusLogger.DATASTORE.isDebugEnabled())
+        {
+            NucleusLogger.DATASTORE.debug("Warming up " + startKeys.length + " regions and " + tables.size()
+                + " handles of table " + tableName);
+        }
+    }
+
+    private void submit(Runnable task)
+    {
+        ExecutorService executor = storeMgr.getExecutor();
+        try
+        {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The store is being closed
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**********************************************************************
+Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package org.datanucleus.store.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.QualifierFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Wide row layout of a one-to-many collection, chosen with the extension "hbase.collectionLayout" set to "wide" on
+ * the field. Each element is a cell of its own, qualified by the qualifier of the field, a 0 byte and then either the
+ * position of the element (lists, holding the reference as value) or the reference of the element (other
+ * collections, with an empty value). The cell of the field itself only holds a marker. Keyed by their reference, the
+ * elements of a set can't repeat, and only lists and sets may use this layout.
+ * <p>
+ * Storing the collection again compares it with the element cells currently stored, which are all read first, then
+ * only writes the cells that changed and deletes the ones that are gone. Each update therefore reads the n cells of
+ * the collection. Adding or removing an element of a set writes a single cell, as does appending to or removing the
+ * last element of a list; inserting or removing elsewhere in a list shifts the positions after it, rewriting every
+ * cell from that position on. Reading the element cells takes the whole family, unless only the cells of the field are
+ * asked for through {@link #getCellFilter(byte[])}, so such a collection is best given a family of its own.
+ */
+class HBaseWideRowLayout
+{
+    /** First byte of the cell of the field. Followed by 1 for lists, 0 for other collections. */
+    static final byte MARKER = 0x04;
+
+    private static final byte[] LIST_MARKER = new byte[]{MARKER, 1};
+
+    private static final byte[] SET_MARKER = new byte[]{MARKER, 0};
+
+    /**
+     * @param bytes Bytes of the cell of the field, not empty
+     * @return Whether the elements of the collection are stored in cells of their own
+     */
+    static boolean isWideRow(byte[] bytes)
+    {
+        return bytes[0] == MARKER;
+    }
+
+    /**
+     * Adds to the mutations of a row the cells storing the given collection.
+     * @param put Put of the row
+     * @param delete Delete of the row
+     * @param family Family of the field
+     * @param qualifier Qualifier of the field
+     * @param ordered Whether the order of the elements is kept
+     * @param references References of the elements
+     * @param existing The cells of the family as currently stored, null when the row is new
+     */
+    static void store(Put put, Delete delete, byte[] family, byte[] qualifier, boolean ordered,
+            List<HBaseRowReference> references, Result existing) throws IOException
+    {
+        byte[] prefix = Bytes.add(qualifier, new byte[]{0});
+        NavigableMap<byte[], byte[]> cells = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+        for (int i = 0; i < references.size(); i++)
+        {
+            if (ordered)
+            {
+                // Positions are not negative, so big-endian bytes sort like the positions
+                cells.put(Bytes.add(prefix, Bytes.toBytes(i)), references.get(i).toBytes());
+            }
+            else
+            {
+                cells.put(Bytes.add(prefix, references.get(i).toBytes()), HConstants.EMPTY_BYTE_ARRAY);
+            }
+        }
+
+        NavigableMap<byte[], byte[]> existingCells = getElementCells(existing, family, qualifier);
+        for (Map.Entry<byte[], byte[]> cell : cells.entrySet())
+        {
+            if (!Bytes.equals(cell.getValue(), existingCells.get(cell.getKey())))
+            {
+                put.add(family, cell.getKey(), cell.getValue());
+            }
+        }
+        delete(delete, family, existingCells, cells);
+
+        byte[] marker = ordered ? LIST_MARKER : SET_MARKER;
+        if (existing == null || !Bytes.equals(marker, existing.getValue(family, qualifier)))
+        {
+            put.add(family, qualifier, marker);
+        }
+    }
+
+    /**
+     * Adds to the Delete of a row the element cells of a collection being set to null.
+     * @param existing The cells of the family as currently stored, null when the row is new
+     */
+    static void delete(Delete delete, byte[] family, byte[] qualifier, Result existing)
+    {
+        delete(delete, family, getElementCells(existing, family, qualifier), null);
+    }
+
+    /**
+     * Filter keeping the cell of the field and its element cells, i.e. the qualifiers from the qualifier of the field
+     * up to (excluding) the qualifier followed by 1. Other columns of the family are left out.
+     */
+    static Filter getCellFilter(byte[] qualifier)
+    {
+        List<Filter> bounds = new ArrayList<Filter>(2);
+        bounds.add(new QualifierFilter(CompareOp.GREATER_OR_EQUAL, new BinaryComparator(qualifier)));
+        bounds.add(new QualifierFilter(CompareOp.LESS, new BinaryComparator(Bytes.add(qualifier, new byte[]{1}))));
+        return new FilterList(FilterList.Operator.MUST_PASS_ALL, bounds);
+    }
+
+    /**
+     * @param result Result holding the family of the field
+     * @return References of the elements of the collection, in qualifier order
+     */
+    static List<HBaseRowReference> load(Result result, byte[] family, byte[] qualifier) throws IOException
+    {
+        boolean ordered = Bytes.equals(LIST_MARKER, result.getValue(family, qualifier));
+        NavigableMap<byte[], byte[]> cells = getElementCells(result, family, qualifier);
+        List<HBaseRowReference> references = new ArrayList<HBaseRowReference>(cells.size());
+        int offset = qualifier.length + 1;
+        for (Map.Entry<byte[], byte[]> cell : cells.entrySet())
+        {
+            if (ordered)
+            {
+                references.add(HBaseRowReference.fromBytes(cell.getValue(), 0, cell.getValue().length));
+            }
+            else
+            {
+                references.add(HBaseRowReference.fromBytes(cell.getKey(), offset, cell.getKey().length - offset));
+            }
+        }
+        return references;
+    }
+
+    private static void delete(Delete delete, byte[] family, NavigableMap<byte[], byte[]> existingCells,
+            NavigableMap<byte[], byte[]> cells)
+    {
+        for (byte[] elementQualifier : existingCells.keySet())
+        {
+            if (cells == null || !cells.containsKey(elementQualifier))
+            {
+                // All versions, an older one mustn't show up again
+                delete.deleteColumns(family, elementQualifier);
+            }
+        }
+    }
+
+    /**
+     * @return The element cells of the field in the result, by qualifier
+     */
+    private static NavigableMap<byte[], byte[]> getElementCells(Result result, byte[] family, byte[] qualifier)
+    {
+        NavigableMap<byte[], byte[]> familyMap = result == null || result.isEmpty() ? null : result.getFamilyMap(family);
+        if (familyMap == null)
+        {
+            return new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+        }
+        // Element qualifiers are the qualifier of the field followed by 0, so they sort before the qualifier plus 1
+        return familyMap.subMap(Bytes.add(qualifier, new byte[]{0}), true, Bytes.add(qualifier, new byte[]{1}), false);
+    }
+}
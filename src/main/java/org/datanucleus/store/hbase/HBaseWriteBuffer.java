@@ -0,0 +1,618 @@
+/**********************************************************************
+Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package org.datanucleus.store.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusUserException;
+
+/**
+ * Pending mutations of a connection running in write-behind mode. Puts and deletes are coalesced per table and row,
+ * and are sent to HBase as grouped batches (one per table, tables in parallel) when the buffer is flushed.
+ * <p>
+ * All mutations are stamped by the region server, as unbuffered writes are. A pending delete never covers a cell
+ * written in the same flush, so that it can't mask it: a row or family deleted then written again has its current
+ * cells read at flush time, and only the cells that aren't written again are deleted. These reads are made up front
+ * for all such rows of a table, with one call to {@link HBaseManagedConnection#get(String, List)}.
+ * <p>
+ * Inserts are queued without asking HBase whether their ids are taken. The same batched read checks it at flush time,
+ * for all tables before anything is written, and a taken id fails the flush with a {@link NucleusUserException}.
+ */
+class HBaseWriteBuffer
+{
+    /** Pending rows, keyed by table name then by row key. */
+    private final Map<String, Map<byte[], RowMutation>> tables = new LinkedHashMap<String, Map<byte[], RowMutation>>();
+
+    private int pendingRows = 0;
+
+    void put(String tableName, Put put)
+    {
+        RowMutation mutation = getRowMutation(tableName, put.getRow());
+        for (List<KeyValue> kvs : put.getFamilyMap().values())
+        {
+            for (KeyValue kv : kvs)
+            {
+                mutation.put(kv.getFamily(), kv.getQualifier(), kv.getValue());
+            }
+        }
+    }
+
+    /**
+     * Queues the put of a new row, checked at flush time to have no cell in the given column. Not checked when the row
+     * was deleted earlier in the buffer.
+     */
+    void insert(String tableName, Put put, byte[] family, byte[] qualifier)
+    {
+        RowMutation mutation = getRowMutation(tableName, put.getRow());
+        if (!mutation.rowDeleted)
+        {
+            mutation.checkFamily = family;
+            mutation.checkQualifier = qualifier;
+        }
+        put(tableName, put);
+    }
+
+    void delete(String tableName, Delete delete)
+    {
+        RowMutation mutation = getRowMutation(tableName, delete.getRow());
+        if (delete.isEmpty())
+        {
+            // An empty delete removes the whole row
+            mutation.deleteRow();
+            return;
+        }
+        for (List<KeyValue> kvs : delete.getFamilyMap().values())
+        {
+            for (KeyValue kv : kvs)
+            {
+                if (kv.getType() == KeyValue.Type.DeleteFamily.getCode())
+                {
+                    mutation.deleteFamily(kv.getFamily());
+                }
+                else
+                {
+                    mutation.deleteColumn(kv.getFamily(), kv.getQualifier());
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the pending mutations decide the existence of a row on their own.
+     * @return TRUE if the row will exist once flushed, FALSE if it will have been deleted, null if the buffer doesn't
+     * know and the datastore has to be asked
+     */
+    Boolean exists(String tableName, byte[] row)
+    {
+        Map<byte[], RowMutation> rows = tables.get(tableName);
+        RowMutation mutation = rows == null ? null : rows.get(row);
+        if (mutation == null)
+        {
+            return null;
+        }
+        if (!mutation.puts.isEmpty())
+        {
+            return Boolean.TRUE;
+        }
+        return mutation.rowDeleted ? Boolean.FALSE : null;
+    }
+
+    boolean isEmpty()
+    {
+        return pendingRows == 0;
+    }
+
+    boolean hasPending(String tableName)
+    {
+        return tables.containsKey(tableName);
+    }
+
+    boolean hasPending(String tableName, byte[] row)
+    {
+        Map<byte[], RowMutation> rows = tables.get(tableName);
+        return rows != null && rows.containsKey(row);
+    }
+
+    int size()
+    {
+        return pendingRows;
+    }
+
+    void clear()
+    {
+        tables.clear();
+        pendingRows = 0;
+    }
+
+    /**
+     * Sends the pending mutations of the given table to HBase.
+     * @param conn The connection owning the tables
+     * @param tableName Name of the table to flush
+     */
+    void flush(HBaseManagedConnection conn, String tableName)
+    {
+        Map<byte[], RowMutation> rows = tables.remove(tableName);
+        if (rows == null)
+        {
+            return;
+        }
+        pendingRows -= rows.size();
+        try
+        {
+            newFlushTask(conn, tableName, rows.values()).callWith(conn);
+        }
+        catch (IOException e)
+        {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Sends all pending mutations to HBase. Each table gets one batch of deletes and one batch of puts, and the tables
+     * are written in parallel when there is more than one of them.
+     * <p>
+     * A table handle is only held for the time of its batch. The tasks run on the executor take a free handle from
+     * the table pool, without waiting, and the batches for which none was free are sent by the calling thread
+     * afterwards, one table at a time. So the flush on commit never holds a handle while waiting for another.
+     * @param conn The connection owning the tables
+     * @param executor Executor to run the table batches on
+     */
+    void flush(HBaseManagedConnection conn, ExecutorService executor)
+    {
+        if (tables.isEmpty())
+        {
+            return;
+        }
+        List<Map.Entry<String, Map<byte[], RowMutation>>> entries =
+            new ArrayList<Map.Entry<String, Map<byte[], RowMutation>>>(tables.entrySet());
+        // Cleared first, so that reading the current cells doesn't flush the tables again
+        clear();
+
+        try
+        {
+            List<FlushTask> tasks = new ArrayList<FlushTask>(entries.size());
+            for (Map.Entry<String, Map<byte[], RowMutation>> entry : entries)
+            {
+                // Reads go through the connection, its map of tables is not thread safe
+                tasks.add(newFlushTask(conn, entry.getKey(), entry.getValue().values()));
+            }
+            if (tasks.size() == 1 || executor == null)
+            {
+                for (FlushTask task : tasks)
+                {
+                    task.callWith(conn);
+                }
+                return;
+            }
+            HBaseTablePool tablePool = conn.getTablePool();
+            for (FlushTask task : tasks)
+            {
+                task.tablePool = tablePool;
+            }
+            IOException failure = null;
+            List<Future<Boolean>> futures = executor.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++)
+            {
+                try
+                {
+                    if (!futures.get(i).get().booleanValue() && failure == null)
+                    {
+                        // No handle was free for the table
+                        tasks.get(i).callWith(conn);
+                    }
+                }
+                catch (ExecutionException e)
+                {
+                    if (failure == null)
+                    {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause().getMessage());
+                    }
+                }
+                catch (IOException e)
+                {
+                    if (failure == null)
+                    {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null)
+            {
+                throw failure;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+    }
+
+    private RowMutation getRowMutation(String tableName, byte[] row)
+    {
+        Map<byte[], RowMutation> rows = tables.get(tableName);
+        if (rows == null)
+        {
+            rows = new TreeMap<byte[], RowMutation>(Bytes.BYTES_COMPARATOR);
+            tables.put(tableName, rows);
+        }
+        RowMutation mutation = rows.get(row);
+        if (mutation == null)
+        {
+            mutation = new RowMutation(row);
+            rows.put(row, mutation);
+            pendingRows++;
+        }
+        return mutation;
+    }
+
+    /**
+     * Prepares the batches of one table. The current cells of the rows deleted then written again, and the columns
+     * that must be absent from new rows, are read first, with one call to the connection, which reads them in
+     * parallel. The handle borrowed for the reads is given back before the batches are sent.
+     * @throws NucleusUserException if a new row exists in HBase
+     */
+    private static FlushTask newFlushTask(HBaseManagedConnection conn, String tableName, Iterable<RowMutation> rows)
+            throws IOException
+    {
+        FlushTask task = new FlushTask(tableName);
+        List<RowMutation> reread = new ArrayList<RowMutation>();
+        List<RowMutation> inserted = new ArrayList<RowMutation>();
+        List<Get> gets = new ArrayList<Get>();
+        for (RowMutation mutation : rows)
+        {
+            task.rows.add(mutation);
+            if (mutation.needsCurrentCells())
+            {
+                reread.add(mutation);
+                gets.add(mutation.newGet());
+            }
+        }
+        for (RowMutation mutation : rows)
+        {
+            if (mutation.checkFamily != null)
+            {
+                inserted.add(mutation);
+                Get get = new Get(mutation.row);
+                get.addColumn(mutation.checkFamily, mutation.checkQualifier);
+                gets.add(get);
+            }
+        }
+        if (!gets.isEmpty())
+        {
+            Result[] results;
+            try
+            {
+                results = conn.get(tableName, gets);
+            }
+            finally
+            {
+                conn.returnHTable(tableName);
+            }
+            for (int i = 0; i < reread.size(); i++)
+            {
+                task.current.put(reread.get(i), results[i]);
+            }
+            for (int i = 0; i < inserted.size(); i++)
+            {
+                if (!results[reread.size() + i].isEmpty())
+                {
+                    throw new NucleusUserException("Row " + Bytes.toStringBinary(inserted.get(i).row) + " of table "
+                        + tableName + " already exists, it can't be inserted");
+                }
+            }
+        }
+        return task;
+    }
+
+    /**
+     * Sends the batches of one table.
+     */
+    private static class FlushTask implements Callable<Boolean>
+    {
+        final String tableName;
+
+        final List<RowMutation> rows = new ArrayList<RowMutation>();
+
+        /** Current cells of the rows that need them, read before the task runs */
+        final Map<RowMutation, Result> current = new IdentityHashMap<RowMutation, Result>();
+
+        /** Pool the task takes its handle from when run on the executor */
+        HBaseTablePool tablePool;
+
+        FlushTask(String tableName)
+        {
+            this.tableName = tableName;
+        }
+
+        /**
+         * Sends the batches with a free handle of the pool, for tasks run on the executor.
+         * @return Whether a handle was free, if not the batches are left for the calling thread
+         */
+        public Boolean call() throws IOException
+        {
+            HTable table = tablePool.tryBorrowTable(tableName);
+            if (table == null)
+            {
+                return Boolean.FALSE;
+            }
+            try
+            {
+                send(table);
+            }
+            finally
+            {
+                tablePool.returnTable(table);
+            }
+            return Boolean.TRUE;
+        }
+
+        /**
+         * Sends the batches with the handle of the connection, on the thread owning it.
+         */
+        void callWith(HBaseManagedConnection conn) throws IOException
+        {
+            try
+            {
+                send(conn.getHTable(tableName));
+            }
+            finally
+            {
+                conn.returnHTable(tableName);
+            }
+        }
+
+        private void send(HTable table) throws IOException
+        {
+            ArrayList<Put> puts = new ArrayList<Put>();
+            ArrayList<Delete> deletes = new ArrayList<Delete>();
+            for (RowMutation mutation : rows)
+            {
+                mutation.addTo(puts, deletes, current.get(mutation));
+            }
+
+            if (!deletes.isEmpty())
+            {
+                table.delete(deletes);
+            }
+            if (!puts.isEmpty())
+            {
+                table.put(puts);
+                table.flushCommits();
+            }
+        }
+    }
+
+    /**
+     * Coalesced state of one row: later operations override earlier ones on the same cells.
+     */
+    private static class RowMutation
+    {
+        final byte[] row;
+
+        boolean rowDeleted = false;
+
+        final Set<byte[]> deletedFamilies = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+
+        final Map<byte[], Set<byte[]>> deletedColumns = new TreeMap<byte[], Set<byte[]>>(Bytes.BYTES_COMPARATOR);
+
+        final Map<byte[], Map<byte[], byte[]>> puts = new TreeMap<byte[], Map<byte[], byte[]>>(Bytes.BYTES_COMPARATOR);
+
+        /** Column that must be absent from HBase for the row to be inserted, null when not checked */
+        byte[] checkFamily;
+
+        byte[] checkQualifier;
+
+        RowMutation(byte[] row)
+        {
+            this.row = row;
+        }
+
+        void put(byte[] family, byte[] qualifier, byte[] value)
+        {
+            Set<byte[]> qualifiers = deletedColumns.get(family);
+            if (qualifiers != null)
+            {
+                qualifiers.remove(qualifier);
+            }
+            Map<byte[], byte[]> values = puts.get(family);
+            if (values == null)
+            {
+                values = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+                puts.put(family, values);
+            }
+            values.put(qualifier, value);
+        }
+
+        void deleteColumn(byte[] family, byte[] qualifier)
+        {
+            Map<byte[], byte[]> values = puts.get(family);
+            if (values != null)
+            {
+                values.remove(qualifier);
+                if (values.isEmpty())
+                {
+                    puts.remove(family);
+                }
+            }
+            if (rowDeleted || deletedFamilies.contains(family))
+            {
+                // Already covered by the pending row or family delete
+                return;
+            }
+            Set<byte[]> qualifiers = deletedColumns.get(family);
+            if (qualifiers == null)
+            {
+                qualifiers = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+                deletedColumns.put(family, qualifiers);
+            }
+            qualifiers.add(qualifier);
+        }
+
+        void deleteFamily(byte[] family)
+        {
+            puts.remove(family);
+            deletedColumns.remove(family);
+            if (!rowDeleted)
+            {
+                deletedFamilies.add(family);
+            }
+        }
+
+        void deleteRow()
+        {
+            // Nothing of an insert earlier in the buffer is left to check
+            checkFamily = null;
+            checkQualifier = null;
+            puts.clear();
+            deletedColumns.clear();
+            deletedFamilies.clear();
+            rowDeleted = true;
+        }
+
+        /**
+         * Whether a row or family delete is followed by writes to it, in which case the cells it covers must be read
+         * to delete only the ones that aren't written again.
+         */
+        boolean needsCurrentCells()
+        {
+            if (rowDeleted)
+            {
+                return !puts.isEmpty();
+            }
+            for (byte[] family : deletedFamilies)
+            {
+                if (puts.containsKey(family))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Get of the cells covered by the row or family deletes that are followed by writes.
+         */
+        Get newGet()
+        {
+            Get get = new Get(row);
+            if (!rowDeleted)
+            {
+                for (byte[] family : deletedFamilies)
+                {
+                    if (puts.containsKey(family))
+                    {
+                        get.addFamily(family);
+                    }
+                }
+            }
+            return get;
+        }
+
+        /**
+         * Adds the HBase operations for this row to the batches. Deletes of a row or family followed by writes become
+         * deletes of the current cells that aren't written again, so that no delete covers a cell of the puts.
+         * @param putBatch Batch of puts
+         * @param deleteBatch Batch of deletes
+         * @param current Current cells of the row, read when {@link #needsCurrentCells()}, null otherwise
+         */
+        void addTo(List<Put> putBatch, List<Delete> deleteBatch, Result current)
+        {
+            Delete delete = new Delete(row);
+            if (rowDeleted && puts.isEmpty())
+            {
+                // An empty delete removes the whole row
+                deleteBatch.add(delete);
+                return;
+            }
+
+            Set<byte[]> families = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+            families.addAll(deletedFamilies);
+            if (rowDeleted && current != null && !current.isEmpty())
+            {
+                families.addAll(current.getMap().keySet());
+            }
+            for (byte[] family : families)
+            {
+                Map<byte[], byte[]> written = puts.get(family);
+                if (written == null)
+                {
+                    delete.deleteFamily(family);
+                }
+                else if (current != null && current.getFamilyMap(family) != null)
+                {
+                    for (byte[] qualifier : current.getFamilyMap(family).keySet())
+                    {
+                        if (!written.containsKey(qualifier))
+                        {
+                            delete.deleteColumns(family, qualifier);
+                        }
+                    }
+                }
+            }
+            for (Map.Entry<byte[], Set<byte[]>> entry : deletedColumns.entrySet())
+            {
+                for (byte[] qualifier : entry.getValue())
+                {
+                    delete.deleteColumns(entry.getKey(), qualifier);
+                }
+            }
+            if (!delete.isEmpty())
+            {
+                deleteBatch.add(delete);
+            }
+
+            if (!puts.isEmpty())
+            {
+                Put put = new Put(row);
+                for (Map.Entry<byte[], Map<byte[], byte[]>> family : puts.entrySet())
+                {
+                    for (Map.Entry<byte[], byte[]> cell : family.getValue().entrySet())
+                    {
+                        put.add(family.getKey(), cell.getKey(), cell.getValue());
+                    }
+                }
+                putBatch.add(put);
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/**********************************************************************
+Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package org.datanucleus.store.hbase;
+
+import java.io.IOException;
+
+import org.datanucleus.ClassLoaderResolver;
+
+/**
+ * Codec storing values with Java serialization, the format used before codecs existed. Cells written by the compact
+ * codec are still read, so a field can be switched from one codec to the other.
+ */
+public class JavaSerializationFieldCodec implements HBaseFieldCodec
+{
+    public static final JavaSerializationFieldCodec INSTANCE = new JavaSerializationFieldCodec();
+
+    public byte[] encode(Object value) throws IOException
+    {
+        return Utils.serializeObject(value);
+    }
+
+    public Object decode(byte[] bytes, ClassLoaderResolver clr) throws IOException
+    {
+        if (bytes[0] == CompactFieldCodec.FORMAT_MARKER)
+        {
+            return CompactFieldCodec.INSTANCE.decode(bytes, clr);
+        }
+        return Utils.deserializeObject(bytes);
+    }
+}
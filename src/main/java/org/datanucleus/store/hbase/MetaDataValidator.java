@@ -17,6 +17,7 @@ Contributors :
  ***********************************************************************/
 package org.datanucleus.store.hbase;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -144,6 +145,13 @@ public class MetaDataValidator
                 throw new HBaseMetaDataException(acmd, ammd, "HBase doesnt' currently support sequencing");
             }
         }
+
+        if (ammd.hasCollection() && "wide".equalsIgnoreCase(ammd.getValueForExtension("hbase.collectionLayout"))
+            && !List.class.isAssignableFrom(ammd.getType()) && !Set.class.isAssignableFrom(ammd.getType()))
+        {
+            // Unordered elements are keyed by their reference, so a duplicate would share the cell of the first one
+            throw new HBaseMetaDataException(acmd, ammd, "The wide collection layout only supports lists and sets");
+        }
     }
 
     private IgnorableMetaDataBehavior getIgnorableMetaDataBehavior()
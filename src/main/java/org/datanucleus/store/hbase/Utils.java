@@ -17,12 +17,11 @@
  ************************************************************************/
 package org.datanucleus.store.hbase;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.security.AccessController;
-import java.security.PrivilegedActionException;
-import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -35,11 +34,6 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
 
-import org.apache.hadoop.hbase.HBaseConfiguration;
-import org.apache.hadoop.hbase.HColumnDescriptor;
-import org.apache.hadoop.hbase.HTableDescriptor;
-import org.apache.hadoop.hbase.TableNotFoundException;
-import org.apache.hadoop.hbase.client.HBaseAdmin;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.metadata.AbstractClassMetaData;
@@ -106,91 +100,10 @@ public class Utils
         return columnName;
     }
 
-    /**
-     * Create a schema in HBase. Do not make this method public, since it uses privileged actions
-     * @param config
-     * @param acmd
-     * @param autoCreateColumns
-     */
-    @SuppressWarnings("unchecked")
-    static void createSchema(final HBaseConfiguration config, final AbstractClassMetaData acmd, final boolean autoCreateColumns)
-    {
-
-        try
-        {
-            final HBaseAdmin hBaseAdmin = (HBaseAdmin) AccessController.doPrivileged(new PrivilegedExceptionAction()
-            {
-                public Object run() throws Exception
-                {
-                    return new HBaseAdmin(config);
-                }
-            });
-            final HTableDescriptor hTable = (HTableDescriptor) AccessController.doPrivileged(new PrivilegedExceptionAction()
-            {
-
-                public Object run() throws Exception
-                {
-                    String tableName = Utils.getTableName(acmd);
-                    HTableDescriptor hTable;
-                    try
-                    {
-                        hTable = hBaseAdmin.getTableDescriptor(tableName.getBytes());
-                    }
-                    catch (TableNotFoundException ex)
-                    {
-                        hTable = new HTableDescriptor(tableName);
-                        hBaseAdmin.createTable(hTable);
-                    }
-                    return hTable;
-                }
-            });
-
-            if (autoCreateColumns)
-            {
-                boolean modified = false;
-                if (!hTable.hasFamily(Utils.getTableName(acmd).getBytes()))
-                {
-                    HColumnDescriptor hColumn = new HColumnDescriptor(Utils.getTableName(acmd));
-                    hTable.addFamily(hColumn);
-                    modified = true;
-                }
-                int[] fieldNumbers = acmd.getAllMemberPositions();
-                for (int i = 0; i < fieldNumbers.length; i++)
-                {
-                    String familyName = getFamilyName(acmd, fieldNumbers[i]);
-                    if (!hTable.hasFamily(familyName.getBytes()))
-                    {
-                        HColumnDescriptor hColumn = new HColumnDescriptor(familyName);
-                        hTable.addFamily(hColumn);
-                        modified = true;
-                    }
-                }
-                if (modified)
-                {
-                    AccessController.doPrivileged(new PrivilegedExceptionAction()
-                    {
-                        public Object run() throws Exception
-                        {
-                            hBaseAdmin.disableTable(hTable.getName());
-                            hBaseAdmin.modifyTable(hTable.getName(), hTable);
-                            hBaseAdmin.enableTable(hTable.getName());
-                            return null;
-                        }
-                    });
-                }
-            }
-        }
-        catch (PrivilegedActionException e)
-        {
-            throw new NucleusDataStoreException(e.getMessage(), e.getCause());
-        }
-    }
-
     static byte[] getPrimaryKeyBytes(ObjectProvider sm) throws IOException
     {
         AbstractClassMetaData acmd = sm.getClassMetaData();
         AbstractMemberMetaData mmd = acmd.getMetaDataForManagedMemberAtAbsolutePosition(sm.getClassMetaData().getPKMemberPositions()[0]);
-        Class<?> type = mmd.getType();
         Object pkValue = sm.provideField(acmd.getPKMemberPositions()[0]);
         if(pkValue == null && mmd.getValueStrategy() == IdentityStrategy.IDENTITY) {
             pkValue = UUID.randomUUID().toString();
@@ -204,8 +117,29 @@ public class Utils
         {
             sm.setPostStoreNewObjectId(pkValue);
         }
-        
+        return getPrimaryKeyBytes(acmd, pkValue);
+    }
 
+    /**
+     * Row key of the object of the given class with the given primary key value.
+     * @param acmd Metadata of the class
+     * @param pkValue Value of the primary key field
+     * @return The row key
+     */
+    static byte[] getPrimaryKeyBytes(AbstractClassMetaData acmd, Object pkValue) throws IOException
+    {
+        AbstractMemberMetaData mmd = acmd.getMetaDataForManagedMemberAtAbsolutePosition(acmd.getPKMemberPositions()[0]);
+        return getPrimaryKeyBytes(mmd.getType(), pkValue);
+    }
+
+    /**
+     * Row key of the object whose primary key field, of the given type, has the given value.
+     * @param type Type of the primary key field
+     * @param pkValue Value of the primary key field
+     * @return The row key
+     */
+    static byte[] getPrimaryKeyBytes(Class<?> type, Object pkValue) throws IOException
+    {
         if (type.equals(String.class))
         {
             return Bytes.toBytes((String) pkValue);
@@ -234,6 +168,29 @@ public class Utils
         }
     }
 
+    /**
+     * Primary key value of the object of the given class stored in the row with the given key. Inverse of
+     * {@link #getPrimaryKeyBytes(AbstractClassMetaData, Object)}.
+     * @param type Type of the primary key field
+     * @param key The row key
+     * @return The primary key value
+     */
+    static Object getPrimaryKeyValue(Class<?> type, byte[] key) throws IOException
+    {
+        if (type.equals(String.class))
+        {
+            return Bytes.toString(key);
+        }
+        else if (type.equals(Long.class) || type.equals(Long.TYPE))
+        {
+            return Bytes.toLong(key);
+        }
+        else
+        {
+            return deserializeObject(key);
+        }
+    }
+
     public static <T> ArrayList<T> newArrayList(T... elements)
     {
         return new ArrayList<T>(Arrays.asList(elements));
@@ -319,4 +276,21 @@ public class Utils
 
     }
 
+    public static Object deserializeObject(byte[] bytes) throws IOException
+    {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try
+        {
+            return ois.readObject();
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+        finally
+        {
+            ois.close();
+        }
+    }
+
 }
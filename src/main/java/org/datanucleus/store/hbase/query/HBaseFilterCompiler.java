@@ -0,0 +1,357 @@
+/**********************************************************************
+Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package org.datanucleus.store.hbase.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.query.QueryUtils;
+import org.datanucleus.query.compiler.QueryCompilation;
+import org.datanucleus.query.expression.DyadicExpression;
+import org.datanucleus.query.expression.Expression;
+import org.datanucleus.query.expression.Literal;
+import org.datanucleus.query.expression.ParameterExpression;
+import org.datanucleus.query.expression.PrimaryExpression;
+import org.datanucleus.store.hbase.HBaseClassDescriptor;
+
+/**
+ * Translates the filter of a query into an HBase {@link Filter} evaluated by the region servers, so that rows that
+ * can't match aren't shipped to the client. Only comparisons whose stored bytes compare like the values are
+ * translated: String and boolean fields compared for (in)equality, int, long and short fields also for order, all
+ * against literals or parameters, null checks of String fields, and AND/OR of those.
+ * <p>
+ * The HBase filter may let through rows that don't match (the untranslated operands of an AND, or an order comparison
+ * that negative numbers pass as their bytes sort after the positive ones), but never drops a matching row. The query
+ * still evaluates its whole filter in memory, so results are unchanged. {@link #isExact()} tells when the HBase filter
+ * matches the same rows as the query filter, so that the rows need no evaluation in memory.
+ */
+class HBaseFilterCompiler
+{
+    /** Value of an expression that isn't a literal or a given parameter */
+    static final Object NO_VALUE = new Object();
+
+    private final QueryCompilation compilation;
+
+    private final Map parameters;
+
+    private final AbstractClassMetaData acmd;
+
+    private final HBaseClassDescriptor descriptor;
+
+    /** Whether the filter compiled so far matches the same rows as the query filter */
+    private boolean exact = true;
+
+    HBaseFilterCompiler(QueryCompilation compilation, Map parameters, AbstractClassMetaData acmd, HBaseClassDescriptor descriptor)
+    {
+        this.compilation = compilation;
+        this.parameters = parameters;
+        this.acmd = acmd;
+        this.descriptor = descriptor;
+    }
+
+    /**
+     * @return The HBase filter, null when no part of the query filter can be translated
+     */
+    Filter compile()
+    {
+        if (compilation == null || compilation.getExprFilter() == null)
+        {
+            return null;
+        }
+        return compile(compilation.getExprFilter());
+    }
+
+    /**
+     * @return Whether the HBase filter returned by {@link #compile()} matches exactly the rows the query filter
+     * matches, including when there is no query filter
+     */
+    boolean isExact()
+    {
+        return exact;
+    }
+
+    private Filter compile(Expression expr)
+    {
+        Filter filter = compileExpression(expr);
+        if (filter == null)
+        {
+            exact = false;
+        }
+        return filter;
+    }
+
+    private Filter compileExpression(Expression expr)
+    {
+        if (!(expr instanceof DyadicExpression))
+        {
+            return null;
+        }
+        Expression.Operator op = expr.getOperator();
+        if (op == Expression.OP_AND)
+        {
+            // Dropping an operand only lets more rows through
+            Filter left = compile(expr.getLeft());
+            Filter right = compile(expr.getRight());
+            if (left == null || right == null)
+            {
+                return left == null ? right : left;
+            }
+            return newFilterList(FilterList.Operator.MUST_PASS_ALL, left, right);
+        }
+        else if (op == Expression.OP_OR)
+        {
+            Filter left = compile(expr.getLeft());
+            Filter right = compile(expr.getRight());
+            if (left == null || right == null)
+            {
+                return null;
+            }
+            return newFilterList(FilterList.Operator.MUST_PASS_ONE, left, right);
+        }
+        else if (op == Expression.OP_EQ || op == Expression.OP_NOTEQ || op == Expression.OP_LT || op == Expression.OP_LTEQ
+                || op == Expression.OP_GT || op == Expression.OP_GTEQ)
+        {
+            return compileComparison(expr);
+        }
+        return null;
+    }
+
+    private Filter compileComparison(Expression expr)
+    {
+        Expression.Operator op = expr.getOperator();
+        Expression valueExpr = expr.getRight();
+        int fieldNumber = getFieldNumber(expr.getLeft(), compilation, acmd);
+        if (fieldNumber < 0)
+        {
+            // value op field
+            fieldNumber = getFieldNumber(expr.getRight(), compilation, acmd);
+            valueExpr = expr.getLeft();
+            op = reverse(op);
+        }
+        if (fieldNumber < 0)
+        {
+            return null;
+        }
+        Object value = getValue(valueExpr, parameters);
+        if (value == NO_VALUE)
+        {
+            return null;
+        }
+
+        byte[] family = descriptor.getFamily(fieldNumber);
+        byte[] qualifier = descriptor.getQualifier(fieldNumber);
+        Class<?> type = acmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber).getType();
+        if (value == null)
+        {
+            if (type != String.class)
+            {
+                return null;
+            }
+            // A null String has no cell, an empty one an empty cell
+            SingleColumnValueFilter filter;
+            if (op == Expression.OP_EQ)
+            {
+                filter = new SingleColumnValueFilter(family, qualifier, CompareOp.EQUAL, HConstants.EMPTY_BYTE_ARRAY);
+                filter.setFilterIfMissing(false);
+                // Lets empty Strings through too
+                exact = false;
+            }
+            else if (op == Expression.OP_NOTEQ)
+            {
+                // Only null Strings have no cell
+                filter = new SingleColumnValueFilter(family, qualifier, CompareOp.GREATER_OR_EQUAL, HConstants.EMPTY_BYTE_ARRAY);
+                filter.setFilterIfMissing(true);
+            }
+            else
+            {
+                return null;
+            }
+            return filter;
+        }
+
+        byte[] bytes = toBytes(type, value);
+        if (bytes == null)
+        {
+            return null;
+        }
+        CompareOp compareOp;
+        if (op == Expression.OP_EQ)
+        {
+            compareOp = CompareOp.EQUAL;
+        }
+        else if (op == Expression.OP_NOTEQ)
+        {
+            compareOp = CompareOp.NOT_EQUAL;
+        }
+        else
+        {
+            if (type == String.class || type == boolean.class)
+            {
+                return null;
+            }
+            // Bytes of negative numbers sort after those of positive ones. "x > c" lets all negative x through when c
+            // is positive, but would drop the positive x when c is negative, so isn't translated then; and the other
+            // way around for "x < c"
+            boolean negative = ((Number) value).longValue() < 0;
+            exact = false;
+            if (op == Expression.OP_GT || op == Expression.OP_GTEQ)
+            {
+                if (negative)
+                {
+                    return null;
+                }
+                compareOp = op == Expression.OP_GT ? CompareOp.GREATER : CompareOp.GREATER_OR_EQUAL;
+            }
+            else
+            {
+                if (!negative)
+                {
+                    return null;
+                }
+                compareOp = op == Expression.OP_LT ? CompareOp.LESS : CompareOp.LESS_OR_EQUAL;
+            }
+        }
+        SingleColumnValueFilter filter = new SingleColumnValueFilter(family, qualifier, compareOp, bytes);
+        // A missing cell is a null String, which only "!=" matches
+        filter.setFilterIfMissing(op != Expression.OP_NOTEQ);
+        return filter;
+    }
+
+    /**
+     * @return The field the expression refers to, -1 if it isn't a field of the candidate
+     */
+    static int getFieldNumber(Expression expr, QueryCompilation compilation, AbstractClassMetaData acmd)
+    {
+        if (!(expr instanceof PrimaryExpression) || expr.getLeft() != null)
+        {
+            return -1;
+        }
+        List<String> tuples = ((PrimaryExpression) expr).getTuples();
+        String name;
+        if (tuples.size() == 1)
+        {
+            name = tuples.get(0);
+        }
+        else if (tuples.size() == 2 && tuples.get(0).equals(compilation.getCandidateAlias()))
+        {
+            name = tuples.get(1);
+        }
+        else
+        {
+            return -1;
+        }
+        AbstractMemberMetaData mmd = acmd.getMetaDataForMember(name);
+        if (mmd == null || mmd.isEmbedded())
+        {
+            return -1;
+        }
+        return mmd.getAbsoluteFieldNumber();
+    }
+
+    /**
+     * @return The value of the expression, {@link #NO_VALUE} if it isn't a literal or a given parameter
+     */
+    static Object getValue(Expression expr, Map parameters)
+    {
+        if (expr instanceof Literal)
+        {
+            return ((Literal) expr).getLiteral();
+        }
+        else if (expr instanceof ParameterExpression && parameters != null)
+        {
+            ParameterExpression paramExpr = (ParameterExpression) expr;
+            if (parameters.containsKey(paramExpr.getId()) || parameters.containsKey(Integer.valueOf(paramExpr.getPosition())))
+            {
+                return QueryUtils.getValueForParameterExpression(parameters, paramExpr);
+            }
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * @return The bytes of the value as stored for a field of the given type, null if it isn't stored that way or the
+     * value doesn't convert exactly
+     */
+    private static byte[] toBytes(Class<?> type, Object value)
+    {
+        if (type == String.class)
+        {
+            return value instanceof String ? Bytes.toBytes((String) value) : null;
+        }
+        else if (type == boolean.class)
+        {
+            return value instanceof Boolean ? Bytes.toBytes((Boolean) value) : null;
+        }
+        if (!(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte))
+        {
+            return null;
+        }
+        long number = ((Number) value).longValue();
+        if (type == long.class)
+        {
+            return Bytes.toBytes(number);
+        }
+        else if (type == int.class && number == (int) number)
+        {
+            return Bytes.toBytes((int) number);
+        }
+        else if (type == short.class && number == (short) number)
+        {
+            return Bytes.toBytes((short) number);
+        }
+        return null;
+    }
+
+    static Expression.Operator reverse(Expression.Operator op)
+    {
+        if (op == Expression.OP_LT)
+        {
+            return Expression.OP_GT;
+        }
+        else if (op == Expression.OP_LTEQ)
+        {
+            return Expression.OP_GTEQ;
+        }
+        else if (op == Expression.OP_GT)
+        {
+            return Expression.OP_LT;
+        }
+        else if (op == Expression.OP_GTEQ)
+        {
+            return Expression.OP_LTEQ;
+        }
+        return op;
+    }
+
+    private static Filter newFilterList(FilterList.Operator operator, Filter left, Filter right)
+    {
+        List<Filter> filters = new ArrayList<Filter>(2);
+        filters.add(left);
+        filters.add(right);
+        return new FilterList(operator, filters);
+    }
+}
@@ -0,0 +1,380 @@
+/**********************************************************************
+Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package org.datanucleus.store.hbase.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.query.compiler.QueryCompilation;
+import org.datanucleus.query.expression.DyadicExpression;
+import org.datanucleus.query.expression.Expression;
+import org.datanucleus.query.expression.InvokeExpression;
+import org.datanucleus.query.expression.OrderExpression;
+import org.datanucleus.store.hbase.HBaseClassDescriptor;
+
+/**
+ * Rows a query has to read, narrowed down by the predicates of its filter on the primary key: "pk == value" and
+ * "collection.contains(pk)" give the keys of the rows to get, comparisons of the key and "pk.startsWith(prefix)" the
+ * start and stop rows of the scan. Only predicates ANDed at the top of the filter are used.
+ * <p>
+ * Row keys sort as unsigned bytes. String keys (UTF-8) sort like the Strings as long as the bound has no char from
+ * U+D800 up, and long keys (big-endian) like the numbers as long as they aren't negative, so ranges are only used for
+ * such bounds, and ranges of long keys need a lower bound that isn't negative. As with the HBase filter, rows may be
+ * read that don't match, but never is a matching row left out; the query still evaluates its whole filter.
+ */
+class HBaseKeyRange
+{
+    /** Keys of the rows to get, in that order, null to scan */
+    final List<byte[]> keys;
+
+    /** First row of the scan, empty for the start of the table */
+    final byte[] startRow;
+
+    /** Row ending the scan (excluded), empty for the end of the table */
+    final byte[] stopRow;
+
+    /** Whether the matching rows are read in the order of their primary key */
+    final boolean ordered;
+
+    private final int pkFieldNumber;
+
+    private HBaseKeyRange(List<byte[]> keys, byte[] startRow, byte[] stopRow, boolean ordered, int pkFieldNumber)
+    {
+        this.keys = keys;
+        this.startRow = startRow;
+        this.stopRow = stopRow;
+        this.ordered = ordered;
+        this.pkFieldNumber = pkFieldNumber;
+    }
+
+    /**
+     * @param compilation Compilation of the query, may be null
+     * @param parameters Parameters of the query
+     * @return The rows to read, the whole table when the filter doesn't restrict the primary key
+     */
+    static HBaseKeyRange compile(QueryCompilation compilation, Map parameters, AbstractClassMetaData acmd,
+            HBaseClassDescriptor descriptor) throws IOException
+    {
+        int pkFieldNumber = descriptor.getPKFieldNumber();
+        Class<?> pkType = descriptor.getPKType();
+        boolean stringKey = pkType == String.class;
+        boolean longKey = pkType == Long.class || pkType == long.class;
+
+        List<Expression> conjuncts = new ArrayList<Expression>();
+        if (compilation != null && compilation.getExprFilter() != null)
+        {
+            addConjuncts(compilation.getExprFilter(), conjuncts);
+        }
+
+        byte[] startRow = null;
+        byte[] stopRow = null;
+        // Bounds of long keys, lower included and upper excluded
+        Long lower = null;
+        Long upper = null;
+        for (Expression expr : conjuncts)
+        {
+            if (expr instanceof InvokeExpression)
+            {
+                InvokeExpression invokeExpr = (InvokeExpression) expr;
+                List<Expression> args = invokeExpr.getArguments();
+                if (args == null || args.size() != 1)
+                {
+                    continue;
+                }
+                if ("contains".equals(invokeExpr.getOperation())
+                        && HBaseFilterCompiler.getFieldNumber(args.get(0), compilation, acmd) == pkFieldNumber)
+                {
+                    Object value = HBaseFilterCompiler.getValue(invokeExpr.getLeft(), parameters);
+                    if (value instanceof Collection)
+                    {
+                        List<byte[]> keys = getKeys((Collection) value, descriptor);
+                        if (keys != null)
+                        {
+                            boolean ordered = true;
+                            for (Object element : (Collection) value)
+                            {
+                                ordered &= isOrderPreserving(element);
+                            }
+                            return new HBaseKeyRange(keys, null, null, ordered, pkFieldNumber);
+                        }
+                    }
+                }
+                else if ("startsWith".equals(invokeExpr.getOperation()) && stringKey
+                        && HBaseFilterCompiler.getFieldNumber(invokeExpr.getLeft(), compilation, acmd) == pkFieldNumber)
+                {
+                    Object value = HBaseFilterCompiler.getValue(args.get(0), parameters);
+                    if (value instanceof String && ((String) value).length() > 0)
+                    {
+                        // UTF-8 keeps prefixes, whatever the chars
+                        byte[] prefix = Bytes.toBytes((String) value);
+                        startRow = max(startRow, prefix);
+                        stopRow = min(stopRow, getPrefixEnd(prefix));
+                    }
+                }
+                continue;
+            }
+
+            if (!(expr instanceof DyadicExpression))
+            {
+                continue;
+            }
+            Expression.Operator op = expr.getOperator();
+            Expression valueExpr = expr.getRight();
+            if (HBaseFilterCompiler.getFieldNumber(expr.getLeft(), compilation, acmd) != pkFieldNumber)
+            {
+                if (HBaseFilterCompiler.getFieldNumber(expr.getRight(), compilation, acmd) != pkFieldNumber)
+                {
+                    continue;
+                }
+                // value op pk
+                valueExpr = expr.getLeft();
+                op = HBaseFilterCompiler.reverse(op);
+            }
+            Object value = HBaseFilterCompiler.getValue(valueExpr, parameters);
+            if (value == HBaseFilterCompiler.NO_VALUE || value == null)
+            {
+                continue;
+            }
+
+            if (op == Expression.OP_EQ)
+            {
+                List<byte[]> keys = getKeys(Collections.singleton(value), descriptor);
+                if (keys != null)
+                {
+                    return new HBaseKeyRange(keys, null, null, true, pkFieldNumber);
+                }
+            }
+            else if (op == Expression.OP_LT || op == Expression.OP_LTEQ || op == Expression.OP_GT || op == Expression.OP_GTEQ)
+            {
+                boolean lowerBound = op == Expression.OP_GT || op == Expression.OP_GTEQ;
+                boolean inclusive = op == Expression.OP_LTEQ || op == Expression.OP_GTEQ;
+                if (stringKey && value instanceof String && isOrderPreserving(value))
+                {
+                    byte[] bound = Bytes.toBytes((String) value);
+                    if (inclusive != lowerBound)
+                    {
+                        // The smallest key after the bound
+                        bound = Bytes.add(bound, new byte[]{0});
+                    }
+                    if (lowerBound)
+                    {
+                        startRow = max(startRow, bound);
+                    }
+                    else
+                    {
+                        stopRow = min(stopRow, bound);
+                    }
+                }
+                else if (longKey && isIntegral(value))
+                {
+                    long bound = ((Number) value).longValue();
+                    if (inclusive != lowerBound)
+                    {
+                        if (bound == Long.MAX_VALUE)
+                        {
+                            continue;
+                        }
+                        bound++;
+                    }
+                    if (lowerBound)
+                    {
+                        lower = lower == null ? Long.valueOf(bound) : Long.valueOf(Math.max(lower.longValue(), bound));
+                    }
+                    else
+                    {
+                        upper = upper == null ? Long.valueOf(bound) : Long.valueOf(Math.min(upper.longValue(), bound));
+                    }
+                }
+            }
+        }
+
+        boolean ordered = false;
+        if (lower != null && lower.longValue() >= 0)
+        {
+            // All matching keys are positive, the upper bound can be used as well
+            if (upper != null && upper.longValue() <= lower.longValue())
+            {
+                return new HBaseKeyRange(new ArrayList<byte[]>(0), null, null, true, pkFieldNumber);
+            }
+            startRow = Bytes.toBytes(lower.longValue());
+            stopRow = upper == null ? null : Bytes.toBytes(upper.longValue());
+            ordered = true;
+        }
+        if (startRow != null && stopRow != null && Bytes.compareTo(startRow, stopRow) >= 0)
+        {
+            return new HBaseKeyRange(new ArrayList<byte[]>(0), null, null, true, pkFieldNumber);
+        }
+        return new HBaseKeyRange(null, startRow == null ? HConstants.EMPTY_START_ROW : startRow,
+            stopRow == null ? HConstants.EMPTY_END_ROW : stopRow, ordered, pkFieldNumber);
+    }
+
+    /**
+     * @param key Row key, null for none
+     * @return The rows of this range that come after the given row
+     */
+    HBaseKeyRange after(byte[] key)
+    {
+        if (key == null)
+        {
+            return this;
+        }
+        if (keys != null)
+        {
+            List<byte[]> keysAfter = new ArrayList<byte[]>(keys.size());
+            for (byte[] k : keys)
+            {
+                if (Bytes.compareTo(k, key) > 0)
+                {
+                    keysAfter.add(k);
+                }
+            }
+            return new HBaseKeyRange(keysAfter, null, null, ordered, pkFieldNumber);
+        }
+        // The smallest key after the given one
+        byte[] start = Bytes.add(key, new byte[]{0});
+        if (Bytes.compareTo(startRow, start) > 0)
+        {
+            start = startRow;
+        }
+        if (stopRow.length > 0 && Bytes.compareTo(start, stopRow) >= 0)
+        {
+            return new HBaseKeyRange(new ArrayList<byte[]>(0), null, null, true, pkFieldNumber);
+        }
+        return new HBaseKeyRange(null, start, stopRow, ordered, pkFieldNumber);
+    }
+
+    /**
+     * @return Whether the rows are read in the order the query asks for, so that the results need no sorting
+     */
+    boolean isOrdering(QueryCompilation compilation, AbstractClassMetaData acmd)
+    {
+        if (!ordered || compilation == null || compilation.getExprOrdering() == null)
+        {
+            return false;
+        }
+        Expression[] ordering = compilation.getExprOrdering();
+        if (ordering.length != 1 || !(ordering[0] instanceof OrderExpression))
+        {
+            return false;
+        }
+        OrderExpression orderExpr = (OrderExpression) ordering[0];
+        return !"descending".equals(orderExpr.getSortOrder())
+                && HBaseFilterCompiler.getFieldNumber(orderExpr.getLeft(), compilation, acmd) == pkFieldNumber;
+    }
+
+    /**
+     * @return The distinct row keys of the values, sorted, null if one of the values isn't a primary key value
+     */
+    private static List<byte[]> getKeys(Collection values, HBaseClassDescriptor descriptor) throws IOException
+    {
+        Class<?> pkType = descriptor.getPKType();
+        SortedSet<byte[]> keys = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+        for (Object value : values)
+        {
+            if ((pkType == Long.class || pkType == long.class) && isIntegral(value))
+            {
+                value = Long.valueOf(((Number) value).longValue());
+            }
+            else if (!pkType.isInstance(value))
+            {
+                return null;
+            }
+            keys.add(descriptor.getRowKey(value));
+        }
+        return new ArrayList<byte[]>(keys);
+    }
+
+    /**
+     * @return Whether the row key of the primary key value sorts like the value
+     */
+    private static boolean isOrderPreserving(Object value)
+    {
+        if (value instanceof String)
+        {
+            String string = (String) value;
+            for (int i = 0; i < string.length(); i++)
+            {
+                if (string.charAt(i) >= '\uD800')
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return isIntegral(value) && ((Number) value).longValue() >= 0;
+    }
+
+    private static boolean isIntegral(Object value)
+    {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    /**
+     * @return The smallest row key after all keys starting with the prefix, null if there is none
+     */
+    private static byte[] getPrefixEnd(byte[] prefix)
+    {
+        for (int i = prefix.length - 1; i >= 0; i--)
+        {
+            if (prefix[i] != (byte) 0xFF)
+            {
+                byte[] end = new byte[i + 1];
+                System.arraycopy(prefix, 0, end, 0, i + 1);
+                end[i]++;
+                return end;
+            }
+        }
+        return null;
+    }
+
+    private static void addConjuncts(Expression expr, List<Expression> conjuncts)
+    {
+        if (expr instanceof DyadicExpression && expr.getOperator() == Expression.OP_AND)
+        {
+            addConjuncts(expr.getLeft(), conjuncts);
+            addConjuncts(expr.getRight(), conjuncts);
+        }
+        else
+        {
+            conjuncts.add(expr);
+        }
+    }
+
+    private static byte[] max(byte[] row, byte[] other)
+    {
+        return row == null || Bytes.compareTo(other, row) > 0 ? other : row;
+    }
+
+    private static byte[] min(byte[] row, byte[] other)
+    {
+        if (other == null)
+        {
+            return row;
+        }
+        return row == null || Bytes.compareTo(other, row) < 0 ? other : row;
+    }
+}
@@ -0,0 +1,376 @@
+/**********************************************************************
+Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package org.datanucleus.store.hbase.query;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Scanner reading the regions of a table in parallel, each with a scanner of its own run on the store executor, and
+ * handing out their rows as one scanner. In order, the rows of each region follow those of the previous region, so
+ * that they keep their key order; otherwise they come as they are read.
+ * <p>
+ * The scanners of the regions are opened by the caller, so that the tasks need no table handle. A region scan reads a
+ * batch of rows at a time as a task of the executor, and stops being run while the rows it has read aren't taken, so
+ * that no thread of the executor ever waits on the caller.
+ */
+class HBaseParallelScanner implements ResultScanner
+{
+    /** Queued after the last row of a region */
+    private static final Object END = new Object();
+
+    private final String tableName;
+
+    private final ExecutorService executor;
+
+    private final int batchSize;
+
+    /** Queues of the rows read, one per region in order, a single one otherwise */
+    private final List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>();
+
+    /** Region scans filling each queue */
+    private final List<List<RegionScan>> queueScans = new ArrayList<List<RegionScan>>();
+
+    /** Number of regions still to end in each queue */
+    private final int[] pendingEnds;
+
+    /** Queue the rows are taken from */
+    private int current = 0;
+
+    private boolean closed = false;
+
+    /**
+     * @param tableName The table
+     * @param scanners Scanners of the regions, in key order, closed when read or when this scanner is closed
+     * @param batchSize Number of rows read from a region at a time
+     * @param ordered Whether the rows are handed out in key order
+     * @param executor Executor running the scans
+     */
+    HBaseParallelScanner(String tableName, List<ResultScanner> scanners, int batchSize, boolean ordered, ExecutorService executor)
+    {
+        this.tableName = tableName;
+        this.executor = executor;
+        this.batchSize = Math.max(1, batchSize);
+        int queueCount = ordered ? scanners.size() : Math.min(1, scanners.size());
+        for (int i = 0; i < queueCount; i++)
+        {
+            queues.add(new LinkedBlockingQueue<Object>());
+            queueScans.add(new ArrayList<RegionScan>());
+        }
+        pendingEnds = new int[queueCount];
+        for (int i = 0; i < scanners.size(); i++)
+        {
+            int queue = ordered ? i : 0;
+            // Room for two batches of each region scan filling the queue
+            int capacity = 2 * this.batchSize * (ordered ? 1 : scanners.size());
+            RegionScan regionScan = new RegionScan(scanners.get(i), queues.get(queue), capacity);
+            queueScans.get(queue).add(regionScan);
+            pendingEnds[queue]++;
+        }
+        for (List<RegionScan> regionScans : queueScans)
+        {
+            for (RegionScan regionScan : regionScans)
+            {
+                regionScan.schedule();
+            }
+        }
+    }
+
+    /**
+     * Scans covering the rows of the given scan in the regions of the table, in key order.
+     * @param table The table
+     * @param scan Scan of the rows
+     * @param startRow First row, empty for the start of the table
+     * @param stopRow Row ending the scan (excluded), empty for the end of the table
+     * @return The scans, copies of the given scan restricted to each region
+     */
+    static List<Scan> split(HTable table, Scan scan, byte[] startRow, byte[] stopRow) throws IOException
+    {
+        byte[][] startKeys = table.getStartKeys();
+        List<Scan> scans = new ArrayList<Scan>(startKeys.length);
+        for (int i = 0; i < startKeys.length; i++)
+        {
+            byte[] regionStart = startKeys[i];
+            byte[] regionStop = i + 1 < startKeys.length ? startKeys[i + 1] : HConstants.EMPTY_END_ROW;
+            byte[] start = Bytes.compareTo(startRow, regionStart) > 0 ? startRow : regionStart;
+            byte[] stop = regionStop;
+            if (stopRow.length > 0 && (stop.length == 0 || Bytes.compareTo(stopRow, stop) < 0))
+            {
+                stop = stopRow;
+            }
+            if (stop.length > 0 && Bytes.compareTo(start, stop) >= 0)
+            {
+                continue;
+            }
+            Scan regionScan = new Scan(scan);
+            regionScan.setStartRow(start);
+            regionScan.setStopRow(stop);
+            scans.add(regionScan);
+        }
+        return scans;
+    }
+
+    public Result next() throws IOException
+    {
+        while (current < queues.size())
+        {
+            BlockingQueue<Object> queue = queues.get(current);
+            Object row;
+            try
+            {
+                row = queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for rows of " + tableName);
+            }
+            for (RegionScan regionScan : queueScans.get(current))
+            {
+                regionScan.resumeIfDrained();
+            }
+
+            if (row == END)
+            {
+                if (--pendingEnds[current] == 0)
+                {
+                    current++;
+                }
+            }
+            else if (row instanceof Throwable)
+            {
+                close();
+                Throwable cause = (Throwable) row;
+                if (cause instanceof IOException)
+                {
+                    throw (IOException) cause;
+                }
+                IOException ioe = new IOException(cause.getMessage());
+                ioe.initCause(cause);
+                throw ioe;
+            }
+            else
+            {
+                return (Result) row;
+            }
+        }
+        return null;
+    }
+
+    public Result[] next(int nbRows) throws IOException
+    {
+        List<Result> rows = new ArrayList<Result>(nbRows);
+        for (int i = 0; i < nbRows; i++)
+        {
+            Result row = next();
+            if (row == null)
+            {
+                break;
+            }
+            rows.add(row);
+        }
+        return rows.toArray(new Result[rows.size()]);
+    }
+
+    public synchronized void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        for (List<RegionScan> regionScans : queueScans)
+        {
+            for (RegionScan regionScan : regionScans)
+            {
+                regionScan.closeIfPaused();
+            }
+        }
+        current = queues.size();
+    }
+
+    public Iterator<Result> iterator()
+    {
+        return new Iterator<Result>()
+        {
+            private Result next = null;
+
+            public boolean hasNext()
+            {
+                if (next == null)
+                {
+                    try
+                    {
+                        next = HBaseParallelScanner.this.next();
+                    }
+                    catch (IOException e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return next != null;
+            }
+
+            public Result next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                Result row = next;
+                next = null;
+                return row;
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Scan of one region, reading a batch of rows each time it is run.
+     */
+    private class RegionScan implements Runnable
+    {
+        private final ResultScanner scanner;
+
+        private final BlockingQueue<Object> queue;
+
+        /** Number of rows in the queue above which the scan waits for them to be taken */
+        private final int capacity;
+
+        /** Whether the scan is waiting for its rows to be taken, guarded by the parallel scanner */
+        private boolean paused = false;
+
+        private boolean done = false;
+
+        RegionScan(ResultScanner scanner, BlockingQueue<Object> queue, int capacity)
+        {
+            this.scanner = scanner;
+            this.queue = queue;
+            this.capacity = capacity;
+        }
+
+        void schedule()
+        {
+            executor.execute(this);
+        }
+
+        public void run()
+        {
+            try
+            {
+                Result[] rows = isClosed() ? new Result[0] : scanner.next(batchSize);
+                for (Result row : rows)
+                {
+                    queue.add(row);
+                }
+                if (rows.length == 0)
+                {
+                    finish(null);
+                    return;
+                }
+            }
+            catch (Throwable e)
+            {
+                finish(e);
+                return;
+            }
+
+            synchronized (HBaseParallelScanner.this)
+            {
+                if (closed)
+                {
+                    finish(null);
+                }
+                else if (queue.size() >= capacity)
+                {
+                    // Resumed by the caller taking rows
+                    paused = true;
+                }
+                else
+                {
+                    schedule();
+                }
+            }
+        }
+
+        /**
+         * Runs the scan again if it was waiting for its rows to be taken and they mostly are.
+         */
+        void resumeIfDrained()
+        {
+            synchronized (HBaseParallelScanner.this)
+            {
+                if (paused && queue.size() < capacity / 2)
+                {
+                    paused = false;
+                    schedule();
+                }
+            }
+        }
+
+        /**
+         * Closes the scan if it isn't running. Called with the lock of the parallel scanner held.
+         */
+        void closeIfPaused()
+        {
+            if (paused)
+            {
+                paused = false;
+                finish(null);
+            }
+        }
+
+        private void finish(Throwable failure)
+        {
+            if (done)
+            {
+                return;
+            }
+            done = true;
+            scanner.close();
+            if (failure != null)
+            {
+                queue.add(failure);
+            }
+            queue.add(END);
+        }
+    }
+
+    private synchronized boolean isClosed()
+    {
+        return closed;
+    }
+}
@@ -0,0 +1,362 @@
+/**********************************************************************
+Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package org.datanucleus.store.hbase.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.datanucleus.api.ApiAdapter;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.query.compiler.QueryCompilation;
+import org.datanucleus.store.ExecutionContext;
+import org.datanucleus.store.hbase.HBaseStoreManager;
+import org.datanucleus.store.query.AbstractQueryResult;
+import org.datanucleus.store.query.Query;
+
+/**
+ * Result of a query read from HBase as it is iterated. Rows are taken from the scanner a batch at a time, turned into
+ * objects and filtered in memory, so the first results are available before the last row is read. Used when nothing
+ * else has to be done with the whole result: no ordering (or one the rows are read in) and no result expression.
+ * <p>
+ * The range of the query is applied as the rows are read: without a filter the rows before the range are skipped
+ * without being turned into objects, and reading stops at the end of the range, also with a filter.
+ * <p>
+ * The result holds on to the scanner until all rows have been read or it is closed. An open scanner needs neither the
+ * connection nor its table handle, so the connection is released by the query that creates the result, and isn't
+ * held while the result is read. Results handed out are kept so the result can be iterated again, unless the
+ * extension "datanucleus.query.resultCacheType" is "none", in which case it can only be iterated once.
+ * <p>
+ * {@link #getContinuationToken()} gives the position of the last result handed out, from which a following query
+ * with the extension "datanucleus.hbase.query.resumeAfterKey" carries on. Paging through a table this way reads
+ * only the rows of each page, where growing ranges would read all rows before the page again.
+ */
+public class HBaseQueryResult extends AbstractQueryResult
+{
+    private final ExecutionContext ec;
+
+    private final Iterable<Result> rows;
+
+    private Iterator<Result> rowIterator;
+
+    private final HBaseQueryUtils.ObjectLoader loader;
+
+    private final QueryCompilation compilation;
+
+    private final Map parameters;
+
+    private final int batchSize;
+
+    /** Results read so far, null when they aren't kept */
+    private final List<Object> results;
+
+    /** Results of the last batch not handed out yet, when the results aren't kept */
+    private final LinkedList<Object> pending;
+
+    /** Number of results still to skip before the start of the range */
+    private long skip;
+
+    /** Number of results still to read up to the end of the range */
+    private long remaining;
+
+    /** Whether the iterator has been given out, when the results aren't kept */
+    private boolean iterated = false;
+
+    /** Last result handed out, null if none */
+    private Object last = null;
+
+    /**
+     * @param query The query
+     * @param rows The rows, closed when read if a ResultScanner
+     * @param loader Loader of the objects of the rows
+     * @param parameters Parameters of the query
+     * @param batchSize Number of rows read and filtered at a time
+     */
+    HBaseQueryResult(Query query, Iterable<Result> rows, HBaseQueryUtils.ObjectLoader loader, Map parameters, int batchSize)
+    {
+        super(query);
+        this.ec = query.getObjectManager();
+        this.rows = rows;
+        this.rowIterator = rows.iterator();
+        this.loader = loader;
+        this.compilation = query.getCompilation();
+        this.parameters = parameters;
+        this.batchSize = batchSize;
+        this.skip = query.getRangeFromIncl();
+        this.remaining = Math.max(0, query.getRangeToExcl() - query.getRangeFromIncl());
+        boolean cached = !"none".equalsIgnoreCase((String) query.getExtension("datanucleus.query.resultCacheType"));
+        this.results = cached ? new ArrayList<Object>() : null;
+        this.pending = cached ? null : new LinkedList<Object>();
+    }
+
+    /**
+     * Reads rows until at least one more result is found or the rows are all read.
+     * @return Whether a result was found
+     */
+    private boolean readBatch()
+    {
+        boolean filtered = compilation.getExprFilter() != null;
+        while (rowIterator != null)
+        {
+            if (!filtered)
+            {
+                // Each row is a result, those before the range aren't needed as objects
+                while (skip > 0 && rowIterator.hasNext())
+                {
+                    rowIterator.next();
+                    skip--;
+                }
+            }
+            // No more rows than would complete the range if they all matched
+            long size = Math.min(batchSize, skip + remaining);
+            List<Object> candidates = new ArrayList<Object>((int) size);
+            while (candidates.size() < size && rowIterator.hasNext())
+            {
+                candidates.add(loader.load(rowIterator.next()));
+            }
+
+            List matches = new ArrayList(filter(candidates));
+            if (skip > 0)
+            {
+                int skipped = (int) Math.min(skip, matches.size());
+                matches = matches.subList(skipped, matches.size());
+                skip -= skipped;
+            }
+            if (matches.size() > remaining)
+            {
+                matches = matches.subList(0, (int) remaining);
+            }
+            remaining -= matches.size();
+            if (remaining == 0 || !rowIterator.hasNext())
+            {
+                closeRows();
+            }
+
+            if (results != null)
+            {
+                results.addAll(matches);
+            }
+            else
+            {
+                pending.addAll(matches);
+            }
+            if (!matches.isEmpty())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The candidates that match the filter of the query
+     */
+    private Collection filter(List<Object> candidates)
+    {
+        return HBaseQueryUtils.filter(query, candidates, parameters);
+    }
+
+    private void readAll()
+    {
+        while (readBatch())
+        {
+        }
+    }
+
+    private void closeRows()
+    {
+        if (rowIterator == null)
+        {
+            return;
+        }
+        rowIterator = null;
+        if (rows instanceof ResultScanner)
+        {
+            ((ResultScanner) rows).close();
+        }
+    }
+
+    private void assertCached()
+    {
+        if (results == null)
+        {
+            throw new NucleusUserException("The results of this query can only be iterated once, as they aren't kept");
+        }
+    }
+
+    protected void closingConnection()
+    {
+        if (loadResultsAtCommit && results != null && isOpen())
+        {
+            readAll();
+        }
+    }
+
+    protected void closeResults()
+    {
+        closeRows();
+    }
+
+    public synchronized void close()
+    {
+        super.close();
+        if (results != null)
+        {
+            results.clear();
+        }
+        else
+        {
+            pending.clear();
+        }
+    }
+
+    protected int getSizeUsingMethod()
+    {
+        if ("last".equalsIgnoreCase(resultSizeMethod))
+        {
+            assertCached();
+            readAll();
+            return results.size();
+        }
+        return super.getSizeUsingMethod();
+    }
+
+    public Object get(int index)
+    {
+        assertIsOpen();
+        assertCached();
+        if (index < 0)
+        {
+            throw new IndexOutOfBoundsException("Index " + index);
+        }
+        while (index >= results.size() && readBatch())
+        {
+        }
+        if (index >= results.size())
+        {
+            throw new IndexOutOfBoundsException("Index " + index + " beyond the " + results.size() + " results");
+        }
+        last = results.get(index);
+        return last;
+    }
+
+    public Iterator iterator()
+    {
+        assertIsOpen();
+        if (results == null)
+        {
+            if (iterated)
+            {
+                throw new NucleusUserException("The results of this query can only be iterated once, as they aren't kept");
+            }
+            iterated = true;
+        }
+        return new ResultIterator();
+    }
+
+    public ListIterator listIterator()
+    {
+        assertIsOpen();
+        assertCached();
+        readAll();
+        return results.listIterator();
+    }
+
+    /**
+     * Token for the position of this result, to set as the extension "datanucleus.hbase.query.resumeAfterKey" of a
+     * query reading the rows that come after the last result handed out by this result (by its iterator or get). The
+     * results of the query must be in row key order, i.e. not ordered or ordered by the primary key.
+     * @return The token, null if no result has been handed out
+     */
+    public String getContinuationToken()
+    {
+        if (last == null)
+        {
+            return null;
+        }
+        ApiAdapter api = ec.getApiAdapter();
+        AbstractClassMetaData acmd = ec.getMetaDataManager().getMetaDataForClass(last.getClass(), ec.getClassLoaderResolver());
+        try
+        {
+            byte[] key = ((HBaseStoreManager) ec.getStoreManager()).getDescriptor(acmd, ec.getClassLoaderResolver()).getRowKey(
+                api.getTargetKeyForSingleFieldIdentity(api.getIdForObject(last)));
+            return HBaseQueryUtils.toContinuationToken(key);
+        }
+        catch (IOException e)
+        {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+    }
+
+    public boolean equals(Object o)
+    {
+        return o == this;
+    }
+
+    public int hashCode()
+    {
+        return System.identityHashCode(this);
+    }
+
+    /**
+     * Iterator reading the rows as it goes.
+     */
+    private class ResultIterator implements Iterator
+    {
+        /** Index of the next result, when the results are kept */
+        private int next = 0;
+
+        public boolean hasNext()
+        {
+            if (!isOpen())
+            {
+                return false;
+            }
+            if (results != null)
+            {
+                return next < results.size() || readBatch();
+            }
+            return !pending.isEmpty() || readBatch();
+        }
+
+        public Object next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            last = results != null ? results.get(next++) : pending.removeFirst();
+            return last;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -20,28 +20,806 @@ package org.datanucleus.store.hbase.query;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.io.IOException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
+import javax.jdo.listener.DeleteCallback;
+import javax.jdo.listener.DeleteLifecycleListener;
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.PageFilter;
+import org.apache.hadoop.hbase.util.Base64;
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.FetchPlan;
+import org.datanucleus.ObjectManager;
+import org.datanucleus.api.ApiAdapter;
 import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.jdo.JDOCallbackHandler;
+import org.datanucleus.jdo.LifecycleListenerForClass;
 import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.Relation;
+import org.datanucleus.query.compiler.QueryCompilation;
+import org.datanucleus.query.evaluator.JDOQLEvaluator;
+import org.datanucleus.query.evaluator.JPQLEvaluator;
+import org.datanucleus.query.evaluator.JavaQueryEvaluator;
+import org.datanucleus.query.evaluator.memory.InMemoryExpressionEvaluator;
+import org.datanucleus.query.expression.DyadicExpression;
+import org.datanucleus.query.expression.Expression;
+import org.datanucleus.query.expression.InvokeExpression;
+import org.datanucleus.query.expression.PrimaryExpression;
+import org.datanucleus.state.CallbackHandler;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.FieldValues2;
 import org.datanucleus.store.ObjectProvider;
 import org.datanucleus.store.Type;
+import org.datanucleus.store.hbase.HBaseClassDescriptor;
 import org.datanucleus.store.hbase.HBaseFetchFieldManager;
+import org.datanucleus.store.hbase.HBaseInsertFieldManager;
 import org.datanucleus.store.hbase.HBaseManagedConnection;
-import org.datanucleus.store.hbase.Utils;
+import org.datanucleus.store.hbase.HBasePersistenceHandler;
+import org.datanucleus.store.hbase.HBaseStoreManager;
+import org.datanucleus.store.query.Query;
+import org.datanucleus.util.NucleusLogger;
 
 class HBaseQueryUtils
 {
+    /**
+     * Extension of a query holding a continuation token, from {@link HBaseQueryResult#getContinuationToken()}: the
+     * query only reads the rows after the row of that token.
+     */
+    static final String RESUME_AFTER_KEY = "datanucleus.hbase.query.resumeAfterKey";
+
+    /**
+     * Extension of a query telling whether it scans the regions of its table in parallel, defaulting to the store
+     * property of the same name.
+     */
+    static final String PARALLEL_SCAN = "datanucleus.hbase.query.parallelScan";
+
+    /**
+     * Rows of the candidate class that the query has to read, as restricted by its filter on the primary key and by
+     * the extension {@link #RESUME_AFTER_KEY}.
+     * @param query The query
+     * @param candidateClass Candidate
+     * @param parameters Parameters of the query
+     * @return The rows to read
+     */
+    static HBaseKeyRange getKeyRange(Query query, Class<?> candidateClass, Map parameters)
+    {
+        ExecutionContext om = query.getObjectManager();
+        ClassLoaderResolver clr = om.getClassLoaderResolver();
+        AbstractClassMetaData acmd = om.getMetaDataManager().getMetaDataForClass(candidateClass, clr);
+        HBaseKeyRange keyRange;
+        try
+        {
+            keyRange = HBaseKeyRange.compile(query.getCompilation(), parameters, acmd, getDescriptor(om, acmd));
+        }
+        catch (IOException e)
+        {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+        Object resumeAfterKey = query.getExtension(RESUME_AFTER_KEY);
+        if (resumeAfterKey instanceof byte[])
+        {
+            return keyRange.after((byte[]) resumeAfterKey);
+        }
+        else if (resumeAfterKey != null)
+        {
+            return keyRange.after(fromContinuationToken(resumeAfterKey.toString()));
+        }
+        return keyRange;
+    }
+
+    /**
+     * @param key Row key
+     * @return Continuation token for the row, safe to use in URLs
+     */
+    static String toContinuationToken(byte[] key)
+    {
+        return Base64.encodeBytes(key, Base64.URL_SAFE | Base64.DONT_BREAK_LINES);
+    }
+
+    /**
+     * @param token Token returned by {@link #toContinuationToken(byte[])}
+     * @return The row key
+     */
+    static byte[] fromContinuationToken(String token)
+    {
+        byte[] key = Base64.decode(token, Base64.URL_SAFE);
+        if (key == null)
+        {
+            throw new NucleusUserException("Invalid value for the extension " + RESUME_AFTER_KEY + " : " + token);
+        }
+        return key;
+    }
+
+    /**
+     * @param query The query
+     * @return Whether the query scans the regions of its table in parallel
+     */
+    static boolean isParallelScan(Query query)
+    {
+        HBaseStoreManager storeMgr = (HBaseStoreManager) query.getObjectManager().getStoreManager();
+        return query.getBooleanExtensionProperty(PARALLEL_SCAN, storeMgr.isQueryParallelScan());
+    }
+
+    /**
+     * Whether the rows of the query must be read in key order, as its ordering relies on it or its range or
+     * {@link #RESUME_AFTER_KEY} picks rows by their position. Otherwise a parallel scan hands out the rows of the
+     * regions as they come.
+     * @param query The query
+     * @param keyRange Rows the query reads
+     * @return Whether the rows are needed in key order
+     */
+    static boolean isRowOrderNeeded(Query query, HBaseKeyRange keyRange)
+    {
+        if (query.getRangeFromIncl() != 0 || query.getRangeToExcl() != Long.MAX_VALUE
+                || query.getRangeFromInclParam() != null || query.getRangeToExclParam() != null
+                || query.getExtension(RESUME_AFTER_KEY) != null)
+        {
+            return true;
+        }
+        QueryCompilation compilation = query.getCompilation();
+        if (compilation == null || compilation.getExprOrdering() == null)
+        {
+            return false;
+        }
+        ExecutionContext ec = query.getObjectManager();
+        return keyRange.isOrdering(compilation,
+            ec.getMetaDataManager().getMetaDataForClass(compilation.getCandidateClass(), ec.getClassLoaderResolver()));
+    }
+
+    /**
+     * Turns the rows read by a query into objects.
+     */
+    interface ObjectLoader
+    {
+        /**
+         * @param result Row of the candidate class
+         * @return The object of the row
+         */
+        Object load(Result result);
+    }
+
+    /**
+     * Whether the results of the query can be handed out as the rows are read, with a {@link HBaseQueryResult}. The
+     * rows must need no work besides the filter and the range: no ordering (or one they're read in), result or
+     * grouping, and a range that isn't given by parameters.
+     * @param query The query
+     * @param keyRange Rows the query reads
+     * @return Whether the results can be streamed
+     */
+    static boolean isStreamable(Query query, HBaseKeyRange keyRange)
+    {
+        QueryCompilation compilation = query.getCompilation();
+        if (compilation == null || query.getType() != Query.SELECT || query.getResultClass() != null
+                || compilation.getExprResult() != null || compilation.getExprGrouping() != null
+                || compilation.getExprHaving() != null || compilation.getSubqueryAliases() != null)
+        {
+            return false;
+        }
+        if (query.getRangeFromInclParam() != null || query.getRangeToExclParam() != null)
+        {
+            return false;
+        }
+        ExecutionContext ec = query.getObjectManager();
+        return compilation.getExprOrdering() == null || keyRange.isOrdering(compilation,
+            ec.getMetaDataManager().getMetaDataForClass(compilation.getCandidateClass(), ec.getClassLoaderResolver()));
+    }
+
+    /**
+     * Result of a query for which {@link #isStreamable(Query, HBaseKeyRange)} holds, reading the rows as it is
+     * iterated. Once its scanner is open the result doesn't use the connection, which the caller releases.
+     * @param query The query
+     * @param mconn Managed Connection
+     * @param ignoreCache Whether to ignore the cache
+     * @param parameters Parameters of the query
+     * @param keyRange Rows to read
+     * @return The result
+     */
+    static HBaseQueryResult getQueryResult(Query query, HBaseManagedConnection mconn, boolean ignoreCache, Map parameters,
+            HBaseKeyRange keyRange)
+    {
+        ExecutionContext ec = query.getObjectManager();
+        QueryCompilation compilation = query.getCompilation();
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        AbstractClassMetaData acmd = ec.getMetaDataManager().getMetaDataForClass(compilation.getCandidateClass(), clr);
+        int[] fieldNumbers = getFieldNumbersToRead(query.getFetchPlan(), acmd, getDescriptor(ec, acmd), compilation);
+        int batchSize = getBatchSize(query);
+        // Without a filter each row is a result, and only the rows up to the end of the range are needed
+        long limit = compilation.getExprFilter() == null ? query.getRangeToExcl() : Long.MAX_VALUE;
+        Filter filter = new HBaseFilterCompiler(compilation, parameters, acmd, getDescriptor(ec, acmd)).compile();
+        Iterable<Result> rows = getRows(ec, mconn, acmd, fieldNumbers, filter, keyRange, batchSize, limit,
+            isParallelScan(query), isRowOrderNeeded(query, keyRange));
+        return new HBaseQueryResult(query, rows, getObjectLoader(ec, acmd, fieldNumbers, query.getFetchPlan(), ignoreCache),
+            parameters, batchSize);
+    }
+
+    /**
+     * Whether the query only counts its candidates: its result is count(this) alone (count of the candidate alias in
+     * JPQL), with no grouping or range.
+     * @param query The query
+     * @return Whether the query is a count
+     */
+    static boolean isCount(Query query)
+    {
+        QueryCompilation compilation = query.getCompilation();
+        if (compilation == null || query.getType() != Query.SELECT || query.getResultClass() != null
+                || compilation.getResultDistinct() || compilation.getExprGrouping() != null
+                || compilation.getExprHaving() != null || compilation.getSubqueryAliases() != null)
+        {
+            return false;
+        }
+        if (query.getRangeFromIncl() != 0 || query.getRangeToExcl() != Long.MAX_VALUE
+                || query.getRangeFromInclParam() != null || query.getRangeToExclParam() != null)
+        {
+            return false;
+        }
+        Expression[] result = compilation.getExprResult();
+        if (result == null || result.length != 1 || !(result[0] instanceof InvokeExpression))
+        {
+            return false;
+        }
+        InvokeExpression invokeExpr = (InvokeExpression) result[0];
+        List<Expression> args = invokeExpr.getArguments();
+        if (!"count".equalsIgnoreCase(invokeExpr.getOperation()) || args == null || args.size() != 1
+                || !(args.get(0) instanceof PrimaryExpression))
+        {
+            return false;
+        }
+        List<String> tuples = ((PrimaryExpression) args.get(0)).getTuples();
+        return tuples.size() == 1 && tuples.get(0).equals(compilation.getCandidateAlias());
+    }
+
+    /**
+     * Counts the rows of a query for which {@link #isCount(Query)} holds without building any object, when HBase
+     * evaluates its whole filter. Without a filter only the first cell of each row is read, otherwise only the PK
+     * column and those the filter compares.
+     * @param query The query
+     * @param mconn Managed Connection
+     * @param parameters Parameters of the query
+     * @param keyRange Rows to read
+     * @return The number of rows matching the query, null if part of the filter has to be evaluated in memory
+     */
+    static Long count(Query query, HBaseManagedConnection mconn, Map parameters, HBaseKeyRange keyRange)
+    {
+        Iterable<Result> rows = getKeys(query, mconn, parameters, keyRange);
+        if (rows == null)
+        {
+            return null;
+        }
+        long count = 0;
+        try
+        {
+            for (Iterator<Result> it = rows.iterator(); it.hasNext(); it.next())
+            {
+                count++;
+            }
+        }
+        finally
+        {
+            if (rows instanceof ResultScanner)
+            {
+                ((ResultScanner) rows).close();
+            }
+        }
+        return Long.valueOf(count);
+    }
+
+    /**
+     * Deletes the rows matching a bulk delete (a JPQL DELETE or a JDOQL deletePersistentAll) without building any
+     * object, when HBase evaluates its whole filter and it has no range. The keys of the matching rows are read as
+     * for {@link #count(Query, HBaseManagedConnection, Map, HBaseKeyRange)}, and the rows are deleted a batch of keys
+     * at a time with the objects they own, as deleting the objects would. As no object is built, the objects are
+     * deleted one by one instead when the candidate class or one of its subclasses has delete callbacks or listeners
+     * (see {@link #hasDeleteCallbacks(ExecutionContext, AbstractClassMetaData)}).
+     * @param query The query
+     * @param mconn Managed Connection
+     * @param parameters Parameters of the query
+     * @param keyRange Rows to read
+     * @return The number of rows deleted, null if the objects have to be read to know which to delete
+     */
+    static Long delete(Query query, HBaseManagedConnection mconn, Map parameters, HBaseKeyRange keyRange)
+    {
+        ExecutionContext ec = query.getObjectManager();
+        if (query.getRangeFromIncl() != 0 || query.getRangeToExcl() != Long.MAX_VALUE
+                || query.getRangeFromInclParam() != null || query.getRangeToExclParam() != null
+                || ec.getOMFContext().getPersistenceConfiguration().getBooleanProperty("datanucleus.readOnlyDatastore"))
+        {
+            // Left to the deletes of the objects, which check the datastore can be written
+            return null;
+        }
+        AbstractClassMetaData acmd = ec.getMetaDataManager().getMetaDataForClass(query.getCompilation().getCandidateClass(),
+            ec.getClassLoaderResolver());
+        if (hasDeleteCallbacks(ec, acmd))
+        {
+            // Called back with the objects, which have to be read
+            return null;
+        }
+        Iterable<Result> rows = getKeys(query, mconn, parameters, keyRange);
+        if (rows == null)
+        {
+            return null;
+        }
+        HBasePersistenceHandler handler = (HBasePersistenceHandler) ec.getStoreManager().getPersistenceHandler();
+        int batchSize = getBatchSize(query);
+        List<byte[]> keys = new ArrayList<byte[]>(batchSize);
+        long count = 0;
+        try
+        {
+            for (Result result : rows)
+            {
+                keys.add(result.getRow());
+                if (keys.size() == batchSize)
+                {
+                    handler.deleteRows(ec, mconn, acmd, keys);
+                    count += keys.size();
+                    keys.clear();
+                }
+            }
+            if (!keys.isEmpty())
+            {
+                handler.deleteRows(ec, mconn, acmd, keys);
+                count += keys.size();
+            }
+        }
+        catch (IOException e)
+        {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+        finally
+        {
+            if (rows instanceof ResultScanner)
+            {
+                ((ResultScanner) rows).close();
+            }
+        }
+        if (NucleusLogger.QUERY.isDebugEnabled())
+        {
+            NucleusLogger.QUERY.debug("Deleted " + count + " rows of " + acmd.getFullClassName() + " by key");
+        }
+        return Long.valueOf(count);
+    }
+
+    /**
+     * Whether deleting the objects of a class, or of one of its subclasses, calls anything back: the class implements
+     * DeleteCallback, it has JPA callback methods or entity listeners, or a delete lifecycle listener of the
+     * persistence manager listens to it.
+     * @param ec ExecutionContext
+     * @param acmd Metadata of the class
+     * @return Whether the objects must be built to be deleted
+     */
+    private static boolean hasDeleteCallbacks(ExecutionContext ec, AbstractClassMetaData acmd)
+    {
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        List<String> classNames = new ArrayList<String>();
+        classNames.add(acmd.getFullClassName());
+        String[] subclassNames = ec.getMetaDataManager().getSubclassesForClass(acmd.getFullClassName(), true);
+        if (subclassNames != null)
+        {
+            classNames.addAll(Arrays.asList(subclassNames));
+        }
+        List<LifecycleListenerForClass> listeners = getLifecycleListeners(((ObjectManager) ec).getCallbackHandler());
+        for (String className : classNames)
+        {
+            Class<?> cls = clr.classForName(className);
+            if (DeleteCallback.class.isAssignableFrom(cls))
+            {
+                return true;
+            }
+            for (AbstractClassMetaData cmd = ec.getMetaDataManager().getMetaDataForClass(cls, clr); cmd != null;
+                    cmd = cmd.getSuperAbstractClassMetaData())
+            {
+                if (cmd.getListeners() != null && !cmd.getListeners().isEmpty())
+                {
+                    return true;
+                }
+            }
+            for (LifecycleListenerForClass listener : listeners)
+            {
+                if (listener.getListener() instanceof DeleteLifecycleListener && listener.forClass(cls))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The JDO lifecycle listeners registered with a callback handler, none for other handlers
+     */
+    @SuppressWarnings("unchecked")
+    private static List<LifecycleListenerForClass> getLifecycleListeners(final CallbackHandler callbackHandler)
+    {
+        if (!(callbackHandler instanceof JDOCallbackHandler))
+        {
+            return Collections.emptyList();
+        }
+        try
+        {
+            // Only readable through the handler's own working copy
+            return (List<LifecycleListenerForClass>) AccessController.doPrivileged(new PrivilegedExceptionAction<Object>()
+            {
+                public Object run() throws Exception
+                {
+                    Method method = JDOCallbackHandler.class.getDeclaredMethod("getListenersWorkingCopy");
+                    method.setAccessible(true);
+                    return method.invoke(callbackHandler);
+                }
+            });
+        }
+        catch (PrivilegedActionException e)
+        {
+            throw new NucleusException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Runs a JPQL UPDATE by writing the new values of the matching rows as batched Puts, a batch of rows at a time,
+     * without going through the objects. The values are encoded as {@link HBaseInsertFieldManager} stores them. Rows
+     * whose ids are in the caches are evicted from them, as their objects are stale.
+     * <p>
+     * When HBase evaluates the whole filter and the new values are literals or parameters, only the keys of the
+     * matching rows are read. Otherwise the rows are read with the columns the filter and the new values use, into
+     * managed objects that the in-memory evaluator filters and computes the new values from. These objects are made
+     * through the ExecutionContext like query results are, so this fallback costs as much as a query on the same
+     * filter, and the rows read but filtered out in memory stay in the L1 cache. Only the updated rows are evicted.
+     * @param query The query
+     * @param mconn Managed Connection
+     * @param parameters Parameters of the query
+     * @param keyRange Rows to read
+     * @return The number of rows updated
+     */
+    static Long update(Query query, HBaseManagedConnection mconn, Map parameters, HBaseKeyRange keyRange)
+    {
+        ExecutionContext ec = query.getObjectManager();
+        QueryCompilation compilation = query.getCompilation();
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        AbstractClassMetaData acmd = ec.getMetaDataManager().getMetaDataForClass(compilation.getCandidateClass(), clr);
+        HBaseClassDescriptor descriptor = getDescriptor(ec, acmd);
+
+        Expression[] assignments = compilation.getExprUpdate();
+        int[] fieldNumbers = new int[assignments.length];
+        Object[] values = new Object[assignments.length];
+        boolean constant = true;
+        for (int i = 0; i < assignments.length; i++)
+        {
+            Expression assignment = assignments[i];
+            int fieldNumber = -1;
+            if (assignment instanceof DyadicExpression && assignment.getOperator() == Expression.OP_EQ)
+            {
+                fieldNumber = HBaseFilterCompiler.getFieldNumber(assignment.getLeft(), compilation, acmd);
+            }
+            if (fieldNumber < 0)
+            {
+                throw new NucleusUserException("Unsupported assignment in bulk update : " + assignment);
+            }
+            if (fieldNumber == descriptor.getPKFieldNumber() || descriptor.getRelationType(fieldNumber) != Relation.NONE)
+            {
+                throw new NucleusUserException("Field " + acmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber).getFullFieldName()
+                    + " can't be set by a bulk update, only non relation fields other than the primary key can");
+            }
+            fieldNumbers[i] = fieldNumber;
+            values[i] = HBaseFilterCompiler.getValue(assignment.getRight(), parameters);
+            constant &= values[i] != HBaseFilterCompiler.NO_VALUE;
+        }
+
+        int batchSize = getBatchSize(query);
+        List<byte[]> keys = new ArrayList<byte[]>(batchSize);
+        List<Object[]> rowValues = new ArrayList<Object[]>(batchSize);
+        long count = 0;
+        Iterable<Result> rows = constant ? getKeys(query, mconn, parameters, keyRange) : null;
+        try
+        {
+            if (rows != null)
+            {
+                for (Result result : rows)
+                {
+                    keys.add(result.getRow());
+                    rowValues.add(values);
+                    if (keys.size() == batchSize)
+                    {
+                        count += writeRows(ec, mconn, descriptor, acmd, fieldNumbers, keys, rowValues);
+                    }
+                }
+            }
+            else
+            {
+                // Read into managed objects holding the fields the filter and the new values use, as the in-memory
+                // evaluator only works on objects
+                Set<Integer> readFieldNumbers = new TreeSet<Integer>();
+                readFieldNumbers.add(descriptor.getPKFieldNumber());
+                addFieldNumbers(compilation.getExprFilter(), compilation, acmd, readFieldNumbers);
+                for (Expression assignment : assignments)
+                {
+                    addFieldNumbers(assignment.getRight(), compilation, acmd, readFieldNumbers);
+                }
+                int[] read = toArray(readFieldNumbers);
+                Filter filter = new HBaseFilterCompiler(compilation, parameters, acmd, descriptor).compile();
+                rows = getRows(ec, mconn, acmd, read, filter, keyRange, batchSize, Long.MAX_VALUE, isParallelScan(query), false);
+                ObjectLoader loader = getObjectLoader(ec, acmd, read, query.getFetchPlan(), false);
+                ApiAdapter api = ec.getApiAdapter();
+                Map<String, Object> state = new HashMap<String, Object>();
+                InMemoryExpressionEvaluator evaluator = new InMemoryExpressionEvaluator(ec, parameters, state,
+                    query.getParsedImports(), clr, compilation.getCandidateAlias());
+                List<Object> candidates = new ArrayList<Object>(batchSize);
+                for (Iterator<Result> it = rows.iterator(); it.hasNext();)
+                {
+                    candidates.add(loader.load(it.next()));
+                    if (candidates.size() < batchSize && it.hasNext())
+                    {
+                        continue;
+                    }
+                    for (Object candidate : filter(query, candidates, parameters))
+                    {
+                        state.put(compilation.getCandidateAlias(), candidate);
+                        Object[] candidateValues = new Object[assignments.length];
+                        for (int i = 0; i < assignments.length; i++)
+                        {
+                            candidateValues[i] = values[i] != HBaseFilterCompiler.NO_VALUE ? values[i]
+                                : evaluator.evaluate(assignments[i].getRight());
+                        }
+                        keys.add(descriptor.getRowKey(api.getTargetKeyForSingleFieldIdentity(api.getIdForObject(candidate))));
+                        rowValues.add(candidateValues);
+                    }
+                    candidates.clear();
+                    count += writeRows(ec, mconn, descriptor, acmd, fieldNumbers, keys, rowValues);
+                }
+            }
+            count += writeRows(ec, mconn, descriptor, acmd, fieldNumbers, keys, rowValues);
+        }
+        catch (IOException e)
+        {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+        finally
+        {
+            if (rows instanceof ResultScanner)
+            {
+                ((ResultScanner) rows).close();
+            }
+        }
+        if (NucleusLogger.QUERY.isDebugEnabled())
+        {
+            NucleusLogger.QUERY.debug("Updated " + count + " rows of " + acmd.getFullClassName());
+        }
+        return Long.valueOf(count);
+    }
+
+    /**
+     * Writes the new values of rows of a bulk update, and evicts their ids from the caches.
+     * @param fieldNumbers Fields set
+     * @param keys Keys of the rows, cleared once written
+     * @param rowValues Values of the fields for each row, cleared once written
+     * @return Number of rows written
+     */
+    private static int writeRows(ExecutionContext ec, HBaseManagedConnection mconn, HBaseClassDescriptor descriptor,
+            AbstractClassMetaData acmd, int[] fieldNumbers, List<byte[]> keys, List<Object[]> rowValues) throws IOException
+    {
+        List<Put> puts = new ArrayList<Put>(keys.size());
+        List<Delete> deletes = new ArrayList<Delete>();
+        for (int i = 0; i < keys.size(); i++)
+        {
+            byte[] key = keys.get(i);
+            Put put = new Put(key);
+            Delete delete = new Delete(key);
+            HBaseInsertFieldManager fm = new HBaseInsertFieldManager(descriptor, put, delete);
+            for (int j = 0; j < fieldNumbers.length; j++)
+            {
+                storeField(fm, acmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumbers[j]), rowValues.get(i)[j]);
+            }
+            if (!put.isEmpty())
+            {
+                puts.add(put);
+            }
+            // An empty delete would remove the whole row
+            if (!delete.isEmpty())
+            {
+                deletes.add(delete);
+            }
+
+            Object id = descriptor.newObjectId(ec.getApiAdapter(), key);
+            Object pc = ec.getObjectFromCache(id);
+            if (pc != null)
+            {
+                ec.removeObjectFromCache(pc, id);
+            }
+            if (ec instanceof ObjectManager)
+            {
+                ((ObjectManager) ec).removeObjectFromLevel2Cache(id);
+            }
+        }
+        if (!puts.isEmpty())
+        {
+            mconn.put(descriptor.getTableName(), puts);
+        }
+        if (!deletes.isEmpty())
+        {
+            mconn.delete(descriptor.getTableName(), deletes);
+        }
+        int count = keys.size();
+        keys.clear();
+        rowValues.clear();
+        return count;
+    }
+
+    /**
+     * Stores the value set by a bulk update into a field, converting numbers to the type of the field as an
+     * assignment would.
+     */
+    private static void storeField(HBaseInsertFieldManager fm, AbstractMemberMetaData mmd, Object value)
+    {
+        int fieldNumber = mmd.getAbsoluteFieldNumber();
+        Class<?> type = mmd.getType();
+        if (value == null)
+        {
+            if (type.isPrimitive())
+            {
+                throw new NucleusUserException("Field " + mmd.getFullFieldName() + " can't be set to null");
+            }
+            fm.storeObjectField(fieldNumber, null);
+            return;
+        }
+        if (value instanceof Number && (type.isPrimitive() || Number.class.isAssignableFrom(type)))
+        {
+            Number number = (Number) value;
+            if (type == int.class || type == Integer.class)
+            {
+                value = Integer.valueOf(number.intValue());
+            }
+            else if (type == long.class || type == Long.class)
+            {
+                value = Long.valueOf(number.longValue());
+            }
+            else if (type == short.class || type == Short.class)
+            {
+                value = Short.valueOf(number.shortValue());
+            }
+            else if (type == byte.class || type == Byte.class)
+            {
+                value = Byte.valueOf(number.byteValue());
+            }
+            else if (type == double.class || type == Double.class)
+            {
+                value = Double.valueOf(number.doubleValue());
+            }
+            else if (type == float.class || type == Float.class)
+            {
+                value = Float.valueOf(number.floatValue());
+            }
+        }
+        else if (value instanceof String && (type == char.class || type == Character.class) && ((String) value).length() == 1)
+        {
+            value = Character.valueOf(((String) value).charAt(0));
+        }
+
+        if (type == boolean.class && value instanceof Boolean)
+        {
+            fm.storeBooleanField(fieldNumber, ((Boolean) value).booleanValue());
+        }
+        else if (type == char.class && value instanceof Character)
+        {
+            fm.storeCharField(fieldNumber, ((Character) value).charValue());
+        }
+        else if (type == int.class && value instanceof Integer)
+        {
+            fm.storeIntField(fieldNumber, ((Integer) value).intValue());
+        }
+        else if (type == long.class && value instanceof Long)
+        {
+            fm.storeLongField(fieldNumber, ((Long) value).longValue());
+        }
+        else if (type == short.class && value instanceof Short)
+        {
+            fm.storeShortField(fieldNumber, ((Short) value).shortValue());
+        }
+        else if (type == byte.class && value instanceof Byte)
+        {
+            fm.storeByteField(fieldNumber, ((Byte) value).byteValue());
+        }
+        else if (type == double.class && value instanceof Double)
+        {
+            fm.storeDoubleField(fieldNumber, ((Double) value).doubleValue());
+        }
+        else if (type == float.class && value instanceof Float)
+        {
+            fm.storeFloatField(fieldNumber, ((Float) value).floatValue());
+        }
+        else if (type == String.class && value instanceof String)
+        {
+            fm.storeStringField(fieldNumber, (String) value);
+        }
+        else if (!type.isPrimitive() && type.isInstance(value))
+        {
+            fm.storeObjectField(fieldNumber, value);
+        }
+        else
+        {
+            throw new NucleusUserException("Field " + mmd.getFullFieldName() + " can't be set to " + value + " of type "
+                + value.getClass().getName());
+        }
+    }
+
+    /**
+     * @param query The query
+     * @param candidates Objects of the candidate class
+     * @param parameters Parameters of the query
+     * @return The candidates that match the filter of the query
+     */
+    static Collection filter(Query query, Collection candidates, Map parameters)
+    {
+        QueryCompilation compilation = query.getCompilation();
+        if (compilation.getExprFilter() == null || candidates.isEmpty())
+        {
+            return candidates;
+        }
+        JavaQueryEvaluator evaluator;
+        if ("JPQL".equals(compilation.getQueryLanguage()))
+        {
+            evaluator = new JPQLEvaluator(query, candidates, compilation, parameters, query.getObjectManager().getClassLoaderResolver());
+        }
+        else
+        {
+            evaluator = new JDOQLEvaluator(query, candidates, compilation, parameters, query.getObjectManager().getClassLoaderResolver());
+        }
+        return evaluator.execute(true, false, false, false, false);
+    }
+
+    /**
+     * Rows matching a query, with only the cells needed to know they match: the first cell of each row without a
+     * filter, otherwise the PK column and those the filter compares.
+     * @return The rows, null if part of the filter has to be evaluated in memory
+     */
+    private static Iterable<Result> getKeys(Query query, HBaseManagedConnection mconn, Map parameters, HBaseKeyRange keyRange)
+    {
+        ExecutionContext ec = query.getObjectManager();
+        QueryCompilation compilation = query.getCompilation();
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        AbstractClassMetaData acmd = ec.getMetaDataManager().getMetaDataForClass(compilation.getCandidateClass(), clr);
+        HBaseClassDescriptor descriptor = getDescriptor(ec, acmd);
+        HBaseFilterCompiler filterCompiler = new HBaseFilterCompiler(compilation, parameters, acmd, descriptor);
+        Filter filter = filterCompiler.compile();
+        if (!filterCompiler.isExact())
+        {
+            return null;
+        }
+
+        Set<Integer> fieldNumbers = new TreeSet<Integer>();
+        fieldNumbers.add(descriptor.getPKFieldNumber());
+        if (filter == null)
+        {
+            filter = new FirstKeyOnlyFilter();
+        }
+        else
+        {
+            // The PK column is there for every row, whatever the filter columns
+            addFieldNumbers(compilation.getExprFilter(), compilation, acmd, fieldNumbers);
+        }
+        return getRows(ec, mconn, acmd, toArray(fieldNumbers), filter, keyRange, getBatchSize(query), Long.MAX_VALUE,
+            isParallelScan(query), false);
+    }
+
     /**
      * Convenience method to get all objects of the candidate type (and optional subclasses) from the specified XML
      * connection.
@@ -50,66 +828,289 @@ class HBaseQueryUtils
      * @param candidateClass Candidate
      * @param subclasses Include subclasses?
      * @param ignoreCache Whether to ignore the cache
+     * @param fetchPlan Fetch plan of the query, whose fields are loaded from the rows read
+     * @param compilation Compilation of the query, whose filter is pushed to HBase where possible. May be null
+     * @param parameters Parameters of the query
+     * @param keyRange Rows to read, from {@link #getKeyRange(Query, Class, Map)}
+     * @param parallel Whether to scan the regions of the table in parallel
+     * @param rowOrder Whether the objects must be in key order, when scanning in parallel
      * @return List of objects of the candidate type (or subclass)
      */
-    @SuppressWarnings("unchecked")
-    static List<Object> getObjectsOfCandidateType(final ExecutionContext om, final HBaseManagedConnection mconn, Class<?> candidateClass,
-            boolean subclasses, boolean ignoreCache)
+    static List<Object> getObjectsOfCandidateType(ExecutionContext om, HBaseManagedConnection mconn, Class<?> candidateClass,
+            boolean subclasses, boolean ignoreCache, FetchPlan fetchPlan, QueryCompilation compilation, Map parameters,
+            HBaseKeyRange keyRange, boolean parallel, boolean rowOrder)
     {
+        ClassLoaderResolver clr = om.getClassLoaderResolver();
+        AbstractClassMetaData acmd = om.getMetaDataManager().getMetaDataForClass(candidateClass, clr);
+        int[] fieldNumbers = getFieldNumbersToRead(fetchPlan, acmd, getDescriptor(om, acmd), compilation);
+        int batchSize = ((HBaseStoreManager) om.getStoreManager()).getQueryBatchSize();
+        Filter filter = new HBaseFilterCompiler(compilation, parameters, acmd, getDescriptor(om, acmd)).compile();
+        Iterable<Result> rows = getRows(om, mconn, acmd, fieldNumbers, filter, keyRange, batchSize, Long.MAX_VALUE, parallel,
+            rowOrder);
+        ObjectLoader loader = getObjectLoader(om, acmd, fieldNumbers, fetchPlan, ignoreCache);
         List<Object> results = new ArrayList<Object>();
         try
         {
-            final ClassLoaderResolver clr = om.getClassLoaderResolver();
-            final AbstractClassMetaData acmd = om.getMetaDataManager().getMetaDataForClass(candidateClass, clr);
+            for (Result result : rows)
+            {
+                results.add(loader.load(result));
+            }
+        }
+        finally
+        {
+            if (rows instanceof ResultScanner)
+            {
+                ((ResultScanner) rows).close();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return Number of rows read from HBase at a time for the query
+     */
+    private static int getBatchSize(Query query)
+    {
+        int fetchSize = query.getFetchPlan().getFetchSize();
+        if (fetchSize > 0)
+        {
+            return fetchSize;
+        }
+        return ((HBaseStoreManager) query.getObjectManager().getStoreManager()).getQueryBatchSize();
+    }
+
+    /**
+     * The fields of the candidate class that a query reads from its rows and loads into the objects: the PK, the non
+     * relation fields of the fetch plan, and those the filter and ordering use, so that evaluating the query doesn't
+     * fetch them again object by object. Relation fields are left to be loaded when used.
+     */
+    private static int[] getFieldNumbersToRead(FetchPlan fetchPlan, AbstractClassMetaData acmd, HBaseClassDescriptor descriptor,
+            QueryCompilation compilation)
+    {
+        Set<Integer> fieldNumbers = new TreeSet<Integer>();
+        for (int fieldNumber : acmd.getPKMemberPositions())
+        {
+            fieldNumbers.add(fieldNumber);
+        }
+        for (int fieldNumber : fetchPlan.getFetchPlanForClass(acmd).getMemberNumbers())
+        {
+            fieldNumbers.add(fieldNumber);
+        }
+        if (compilation != null)
+        {
+            addFieldNumbers(compilation.getExprFilter(), compilation, acmd, fieldNumbers);
+            if (compilation.getExprOrdering() != null)
+            {
+                for (Expression expr : compilation.getExprOrdering())
+                {
+                    addFieldNumbers(expr, compilation, acmd, fieldNumbers);
+                }
+            }
+        }
+        for (int fieldNumber : descriptor.getRelationFieldNumbers())
+        {
+            fieldNumbers.remove(fieldNumber);
+        }
+        return toArray(fieldNumbers);
+    }
+
+    private static HBaseClassDescriptor getDescriptor(ExecutionContext ec, AbstractClassMetaData acmd)
+    {
+        return ((HBaseStoreManager) ec.getStoreManager()).getDescriptor(acmd, ec.getClassLoaderResolver());
+    }
+
+    private static int[] toArray(Set<Integer> fieldNumbers)
+    {
+        int[] result = new int[fieldNumbers.size()];
+        int i = 0;
+        for (Integer fieldNumber : fieldNumbers)
+        {
+            result[i++] = fieldNumber;
+        }
+        return result;
+    }
+
+    /**
+     * Adds the fields of the candidate that the expression refers to.
+     */
+    private static void addFieldNumbers(Expression expr, QueryCompilation compilation, AbstractClassMetaData acmd,
+            Set<Integer> fieldNumbers)
+    {
+        if (expr == null)
+        {
+            return;
+        }
+        if (expr instanceof PrimaryExpression)
+        {
+            List<String> tuples = ((PrimaryExpression) expr).getTuples();
+            String name = tuples.get(0);
+            if (tuples.size() > 1 && name.equals(compilation.getCandidateAlias()))
+            {
+                name = tuples.get(1);
+            }
+            AbstractMemberMetaData mmd = acmd.getMetaDataForMember(name);
+            if (mmd != null)
+            {
+                fieldNumbers.add(mmd.getAbsoluteFieldNumber());
+            }
+        }
+        else if (expr instanceof InvokeExpression && ((InvokeExpression) expr).getArguments() != null)
+        {
+            for (Expression arg : ((InvokeExpression) expr).getArguments())
+            {
+                addFieldNumbers(arg, compilation, acmd, fieldNumbers);
+            }
+        }
+        addFieldNumbers(expr.getLeft(), compilation, acmd, fieldNumbers);
+        addFieldNumbers(expr.getRight(), compilation, acmd, fieldNumbers);
+    }
 
-            Iterator<Result> it = (Iterator<Result>) AccessController.doPrivileged(new PrivilegedExceptionAction<Object>()
+    /**
+     * Rows of the candidate class read by a query.
+     * @param fieldNumbers Fields whose columns are read
+     * @param filter Filter evaluated by HBase, null for none
+     * @param caching Number of rows fetched from the region server at a time
+     * @param limit Number of rows needed, each a result of the query, Long.MAX_VALUE for all rows
+     * @param parallel Whether a scan reads the regions of the table in parallel
+     * @param rowOrder Whether the rows of a parallel scan are read in key order
+     * @return The rows, a ResultScanner to close when they are read by a scan
+     */
+    @SuppressWarnings("unchecked")
+    private static Iterable<Result> getRows(final ExecutionContext om, final HBaseManagedConnection mconn,
+            final AbstractClassMetaData acmd, final int[] fieldNumbers, final Filter filter, final HBaseKeyRange keyRange,
+            final int caching, final long limit, final boolean parallel, final boolean rowOrder)
+    {
+        final ClassLoaderResolver clr = om.getClassLoaderResolver();
+        try
+        {
+            return (Iterable<Result>) AccessController.doPrivileged(new PrivilegedExceptionAction<Object>()
             {
                 public Object run() throws Exception
                 {
-                    final HTable table = mconn.getHTable(Utils.getTableName(acmd));
+                    final HBaseClassDescriptor descriptor = getDescriptor(om, acmd);
+                    final String tableName = descriptor.getTableName();
+                    if (filter != null && NucleusLogger.QUERY.isDebugEnabled())
+                    {
+                        NucleusLogger.QUERY.debug("Filter evaluated by HBase : " + filter);
+                    }
 
-                    final Scan scan = new Scan();
-                    final int[] fieldNumbers = acmd.getAllMemberPositions();
-                    for (int i = 0; i < fieldNumbers.length; i++)
+                    if (keyRange.keys != null)
                     {
-                        final byte[] familyNames = Utils.getFamilyName(acmd, fieldNumbers[i]).getBytes();
-                        final byte[] columnNames = Utils.getQualifierName(acmd, fieldNumbers[i]).getBytes();
-                        scan.addColumn(familyNames, columnNames);
+                        if (NucleusLogger.QUERY.isDebugEnabled())
+                        {
+                            NucleusLogger.QUERY.debug("Getting " + keyRange.keys.size() + " rows by key");
+                        }
+                        List<Get> gets = new ArrayList<Get>(keyRange.keys.size());
+                        for (byte[] key : keyRange.keys)
+                        {
+                            Get get = new Get(key);
+                            descriptor.addColumns(get, fieldNumbers);
+                            if (filter != null)
+                            {
+                                get.setFilter(filter);
+                            }
+                            gets.add(get);
+                        }
+                        List<Result> rows = new ArrayList<Result>(gets.size());
+                        for (Result result : mconn.get(tableName, gets))
+                        {
+                            if (result != null && !result.isEmpty())
+                            {
+                                rows.add(result);
+                            }
+                        }
+                        return rows;
                     }
-                    final ResultScanner scanner = table.getScanner(scan);
-                    final Iterator<Result> it = scanner.iterator();
-                    return it;
+
+                    // Make pending writes of this connection visible to the scan
+                    mconn.flushTable(tableName);
+                    final HTable table = mconn.getHTable(tableName);
+
+                    final Scan scan = new Scan(keyRange.startRow, keyRange.stopRow);
+                    descriptor.addColumns(scan, fieldNumbers);
+                    scan.setCaching((int) Math.max(1, Math.min(caching, limit)));
+                    if (filter != null)
+                    {
+                        scan.setFilter(filter);
+                    }
+                    else if (limit != Long.MAX_VALUE)
+                    {
+                        // Each region server stops after that many rows, the result closes the scanner once it has them
+                        scan.setFilter(new PageFilter(limit));
+                    }
+                    if (parallel)
+                    {
+                        HBaseStoreManager storeMgr = (HBaseStoreManager) om.getStoreManager();
+                        List<Scan> scans = HBaseParallelScanner.split(table, scan, keyRange.startRow, keyRange.stopRow);
+                        if (NucleusLogger.QUERY.isDebugEnabled())
+                        {
+                            NucleusLogger.QUERY.debug("Scanning " + scans.size() + " regions of " + tableName + " in parallel");
+                        }
+                        if (scans.size() > 1)
+                        {
+                            // Opened here, a scanner doesn't need the table handle once open
+                            List<ResultScanner> scanners = new ArrayList<ResultScanner>(scans.size());
+                            try
+                            {
+                                for (Scan regionScan : scans)
+                                {
+                                    scanners.add(table.getScanner(regionScan));
+                                }
+                            }
+                            catch (IOException e)
+                            {
+                                for (ResultScanner scanner : scanners)
+                                {
+                                    scanner.close();
+                                }
+                                throw e;
+                            }
+                            return new HBaseParallelScanner(tableName, scanners, scan.getCaching(), rowOrder,
+                                storeMgr.getExecutor());
+                        }
+                    }
+                    return table.getScanner(scan);
                 }
             });
+        }
+        catch (PrivilegedActionException e)
+        {
+            throw new NucleusDataStoreException(e.getMessage(), e.getCause());
+        }
+    }
 
-            while (it.hasNext())
+    /**
+     * @param fieldNumbers Fields loaded from the rows, whose columns they hold
+     * @return Loader of the objects of the candidate class from their rows
+     */
+    private static ObjectLoader getObjectLoader(final ExecutionContext om, AbstractClassMetaData acmd, final int[] fieldNumbers,
+            final FetchPlan fetchPlan, final boolean ignoreCache)
+    {
+        ClassLoaderResolver clr = om.getClassLoaderResolver();
+        final Type type = new Type(clr.classForName(acmd.getFullClassName()));
+        return new ObjectLoader()
+        {
+            public Object load(final Result result)
             {
-                final Result result = it.next();
-                results.add(om.findObjectUsingAID(new Type(clr.classForName(acmd.getFullClassName())), new FieldValues2()
+                return om.findObjectUsingAID(type, new FieldValues2()
                 {
                     // StateManager calls the fetchFields method
                     public void fetchFields(ObjectProvider sm)
                     {
-                        sm.replaceFields(acmd.getPKMemberPositions(), new HBaseFetchFieldManager(sm, result));
+                        sm.replaceFields(fieldNumbers, new HBaseFetchFieldManager(sm, result));
                     }
 
                     public void fetchNonLoadedFields(ObjectProvider sm)
                     {
-                        sm.replaceNonLoadedFields(acmd.getPKMemberPositions(), new HBaseFetchFieldManager(sm, result));
+                        sm.replaceNonLoadedFields(fieldNumbers, new HBaseFetchFieldManager(sm, result));
                     }
 
                     public FetchPlan getFetchPlanForLoading()
                     {
-                        return om.getFetchPlan();
+                        return fetchPlan;
                     }
-                }, ignoreCache, true));
-
+                }, ignoreCache, true);
             }
-        }
-        catch (PrivilegedActionException e)
-        {
-            throw new NucleusDataStoreException(e.getMessage(), e.getCause());
-        }
-        return results;
+        };
     }
 }
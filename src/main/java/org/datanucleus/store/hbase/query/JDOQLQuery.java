@@ -19,6 +19,7 @@ package org.datanucleus.store.hbase.query;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -75,6 +76,7 @@ public class JDOQLQuery extends AbstractJDOQLQuery
                 NucleusLogger.QUERY.debug(LOCALISER.msg("021046", "JDOQL", getSingleStringQuery(), null));
             }
             List candidates = null;
+            boolean applyOrdering = true;
             if (candidateCollection != null)
             {
                 candidates = new ArrayList(candidateCollection);
@@ -90,12 +92,31 @@ public class JDOQLQuery extends AbstractJDOQLQuery
             }
             else
             {
-                candidates = HBaseQueryUtils.getObjectsOfCandidateType(ec, mconn, candidateClass, subclasses, ignoreCache);
+                HBaseKeyRange keyRange = HBaseQueryUtils.getKeyRange(this, candidateClass, parameters);
+                if (HBaseQueryUtils.isCount(this))
+                {
+                    // Counted by reading the keys of the rows, without building the objects
+                    Long count = HBaseQueryUtils.count(this, mconn, parameters, keyRange);
+                    if (count != null)
+                    {
+                        return Collections.singletonList(count);
+                    }
+                }
+                if (HBaseQueryUtils.isStreamable(this, keyRange))
+                {
+                    // The result reads the rows as it is iterated, from a scanner that no longer needs the connection
+                    return HBaseQueryUtils.getQueryResult(this, mconn, ignoreCache, parameters, keyRange);
+                }
+                candidates = HBaseQueryUtils.getObjectsOfCandidateType(ec, mconn, candidateClass, subclasses, ignoreCache, getFetchPlan(), compilation, parameters, keyRange,
+                    HBaseQueryUtils.isParallelScan(this), HBaseQueryUtils.isRowOrderNeeded(this, keyRange));
+                // Rows read in the order asked for need no sorting
+                applyOrdering = !keyRange.isOrdering(compilation, ec.getMetaDataManager().getMetaDataForClass(candidateClass,
+                    ec.getClassLoaderResolver()));
             }
 
             // Apply any result restrictions to the results
             JavaQueryEvaluator resultMapper = new JDOQLEvaluator(this, candidates, compilation, parameters, ec.getClassLoaderResolver());
-            Collection results = resultMapper.execute(true, true, true, true, true);
+            Collection results = resultMapper.execute(true, applyOrdering, true, true, true);
 
             if (NucleusLogger.QUERY.isDebugEnabled())
             {
@@ -109,4 +130,32 @@ public class JDOQLQuery extends AbstractJDOQLQuery
             mconn.release();
         }
     }
+
+    /**
+     * Deletes the matching rows by key when HBase evaluates the whole filter, without building the objects; otherwise
+     * the objects are read and deleted one by one.
+     */
+    protected long performDeletePersistentAll(Map parameters)
+    {
+        if (candidateCollection != null || candidateExtent != null || unique)
+        {
+            return super.performDeletePersistentAll(parameters);
+        }
+        compileInternal(true, parameters);
+        HBaseManagedConnection mconn = (HBaseManagedConnection) ec.getStoreManager().getConnection(ec);
+        try
+        {
+            HBaseKeyRange keyRange = HBaseQueryUtils.getKeyRange(this, candidateClass, parameters);
+            Long deleted = HBaseQueryUtils.delete(this, mconn, parameters, keyRange);
+            if (deleted != null)
+            {
+                return deleted.longValue();
+            }
+        }
+        finally
+        {
+            mconn.release();
+        }
+        return super.performDeletePersistentAll(parameters);
+    }
 }
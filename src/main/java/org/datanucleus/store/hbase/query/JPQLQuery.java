@@ -19,6 +19,7 @@ package org.datanucleus.store.hbase.query;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -76,10 +77,44 @@ public class JPQLQuery extends AbstractJPQLQuery
                 NucleusLogger.QUERY.debug(LOCALISER.msg("021046", "JPQL", getSingleStringQuery(), null));
             }
             List candidates = null;
+            boolean applyOrdering = true;
             if (candidateCollection == null)
             {
+                HBaseKeyRange keyRange = HBaseQueryUtils.getKeyRange(this, candidateClass, parameters);
+                if (type == BULK_DELETE)
+                {
+                    // Deleted by reading the keys of the rows, without building the objects
+                    Long deleted = HBaseQueryUtils.delete(this, mconn, parameters, keyRange);
+                    if (deleted != null)
+                    {
+                        return deleted;
+                    }
+                }
+                if (type == BULK_UPDATE)
+                {
+                    // Written as batched Puts, without going through the objects
+                    return HBaseQueryUtils.update(this, mconn, parameters, keyRange);
+                }
+                if (HBaseQueryUtils.isCount(this))
+                {
+                    // Counted by reading the keys of the rows, without building the objects
+                    Long count = HBaseQueryUtils.count(this, mconn, parameters, keyRange);
+                    if (count != null)
+                    {
+                        return Collections.singletonList(count);
+                    }
+                }
+                if (HBaseQueryUtils.isStreamable(this, keyRange))
+                {
+                    // The result reads the rows as it is iterated, from a scanner that no longer needs the connection
+                    return HBaseQueryUtils.getQueryResult(this, mconn, ignoreCache, parameters, keyRange);
+                }
                 candidates = HBaseQueryUtils.getObjectsOfCandidateType(ec, mconn, candidateClass, subclasses,
-                    ignoreCache);
+                    ignoreCache, getFetchPlan(), compilation, parameters, keyRange, HBaseQueryUtils.isParallelScan(this),
+                    HBaseQueryUtils.isRowOrderNeeded(this, keyRange));
+                // Rows read in the order asked for need no sorting
+                applyOrdering = !keyRange.isOrdering(compilation, ec.getMetaDataManager().getMetaDataForClass(candidateClass,
+                    ec.getClassLoaderResolver()));
             }
             else
             {
@@ -89,7 +124,7 @@ public class JPQLQuery extends AbstractJPQLQuery
             // Apply any result restrictions to the results
             JavaQueryEvaluator resultMapper = new JPQLEvaluator(this, candidates, compilation, 
                 parameters, ec.getClassLoaderResolver());
-            Collection results = resultMapper.execute(true, true, true, true, true);
+            Collection results = resultMapper.execute(true, applyOrdering, true, true, true);
 
             if (NucleusLogger.QUERY.isDebugEnabled())
             {
@@ -0,0 +1,100 @@
+/**********************************************************************
+ * Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.store.hbase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.JDOClassLoaderResolver;
+import org.datanucleus.test.models.MyEnum;
+import org.junit.Test;
+
+/**
+ */
+public class CompactFieldCodecTest
+{
+    private final ClassLoaderResolver clr = new JDOClassLoaderResolver();
+
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+        map.put("a", 1L);
+        map.put(2, Utils.newTreeSet("x", "y"));
+        map.put(MyEnum.TWO, null);
+
+        Object[] values = {"s", Boolean.TRUE, (byte) 1, (short) 2, 'c', -3, Long.MAX_VALUE, 1.5f, 2.5d, new Date(),
+                new BigDecimal("-12.3400"), new BigInteger("123456789012345678901234567890"), MyEnum.ONE,
+                Utils.newArrayList(1, null, "b"), Utils.newLinkedList(4L), Utils.newHashSet('q'),
+                Utils.newLinkedHashSet(MyEnum.ONE, MyEnum.TWO), new HashMap<Object, Object>(), map};
+        for (Object value : values)
+        {
+            byte[] bytes = CompactFieldCodec.INSTANCE.encode(value);
+            assertEquals(CompactFieldCodec.FORMAT_MARKER, bytes[0]);
+            Object decoded = CompactFieldCodec.INSTANCE.decode(bytes, clr);
+            assertEquals(value, decoded);
+            assertEquals(value.getClass(), decoded.getClass());
+        }
+
+        byte[] bytes = new byte[]{0x1, (byte) 0xAC};
+        assertArrayEquals(bytes, (byte[]) CompactFieldCodec.INSTANCE.decode(CompactFieldCodec.INSTANCE.encode(bytes), clr));
+    }
+
+    @Test
+    public void testSmallerThanJavaSerialization() throws IOException
+    {
+        assertTrue(CompactFieldCodec.INSTANCE.encode(42L).length < Utils.serializeObject(42L).length);
+        assertTrue(CompactFieldCodec.INSTANCE.encode(Utils.newArrayList("a", "b")).length < Utils.serializeObject(Utils.newArrayList("a", "b")).length);
+    }
+
+    @Test
+    public void testJavaSerializationFallback() throws IOException
+    {
+        // Arrays aren't covered by the format, neither are lists holding them
+        int[] array = {1, 2};
+        byte[] bytes = CompactFieldCodec.INSTANCE.encode(array);
+        assertArrayEquals(Utils.serializeObject(array), bytes);
+        assertArrayEquals(array, (int[]) CompactFieldCodec.INSTANCE.decode(bytes, clr));
+
+        List<Object> list = Utils.<Object> newArrayList("a", new java.sql.Date(0));
+        bytes = CompactFieldCodec.INSTANCE.encode(list);
+        assertArrayEquals(Utils.serializeObject(list), bytes);
+        assertEquals(list, CompactFieldCodec.INSTANCE.decode(bytes, clr));
+    }
+
+    @Test
+    public void testReadsJavaSerializedCells() throws IOException
+    {
+        assertEquals(MyEnum.TWO, CompactFieldCodec.INSTANCE.decode(Utils.serializeObject(MyEnum.TWO), clr));
+        assertEquals(Utils.newArrayList(1L, 2L), CompactFieldCodec.INSTANCE.decode(Utils.serializeObject(Utils.newArrayList(1L, 2L)), clr));
+
+        // And the other way around, for fields switched to the java codec
+        assertEquals("s", JavaSerializationFieldCodec.INSTANCE.decode(CompactFieldCodec.INSTANCE.encode("s"), clr));
+    }
+}
@@ -0,0 +1,159 @@
+/**********************************************************************
+ * Copyright (c) 2010 Tatsuya Kawano and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.store.hbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+/**
+ */
+public class HBaseConnectionPoolTest
+{
+    private static final int EVICTION_PERIOD = 20;
+
+    @Test
+    public void testLongestIdleEvictedOverMaxIdle() throws Exception
+    {
+        HBaseConnectionPool pool = new HBaseConnectionPool(EVICTION_PERIOD, 0, 2);
+        try
+        {
+            List<HBaseManagedConnection> connections = new ArrayList<HBaseManagedConnection>();
+            for (int i = 0; i < 4; i++)
+            {
+                // Not timed out during the test, only maxIdle evicts them
+                connections.add(newConnection(pool, 60 * 1000));
+            }
+            for (HBaseManagedConnection connection : connections)
+            {
+                connection.release();
+                Thread.sleep(5);
+            }
+
+            awaitIdle(pool, 2);
+            assertEquals(4, pool.getConnectionsCreated());
+            assertEquals(2, pool.getConnectionsEvicted());
+            assertEquals(0, pool.getActiveConnections());
+            assertTrue(connections.get(0).isDisposed());
+            assertTrue(connections.get(1).isDisposed());
+            assertFalse(connections.get(2).isDisposed());
+            assertFalse(connections.get(3).isDisposed());
+        }
+        finally
+        {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testTimedOutEvictedDownToMinIdle() throws Exception
+    {
+        HBaseConnectionPool pool = new HBaseConnectionPool(EVICTION_PERIOD, 1, -1);
+        try
+        {
+            HBaseManagedConnection active = newConnection(pool, 50);
+            List<HBaseManagedConnection> connections = new ArrayList<HBaseManagedConnection>();
+            for (int i = 0; i < 3; i++)
+            {
+                connections.add(newConnection(pool, 50));
+            }
+            for (HBaseManagedConnection connection : connections)
+            {
+                connection.release();
+            }
+            assertEquals(3, pool.getIdleConnections());
+
+            awaitIdle(pool, 1);
+            assertEquals(2, pool.getConnectionsEvicted());
+            // The connection in use is kept whatever its timeout
+            assertEquals(1, pool.getActiveConnections());
+            assertFalse(active.isDisposed());
+
+            // The connection kept for minIdle is taken again, not replaced
+            HBaseManagedConnection kept = null;
+            for (HBaseManagedConnection connection : connections)
+            {
+                if (!connection.isDisposed())
+                {
+                    kept = connection;
+                }
+            }
+            assertTrue(kept.incrementReferenceCount());
+            assertEquals(2, pool.getActiveConnections());
+            assertEquals(0, pool.getIdleConnections());
+            Thread.sleep(5 * EVICTION_PERIOD);
+            assertEquals(2, pool.getConnectionsEvicted());
+        }
+        finally
+        {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testNoEvictionBeforeTimeout() throws Exception
+    {
+        HBaseConnectionPool pool = new HBaseConnectionPool(EVICTION_PERIOD, 0, -1);
+        try
+        {
+            newConnection(pool, 60 * 1000).release();
+            newConnection(pool, 60 * 1000).release();
+            Thread.sleep(5 * EVICTION_PERIOD);
+            assertEquals(2, pool.getIdleConnections());
+            assertEquals(0, pool.getConnectionsEvicted());
+        }
+        finally
+        {
+            pool.close();
+        }
+    }
+
+    /**
+     * Connection registered in the pool and taken by one user, as the connection factory does it.
+     */
+    private HBaseManagedConnection newConnection(HBaseConnectionPool pool, int idleTimeoutMillis)
+    {
+        HBaseStoreManager storeMgr = EasyMock.createNiceMock(HBaseStoreManager.class);
+        EasyMock.replay(storeMgr);
+        HBaseManagedConnection connection = new HBaseManagedConnection(storeMgr);
+        connection.setIdleTimeoutMills(idleTimeoutMillis);
+        pool.registerConnection(connection);
+        assertTrue(connection.incrementReferenceCount());
+        return connection;
+    }
+
+    private void awaitIdle(HBaseConnectionPool pool, int idle) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getIdleConnections() != idle)
+        {
+            if (System.currentTimeMillis() > deadline)
+            {
+                fail("Still " + pool.getIdleConnections() + " idle connections instead of " + idle);
+            }
+            Thread.sleep(EVICTION_PERIOD);
+        }
+    }
+}
@@ -96,91 +96,96 @@ public class HBaseInsertFieldManagerTest extends BaseTest
         fieldManager.storeStringField(0, "s");
         assertTrue(put.has(family, qualifier, Bytes.toBytes("s")));
         fieldManager.storeObjectField(0, Boolean.TRUE);
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(Boolean.TRUE)));
+        assertTrue(put.has(family, qualifier, encode(Boolean.TRUE)));
         fieldManager.storeObjectField(0, 4L);
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(4L)));
+        assertTrue(put.has(family, qualifier, encode(4L)));
         fieldManager.storeObjectField(0, 3);
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(3)));
+        assertTrue(put.has(family, qualifier, encode(3)));
         fieldManager.storeObjectField(0, 'a');
-        assertTrue(put.has(family, qualifier, Utils.serializeObject('a')));
+        assertTrue(put.has(family, qualifier, encode('a')));
         fieldManager.storeObjectField(0, (short) 2);
-        assertTrue(put.has(family, qualifier, Utils.serializeObject((short) 2)));
+        assertTrue(put.has(family, qualifier, encode((short) 2)));
         fieldManager.storeObjectField(0, (byte) 0xb);
-        assertTrue(put.has(family, qualifier, Utils.serializeObject((byte) 0xb)));
+        assertTrue(put.has(family, qualifier, encode((byte) 0xb)));
         fieldManager.storeObjectField(0, 1.01f);
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(1.01f)));
+        assertTrue(put.has(family, qualifier, encode(1.01f)));
         fieldManager.storeObjectField(0, 2.22d);
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(2.22d)));
+        assertTrue(put.has(family, qualifier, encode(2.22d)));
         fieldManager.storeObjectField(0, MyEnum.ONE);
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(MyEnum.ONE)));
+        assertTrue(put.has(family, qualifier, encode(MyEnum.ONE)));
         fieldManager.storeObjectField(0, new BigDecimal(2.444d));
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new BigDecimal(2.444d))));
+        assertTrue(put.has(family, qualifier, encode(new BigDecimal(2.444d))));
 
         fieldManager.storeObjectField(0, new String[]{"a", "b"});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new String[]{"a", "b"})));
+        assertTrue(put.has(family, qualifier, encode(new String[]{"a", "b"})));
         fieldManager.storeObjectField(0, new int[]{1, 2});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new int[]{1, 2})));
+        assertTrue(put.has(family, qualifier, encode(new int[]{1, 2})));
         fieldManager.storeObjectField(0, new Integer[]{3, 4});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new Integer[]{3, 4})));
+        assertTrue(put.has(family, qualifier, encode(new Integer[]{3, 4})));
         fieldManager.storeObjectField(0, new long[]{5L, 6L});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new long[]{5L, 6L})));
+        assertTrue(put.has(family, qualifier, encode(new long[]{5L, 6L})));
         fieldManager.storeObjectField(0, new Long[]{7L, 8L});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new Long[]{7L, 8L})));
+        assertTrue(put.has(family, qualifier, encode(new Long[]{7L, 8L})));
         fieldManager.storeObjectField(0, new short[]{(short) 9, (short) 10});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new short[]{(short) 9, (short) 10})));
+        assertTrue(put.has(family, qualifier, encode(new short[]{(short) 9, (short) 10})));
         fieldManager.storeObjectField(0, new Short[]{(short) 11, (short) 12});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new Short[]{(short) 11, (short) 12})));
+        assertTrue(put.has(family, qualifier, encode(new Short[]{(short) 11, (short) 12})));
         fieldManager.storeObjectField(0, new char[]{'a', 'b'});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new char[]{'a', 'b'})));
+        assertTrue(put.has(family, qualifier, encode(new char[]{'a', 'b'})));
         fieldManager.storeObjectField(0, new Character[]{'c', 'd'});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new Character[]{'c', 'd'})));
+        assertTrue(put.has(family, qualifier, encode(new Character[]{'c', 'd'})));
         fieldManager.storeObjectField(0, new float[]{1.01f, 1.02f});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new float[]{1.01f, 1.02f})));
+        assertTrue(put.has(family, qualifier, encode(new float[]{1.01f, 1.02f})));
         fieldManager.storeObjectField(0, new Float[]{1.03f, 1.04f});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new Float[]{1.03f, 1.04f})));
+        assertTrue(put.has(family, qualifier, encode(new Float[]{1.03f, 1.04f})));
         fieldManager.storeObjectField(0, new double[]{2.01d, 2.02d});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new double[]{2.01d, 2.02d})));
+        assertTrue(put.has(family, qualifier, encode(new double[]{2.01d, 2.02d})));
         fieldManager.storeObjectField(0, new Double[]{2.03d, 2.04d});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new Double[]{2.03d, 2.04d})));
+        assertTrue(put.has(family, qualifier, encode(new Double[]{2.03d, 2.04d})));
         fieldManager.storeObjectField(0, new byte[]{0xb, 0xc});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new byte[]{0xb, 0xc})));
+        assertTrue(put.has(family, qualifier, encode(new byte[]{0xb, 0xc})));
         fieldManager.storeObjectField(0, new Byte[]{0xe, 0xf});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new Byte[]{0xe, 0xf})));
+        assertTrue(put.has(family, qualifier, encode(new Byte[]{0xe, 0xf})));
         fieldManager.storeObjectField(0, new boolean[]{true, false});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new boolean[]{true, false})));
+        assertTrue(put.has(family, qualifier, encode(new boolean[]{true, false})));
         fieldManager.storeObjectField(0, new Boolean[]{Boolean.FALSE, Boolean.TRUE});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new Boolean[]{Boolean.FALSE, Boolean.TRUE})));
+        assertTrue(put.has(family, qualifier, encode(new Boolean[]{Boolean.FALSE, Boolean.TRUE})));
         fieldManager.storeObjectField(0, new Date[]{DATE1, DATE2});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new Date[]{DATE1, DATE2})));
+        assertTrue(put.has(family, qualifier, encode(new Date[]{DATE1, DATE2})));
         fieldManager.storeObjectField(0, new MyEnum[]{MyEnum.TWO, MyEnum.ONE});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new MyEnum[]{MyEnum.TWO, MyEnum.ONE})));
+        assertTrue(put.has(family, qualifier, encode(new MyEnum[]{MyEnum.TWO, MyEnum.ONE})));
         fieldManager.storeObjectField(0, new BigDecimal[]{new BigDecimal(3.4444d), new BigDecimal(4.3333d)});
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(new BigDecimal[]{new BigDecimal(3.4444d), new BigDecimal(4.3333d)})));
+        assertTrue(put.has(family, qualifier, encode(new BigDecimal[]{new BigDecimal(3.4444d), new BigDecimal(4.3333d)})));
 
         fieldManager.storeObjectField(0, Utils.newArrayList("p", "q"));
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(Utils.newArrayList("p", "q"))));
+        assertTrue(put.has(family, qualifier, encode(Utils.newArrayList("p", "q"))));
         fieldManager.storeObjectField(0, Utils.newArrayList(11, 12));
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(Utils.newArrayList(11, 12))));
+        assertTrue(put.has(family, qualifier, encode(Utils.newArrayList(11, 12))));
         fieldManager.storeObjectField(0, Utils.newArrayList(13L, 14L));
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(Utils.newArrayList(13L, 14L))));
+        assertTrue(put.has(family, qualifier, encode(Utils.newArrayList(13L, 14L))));
         fieldManager.storeObjectField(0, Utils.newArrayList((short) 15, (short) 16));
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(Utils.newArrayList((short) 15, (short) 16))));
+        assertTrue(put.has(family, qualifier, encode(Utils.newArrayList((short) 15, (short) 16))));
         fieldManager.storeObjectField(0, Utils.newArrayList('q', 'r'));
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(Utils.newArrayList('q', 'r'))));
+        assertTrue(put.has(family, qualifier, encode(Utils.newArrayList('q', 'r'))));
         fieldManager.storeObjectField(0, Utils.newArrayList((byte) 0x8, (byte) 0x9));
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(Utils.newArrayList((byte) 0x8, (byte) 0x9))));
+        assertTrue(put.has(family, qualifier, encode(Utils.newArrayList((byte) 0x8, (byte) 0x9))));
         fieldManager.storeObjectField(0, Utils.newArrayList(22.44d, 23.55d));
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(Utils.newArrayList(22.44d, 23.55d))));
+        assertTrue(put.has(family, qualifier, encode(Utils.newArrayList(22.44d, 23.55d))));
         fieldManager.storeObjectField(0, Utils.newArrayList(23.44f, 24.55f));
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(Utils.newArrayList(23.44f, 24.55f))));
+        assertTrue(put.has(family, qualifier, encode(Utils.newArrayList(23.44f, 24.55f))));
         fieldManager.storeObjectField(0, Utils.newArrayList(true, false));
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(Utils.newArrayList(true, false))));
+        assertTrue(put.has(family, qualifier, encode(Utils.newArrayList(true, false))));
         fieldManager.storeObjectField(0, Utils.newArrayList(DATE1, DATE2));
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(Utils.newArrayList(DATE1, DATE2))));
+        assertTrue(put.has(family, qualifier, encode(Utils.newArrayList(DATE1, DATE2))));
         fieldManager.storeObjectField(0, Utils.newArrayList(MyEnum.TWO, MyEnum.ONE));
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(Utils.newArrayList(MyEnum.TWO, MyEnum.ONE))));
+        assertTrue(put.has(family, qualifier, encode(Utils.newArrayList(MyEnum.TWO, MyEnum.ONE))));
         fieldManager.storeObjectField(0, Utils.newArrayList(new BigDecimal(7.6666d), new BigDecimal(6.7777d)));
-        assertTrue(put.has(family, qualifier, Utils.serializeObject(Utils.newArrayList(new BigDecimal(7.6666d), new BigDecimal(6.7777d)))));
+        assertTrue(put.has(family, qualifier, encode(Utils.newArrayList(new BigDecimal(7.6666d), new BigDecimal(6.7777d)))));
 
     }
+
+    private static byte[] encode(Object value) throws IOException
+    {
+        return CompactFieldCodec.INSTANCE.encode(value);
+    }
 }
@@ -0,0 +1,83 @@
+/**********************************************************************
+ * Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.store.hbase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.identity.StringIdentity;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+/**
+ */
+public class HBaseRowReferenceTest
+{
+    @Test
+    public void testSingleReference() throws IOException
+    {
+        byte[] bytes = HBaseRowReference.encode(new HBaseRowReference(null, Bytes.toBytes("key")));
+        assertEquals(HBaseRowReference.REFERENCE_MARKER, bytes[0]);
+        assertTrue(HBaseRowReference.isReference(bytes));
+
+        List<HBaseRowReference> references = HBaseRowReference.decode(bytes);
+        assertEquals(1, references.size());
+        assertNull(references.get(0).className);
+        assertArrayEquals(Bytes.toBytes("key"), references.get(0).key);
+    }
+
+    @Test
+    public void testReferenceList() throws IOException
+    {
+        List<HBaseRowReference> references = new ArrayList<HBaseRowReference>();
+        references.add(new HBaseRowReference(null, Bytes.toBytes(1L)));
+        references.add(new HBaseRowReference("org.example.Sub", Bytes.toBytes(2L)));
+        references.add(new HBaseRowReference(null, null));
+        byte[] bytes = HBaseRowReference.encode(references);
+        assertEquals(HBaseRowReference.REFERENCE_LIST_MARKER, bytes[0]);
+
+        List<HBaseRowReference> decoded = HBaseRowReference.decode(bytes);
+        assertEquals(3, decoded.size());
+        assertNull(decoded.get(0).className);
+        assertArrayEquals(Bytes.toBytes(1L), decoded.get(0).key);
+        assertEquals("org.example.Sub", decoded.get(1).className);
+        assertArrayEquals(Bytes.toBytes(2L), decoded.get(1).key);
+        assertNull(decoded.get(2).key);
+
+        assertTrue(HBaseRowReference.encode(new ArrayList<HBaseRowReference>()).length == 2);
+    }
+
+    @Test
+    public void testSerializedIdsAreNotReferences() throws IOException
+    {
+        List<Object> ids = new ArrayList<Object>();
+        ids.add(new StringIdentity(Object.class, "key"));
+        byte[] bytes = Utils.serializeObject(ids);
+        assertFalse(HBaseRowReference.isReference(bytes));
+        assertTrue(bytes.length > HBaseRowReference.encode(new HBaseRowReference(null, Bytes.toBytes("key"))).length * 10);
+        assertFalse(HBaseRowReference.isReference(CompactFieldCodec.INSTANCE.encode("key")));
+    }
+}
@@ -0,0 +1,191 @@
+/**********************************************************************
+ * Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.store.hbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.io.hfile.Compression;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.datanucleus.ObjectManager;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.jdo.JDOPersistenceManager;
+import org.datanucleus.metadata.MetaDataManager;
+import org.datanucleus.test.BaseTest;
+import org.datanucleus.test.models.SchemaRetryJDO;
+import org.datanucleus.test.models.SharedTableJDO;
+import org.junit.Test;
+
+/**
+ */
+public class HBaseSchemaManagerTest extends BaseTest
+{
+    @Test
+    public void testFamilySettings()
+    {
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        settings.put("compression", "gz");
+        settings.put("bloomFilter", "row");
+        settings.put("blockSize", "8192");
+        settings.put("inMemory", "true");
+        settings.put("blockCache", "false");
+        settings.put("maxVersions", "1");
+        settings.put("timeToLive", "3600");
+        HColumnDescriptor family = HBaseSchemaManager.newFamily(new HColumnDescriptor("f"), settings);
+
+        assertEquals(Compression.Algorithm.GZ, family.getCompressionType());
+        assertEquals("ROW", family.getValue(HColumnDescriptor.BLOOMFILTER));
+        assertEquals(8192, family.getBlocksize());
+        assertTrue(family.isInMemory());
+        assertFalse(family.isBlockCacheEnabled());
+        assertEquals(1, family.getMaxVersions());
+        assertEquals(3600, family.getTimeToLive());
+        assertTrue(HBaseSchemaManager.getDrift(family, settings).isEmpty());
+    }
+
+    @Test
+    public void testDrift()
+    {
+        HColumnDescriptor family = new HColumnDescriptor("f");
+        family.setBlocksize(8192);
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        settings.put("maxVersions", "1");
+        settings.put("compression", "none");
+
+        // Settings not given aren't compared
+        assertEquals(Arrays.asList("maxVersions"), HBaseSchemaManager.getDrift(family, settings));
+        assertTrue(HBaseSchemaManager.getDrift(family, Collections.<String, String>emptyMap()).isEmpty());
+    }
+
+    @Test
+    public void testClassesOfOneTableModifyItOnce() throws Exception
+    {
+        HBaseConfiguration config = new HBaseConfiguration();
+        HBaseAdmin hBaseAdmin = new HBaseAdmin(config);
+        HTableDescriptor table = new HTableDescriptor("SharedTable");
+        table.addFamily(new HColumnDescriptor("SharedTable"));
+        hBaseAdmin.createTable(table);
+
+        ObjectManager om = ((JDOPersistenceManager) getPersistenceManager()).getObjectManager();
+        HBaseStoreManager storeMgr = (HBaseStoreManager) om.getStoreManager();
+        HBaseSchemaManager schemaManager = storeMgr.getSchemaManager();
+        final AtomicInteger modifies = new AtomicInteger();
+        schemaManager.setAdmin(new HBaseAdmin(config)
+        {
+            @Override
+            public void modifyTable(byte[] tableName, HTableDescriptor htd) throws IOException
+            {
+                modifies.incrementAndGet();
+                super.modifyTable(tableName, htd);
+            }
+        });
+
+        // The task of the table waits for the lock, so the families of both classes are collected first
+        synchronized (schemaManager)
+        {
+            MetaDataManager metaDataManager = om.getMetaDataManager();
+            metaDataManager.getMetaDataForClass(SharedTableJDO.First.class, om.getClassLoaderResolver());
+            metaDataManager.getMetaDataForClass(SharedTableJDO.Second.class, om.getClassLoaderResolver());
+        }
+        storeMgr.awaitSchema("SharedTable");
+
+        assertEquals(1, modifies.get());
+        HTableDescriptor modified = hBaseAdmin.getTableDescriptor(Bytes.toBytes("SharedTable"));
+        assertTrue(modified.hasFamily(Bytes.toBytes("first")));
+        assertTrue(modified.hasFamily(Bytes.toBytes("second")));
+    }
+
+    @Test
+    public void testFailureReportedUntilRetried() throws Exception
+    {
+        // Own store, so that the failure doesn't reach the other tests
+        PersistenceManagerFactory pmf = PMF.get(new Properties());
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            ObjectManager om = ((JDOPersistenceManager) pm).getObjectManager();
+            HBaseStoreManager storeMgr = (HBaseStoreManager) om.getStoreManager();
+            HBaseSchemaManager schemaManager = storeMgr.getSchemaManager();
+            final AtomicInteger creates = new AtomicInteger();
+            schemaManager.setAdmin(new HBaseAdmin(new HBaseConfiguration())
+            {
+                @Override
+                public void createTable(HTableDescriptor desc) throws IOException
+                {
+                    if (creates.incrementAndGet() == 1)
+                    {
+                        throw new IOException("Failing the first creation");
+                    }
+                    super.createTable(desc);
+                }
+            });
+
+            MetaDataManager metaDataManager = om.getMetaDataManager();
+            metaDataManager.getMetaDataForClass(SchemaRetryJDO.First.class, om.getClassLoaderResolver());
+            // Every caller sees the failure, not only the first one
+            for (int i = 0; i < 2; i++)
+            {
+                try
+                {
+                    storeMgr.awaitSchema("SchemaRetryTable");
+                    fail("The table creation failed");
+                }
+                catch (NucleusDataStoreException expected)
+                {
+                }
+            }
+
+            // The next class of the table retries the families that failed with its own
+            metaDataManager.getMetaDataForClass(SchemaRetryJDO.Second.class, om.getClassLoaderResolver());
+            storeMgr.awaitSchema("SchemaRetryTable");
+            assertEquals(2, creates.get());
+            HTableDescriptor created = new HBaseAdmin(new HBaseConfiguration()).getTableDescriptor(Bytes.toBytes("SchemaRetryTable"));
+            assertTrue(created.hasFamily(Bytes.toBytes("first")));
+            assertTrue(created.hasFamily(Bytes.toBytes("second")));
+        }
+        finally
+        {
+            pm.close();
+            pmf.close();
+        }
+    }
+
+    @Test(expected = NucleusUserException.class)
+    public void testInvalidSetting()
+    {
+        HBaseSchemaManager.newFamily(new HColumnDescriptor("f"), Collections.singletonMap("maxVersions", "all"));
+    }
+}
@@ -0,0 +1,137 @@
+/**********************************************************************
+ * Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.store.hbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+
+import org.datanucleus.jdo.JDOPersistenceManager;
+import org.datanucleus.test.BaseTest;
+import org.datanucleus.test.models.Flight;
+import org.junit.Test;
+
+/**
+ */
+public class HBaseTablePoolTest extends BaseTest
+{
+    private static final int THREADS = 6;
+
+    private static final int MAX_ACTIVE = 2;
+
+    private static final int TRANSACTIONS = 5;
+
+    @Test
+    public void testMoreThreadsThanHandles() throws Exception
+    {
+        Properties props = new Properties();
+        props.setProperty("datanucleus.hbase.tablePool.maxActive", String.valueOf(MAX_ACTIVE));
+        // A leaked handle makes the next borrowers time out instead of hanging the test
+        props.setProperty("datanucleus.hbase.tablePool.maxWait", "30000");
+        // Commit flushes the write buffer after the last release of the connection
+        props.setProperty("datanucleus.hbase.writeBehind", "true");
+        final PersistenceManagerFactory pmf = PMF.get(props);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < THREADS; i++)
+            {
+                final String prefix = "pool." + i + ".";
+                futures.add(executor.submit(new Callable<Void>()
+                {
+                    public Void call()
+                    {
+                        persistAndRead(pmf, prefix);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+            {
+                // Throws the failure of the thread, or times out on a deadlock
+                future.get(2, TimeUnit.MINUTES);
+            }
+
+            PersistenceManager pm = pmf.getPersistenceManager();
+            try
+            {
+                HBaseTablePool pool = getTablePool(pm);
+                assertEquals(0, pool.getActiveHandles());
+                assertTrue(pool.getIdleHandles("Flight") <= MAX_ACTIVE);
+                assertEquals(0, pool.getBorrowTimeouts());
+            }
+            finally
+            {
+                pm.close();
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+            pmf.close();
+        }
+    }
+
+    private void persistAndRead(PersistenceManagerFactory pmf, String prefix)
+    {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            for (int i = 0; i < TRANSACTIONS; i++)
+            {
+                Flight flight = new Flight("pool", null, prefix + i, i, -i);
+                flight.setId(prefix + i);
+                pm.currentTransaction().begin();
+                pm.makePersistent(flight);
+                pm.currentTransaction().commit();
+            }
+            pm.evictAll();
+            pm.currentTransaction().begin();
+            for (int i = 0; i < TRANSACTIONS; i++)
+            {
+                assertEquals(prefix + i, pm.getObjectById(Flight.class, prefix + i).getName());
+            }
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+    }
+
+    private HBaseTablePool getTablePool(PersistenceManager pm)
+    {
+        return ((HBaseStoreManager) ((JDOPersistenceManager) pm).getObjectManager().getStoreManager()).getTablePool();
+    }
+}
@@ -0,0 +1,83 @@
+/**********************************************************************
+ * Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.store.hbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Properties;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+
+import org.datanucleus.ObjectManager;
+import org.datanucleus.jdo.JDOPersistenceManager;
+import org.datanucleus.test.BaseTest;
+import org.datanucleus.test.models.Flight;
+import org.junit.Test;
+
+/**
+ */
+public class HBaseTableWarmerTest extends BaseTest
+{
+    private static final int TABLE_HANDLES = 3;
+
+    @Test
+    public void testHandlesOpenedWhenMetaDataLoaded() throws Exception
+    {
+        Properties props = new Properties();
+        props.setProperty("datanucleus.hbase.warmUp", "true");
+        props.setProperty("datanucleus.hbase.warmUp.tableHandles", String.valueOf(TABLE_HANDLES));
+        PersistenceManagerFactory pmf = PMF.get(props);
+        try
+        {
+            PersistenceManager pm = pmf.getPersistenceManager();
+            try
+            {
+                ObjectManager om = ((JDOPersistenceManager) pm).getObjectManager();
+                HBaseStoreManager storeMgr = (HBaseStoreManager) om.getStoreManager();
+                // Loading the metadata prepares the table, then warms it up in the background
+                om.getMetaDataManager().getMetaDataForClass(Flight.class, om.getClassLoaderResolver());
+                storeMgr.awaitSchema("Flight");
+
+                HBaseTablePool pool = storeMgr.getTablePool();
+                long deadline = System.currentTimeMillis() + 10 * 1000;
+                while (pool.getIdleHandles("Flight") < TABLE_HANDLES)
+                {
+                    if (System.currentTimeMillis() > deadline)
+                    {
+                        fail("Only " + pool.getIdleHandles("Flight") + " handles of Flight opened by the warm-up");
+                    }
+                    Thread.sleep(100);
+                }
+                // Nothing used the table, the handles were opened by the warm-up and given back
+                assertEquals(0, pool.getActiveHandles("Flight"));
+                assertTrue(pool.getHandlesCreated() >= TABLE_HANDLES);
+            }
+            finally
+            {
+                pm.close();
+            }
+        }
+        finally
+        {
+            pmf.close();
+        }
+    }
+}
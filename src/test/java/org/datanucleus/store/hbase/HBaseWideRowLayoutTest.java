@@ -0,0 +1,172 @@
+/**********************************************************************
+ * Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.store.hbase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+/**
+ */
+public class HBaseWideRowLayoutTest
+{
+    private static final byte[] ROW = Bytes.toBytes("row");
+
+    private static final byte[] FAMILY = Bytes.toBytes("family");
+
+    private static final byte[] QUALIFIER = Bytes.toBytes("items");
+
+    @Test
+    public void testListRoundTrip() throws IOException
+    {
+        Put put = new Put(ROW);
+        HBaseWideRowLayout.store(put, new Delete(ROW), FAMILY, QUALIFIER, true, references("c", "a", "b"), null);
+        // The marker and one cell per element
+        assertEquals(4, put.size());
+
+        List<HBaseRowReference> loaded = HBaseWideRowLayout.load(toResult(put), FAMILY, QUALIFIER);
+        assertKeys(loaded, "c", "a", "b");
+    }
+
+    @Test
+    public void testSetRoundTrip() throws IOException
+    {
+        Put put = new Put(ROW);
+        HBaseWideRowLayout.store(put, new Delete(ROW), FAMILY, QUALIFIER, false, references("c", "a"), null);
+        assertEquals(3, put.size());
+
+        List<HBaseRowReference> loaded = HBaseWideRowLayout.load(toResult(put), FAMILY, QUALIFIER);
+        assertEquals(2, loaded.size());
+    }
+
+    @Test
+    public void testOnlyChangedElementsAreWritten() throws IOException
+    {
+        Put put = new Put(ROW);
+        HBaseWideRowLayout.store(put, new Delete(ROW), FAMILY, QUALIFIER, false, references("a", "b", "c"), null);
+        Result existing = toResult(put);
+
+        // Add one element
+        put = new Put(ROW);
+        Delete delete = new Delete(ROW);
+        HBaseWideRowLayout.store(put, delete, FAMILY, QUALIFIER, false, references("a", "b", "c", "d"), existing);
+        assertEquals(1, put.size());
+        assertTrue(delete.isEmpty());
+
+        // Remove one element
+        put = new Put(ROW);
+        delete = new Delete(ROW);
+        HBaseWideRowLayout.store(put, delete, FAMILY, QUALIFIER, false, references("a", "c"), existing);
+        assertTrue(put.isEmpty());
+        assertEquals(1, delete.getFamilyMap().get(FAMILY).size());
+
+        // Append to a list
+        put = new Put(ROW);
+        HBaseWideRowLayout.store(put, new Delete(ROW), FAMILY, QUALIFIER, true, references("a", "b"), null);
+        existing = toResult(put);
+        put = new Put(ROW);
+        delete = new Delete(ROW);
+        HBaseWideRowLayout.store(put, delete, FAMILY, QUALIFIER, true, references("a", "b", "c"), existing);
+        assertEquals(1, put.size());
+        assertTrue(delete.isEmpty());
+
+        // Null collection
+        delete = new Delete(ROW);
+        HBaseWideRowLayout.delete(delete, FAMILY, QUALIFIER, existing);
+        assertEquals(2, delete.getFamilyMap().get(FAMILY).size());
+    }
+
+    @Test
+    public void testOtherColumnsOfTheFamilyAreIgnored() throws IOException
+    {
+        Put put = new Put(ROW);
+        put.add(FAMILY, Bytes.toBytes("item"), Bytes.toBytes("x"));
+        put.add(FAMILY, Bytes.toBytes("itemsCount"), Bytes.toBytes("y"));
+        HBaseWideRowLayout.store(put, new Delete(ROW), FAMILY, QUALIFIER, true, references("a"), null);
+        assertKeys(HBaseWideRowLayout.load(toResult(put), FAMILY, QUALIFIER), "a");
+    }
+
+    @Test
+    public void testCellFilterKeepsOnlyTheCellsOfTheField() throws IOException
+    {
+        Put put = new Put(ROW);
+        put.add(FAMILY, Bytes.toBytes("item"), Bytes.toBytes("x"));
+        put.add(FAMILY, Bytes.toBytes("itemsCount"), Bytes.toBytes("y"));
+        HBaseWideRowLayout.store(put, new Delete(ROW), FAMILY, QUALIFIER, true, references("a", "b"), null);
+
+        Filter filter = HBaseWideRowLayout.getCellFilter(QUALIFIER);
+        List<KeyValue> kept = new ArrayList<KeyValue>();
+        for (KeyValue kv : toResult(put).raw())
+        {
+            if (filter.filterKeyValue(kv) == Filter.ReturnCode.INCLUDE)
+            {
+                kept.add(kv);
+            }
+        }
+        // The marker and the two elements
+        assertEquals(3, kept.size());
+        Result filtered = new Result(kept);
+        assertArrayEquals(new byte[]{HBaseWideRowLayout.MARKER, 1}, filtered.getValue(FAMILY, QUALIFIER));
+        assertKeys(HBaseWideRowLayout.load(filtered, FAMILY, QUALIFIER), "a", "b");
+    }
+
+    private static List<HBaseRowReference> references(String... keys)
+    {
+        List<HBaseRowReference> references = new ArrayList<HBaseRowReference>();
+        for (String key : keys)
+        {
+            references.add(new HBaseRowReference(null, Bytes.toBytes(key)));
+        }
+        return references;
+    }
+
+    private static void assertKeys(List<HBaseRowReference> references, String... keys)
+    {
+        assertEquals(keys.length, references.size());
+        for (int i = 0; i < keys.length; i++)
+        {
+            assertArrayEquals(Bytes.toBytes(keys[i]), references.get(i).key);
+        }
+    }
+
+    private static Result toResult(Put put)
+    {
+        List<KeyValue> kvs = new ArrayList<KeyValue>();
+        for (Map.Entry<byte[], List<KeyValue>> entry : put.getFamilyMap().entrySet())
+        {
+            kvs.addAll(entry.getValue());
+        }
+        KeyValue[] sorted = kvs.toArray(new KeyValue[kvs.size()]);
+        Arrays.sort(sorted, KeyValue.COMPARATOR);
+        return new Result(sorted);
+    }
+}
@@ -0,0 +1,339 @@
+/**********************************************************************
+ * Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.store.hbase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.test.BaseTest;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Test;
+
+/**
+ */
+public class HBaseWriteBufferTest extends BaseTest
+{
+    private static final String TABLE = "HBaseWriteBufferTest";
+
+    private static final byte[] ROW = Bytes.toBytes("row");
+
+    private static final byte[] FAMILY = Bytes.toBytes("family");
+
+    private static final byte[] QUALIFIER = Bytes.toBytes("qualifier");
+
+    private static final byte[] OTHER_QUALIFIER = Bytes.toBytes("other");
+
+    @Test
+    public void testExists()
+    {
+        HBaseWriteBuffer buffer = new HBaseWriteBuffer();
+        assertNull(buffer.exists(TABLE, ROW));
+
+        buffer.put(TABLE, newPut("a"));
+        assertEquals(Boolean.TRUE, buffer.exists(TABLE, ROW));
+
+        buffer.delete(TABLE, new Delete(ROW));
+        assertEquals(Boolean.FALSE, buffer.exists(TABLE, ROW));
+
+        buffer.put(TABLE, newPut("b"));
+        assertEquals(Boolean.TRUE, buffer.exists(TABLE, ROW));
+        assertEquals(1, buffer.size());
+        assertTrue(buffer.hasPending(TABLE));
+        assertFalse(buffer.hasPending("other"));
+    }
+
+    @Test
+    public void testDeleteThenReinsertOnlyDeletesOtherCells() throws Exception
+    {
+        HBaseWriteBuffer buffer = new HBaseWriteBuffer();
+        buffer.put(TABLE, newPut("a"));
+        buffer.delete(TABLE, new Delete(ROW));
+        buffer.put(TABLE, newPut("b"));
+
+        HTable table = EasyMock.createMock(HTable.class);
+        Capture<ArrayList<Delete>> deletes = new Capture<ArrayList<Delete>>();
+        Capture<List<Put>> puts = new Capture<List<Put>>();
+        table.delete(EasyMock.capture(deletes));
+        table.put(EasyMock.capture(puts));
+        table.flushCommits();
+        EasyMock.replay(table);
+
+        HBaseManagedConnection conn = EasyMock.createMock(HBaseManagedConnection.class);
+        EasyMock.expect(conn.getHTable(TABLE)).andReturn(table);
+        // The handle is given back once the table is written
+        conn.returnHTable(TABLE);
+        EasyMock.expectLastCall().atLeastOnce();
+        // The current cells are read through the connection, which batches the reads
+        Capture<List<Get>> gets = new Capture<List<Get>>();
+        EasyMock.expect(conn.get(EasyMock.eq(TABLE), EasyMock.capture(gets))).andReturn(new Result[] {new Result(new KeyValue[] {
+            new KeyValue(ROW, FAMILY, QUALIFIER, 1L, Bytes.toBytes("old")),
+            new KeyValue(ROW, FAMILY, OTHER_QUALIFIER, 1L, Bytes.toBytes("other"))})});
+        EasyMock.replay(conn);
+
+        buffer.flush(conn, (ExecutorService) null);
+        EasyMock.verify(table, conn);
+        assertTrue(buffer.isEmpty());
+        assertEquals(1, gets.getValue().size());
+        assertArrayEquals(ROW, gets.getValue().get(0).getRow());
+
+        // Only the cell that isn't written again is deleted, stamped by the server
+        assertEquals(1, deletes.getValue().size());
+        List<KeyValue> deleted = deletes.getValue().get(0).getFamilyMap().get(FAMILY);
+        assertEquals(1, deleted.size());
+        assertArrayEquals(OTHER_QUALIFIER, deleted.get(0).getQualifier());
+        assertEquals(KeyValue.Type.DeleteColumn.getCode(), deleted.get(0).getType());
+        assertEquals(HConstants.LATEST_TIMESTAMP, deleted.get(0).getTimestamp());
+
+        assertEquals(1, puts.getValue().size());
+        List<KeyValue> kvs = puts.getValue().get(0).getFamilyMap().get(FAMILY);
+        assertEquals(1, kvs.size());
+        assertArrayEquals(Bytes.toBytes("b"), kvs.get(0).getValue());
+        assertEquals(HConstants.LATEST_TIMESTAMP, kvs.get(0).getTimestamp());
+    }
+
+    @Test
+    public void testRowDeleteWithoutPutIsNotRead() throws Exception
+    {
+        HBaseWriteBuffer buffer = new HBaseWriteBuffer();
+        buffer.put(TABLE, newPut("a"));
+        buffer.delete(TABLE, new Delete(ROW));
+
+        HTable table = EasyMock.createMock(HTable.class);
+        Capture<ArrayList<Delete>> deletes = new Capture<ArrayList<Delete>>();
+        table.delete(EasyMock.capture(deletes));
+        EasyMock.replay(table);
+
+        HBaseManagedConnection conn = EasyMock.createMock(HBaseManagedConnection.class);
+        EasyMock.expect(conn.getHTable(TABLE)).andReturn(table);
+        // The handle is given back once the table is written
+        conn.returnHTable(TABLE);
+        EasyMock.expectLastCall().atLeastOnce();
+        EasyMock.replay(conn);
+
+        buffer.flush(conn, TABLE);
+        EasyMock.verify(table);
+        assertEquals(1, deletes.getValue().size());
+        assertTrue(deletes.getValue().get(0).isEmpty());
+    }
+
+    @Test
+    public void testInsertsCheckedWithOneRead() throws Exception
+    {
+        byte[] other = Bytes.toBytes("other row");
+        HBaseWriteBuffer buffer = new HBaseWriteBuffer();
+        buffer.insert(TABLE, newPut("a"), FAMILY, QUALIFIER);
+        Put put = new Put(other);
+        put.add(FAMILY, QUALIFIER, Bytes.toBytes("b"));
+        buffer.insert(TABLE, put, FAMILY, QUALIFIER);
+        // Deleted first, not checked
+        byte[] reinserted = Bytes.toBytes("reinserted");
+        buffer.delete(TABLE, new Delete(reinserted));
+        put = new Put(reinserted);
+        put.add(FAMILY, QUALIFIER, Bytes.toBytes("c"));
+        buffer.insert(TABLE, put, FAMILY, QUALIFIER);
+
+        HTable table = EasyMock.createMock(HTable.class);
+        Capture<List<Put>> puts = new Capture<List<Put>>();
+        table.put(EasyMock.capture(puts));
+        table.flushCommits();
+        EasyMock.replay(table);
+
+        HBaseManagedConnection conn = EasyMock.createMock(HBaseManagedConnection.class);
+        EasyMock.expect(conn.getHTable(TABLE)).andReturn(table);
+        // The handle is given back once the table is written
+        conn.returnHTable(TABLE);
+        EasyMock.expectLastCall().atLeastOnce();
+        Capture<List<Get>> gets = new Capture<List<Get>>();
+        // The current cells of the reinserted row, then the checks of the two new rows
+        EasyMock.expect(conn.get(EasyMock.eq(TABLE), EasyMock.capture(gets))).andReturn(new Result[] {
+            new Result(new KeyValue[0]), new Result(new KeyValue[0]), new Result(new KeyValue[0])});
+        EasyMock.replay(conn);
+
+        buffer.flush(conn, TABLE);
+        EasyMock.verify(table, conn);
+        assertEquals(3, gets.getValue().size());
+        assertEquals(3, puts.getValue().size());
+    }
+
+    @Test
+    public void testInsertOfExistingRowFailsFlush() throws Exception
+    {
+        HBaseWriteBuffer buffer = new HBaseWriteBuffer();
+        buffer.insert(TABLE, newPut("a"), FAMILY, QUALIFIER);
+
+        // Nothing is written, no handle is taken for the writes and the one of the read is given back
+        HBaseManagedConnection conn = EasyMock.createMock(HBaseManagedConnection.class);
+        EasyMock.expect(conn.get(EasyMock.eq(TABLE), EasyMock.<List<Get>>anyObject())).andReturn(new Result[] {
+            new Result(new KeyValue[] {new KeyValue(ROW, FAMILY, QUALIFIER, 1L, Bytes.toBytes("old"))})});
+        conn.returnHTable(TABLE);
+        EasyMock.replay(conn);
+
+        try
+        {
+            buffer.flush(conn, (ExecutorService) null);
+            fail("Inserted a row that exists");
+        }
+        catch (NucleusUserException expected)
+        {
+        }
+        EasyMock.verify(conn);
+    }
+
+    @Test
+    public void testDeleteThenPutOnTable() throws Exception
+    {
+        HTable table = createTable();
+        Put existing = new Put(ROW);
+        existing.add(FAMILY, QUALIFIER, Bytes.toBytes("old"));
+        existing.add(FAMILY, OTHER_QUALIFIER, Bytes.toBytes("other"));
+        table.put(existing);
+
+        HBaseWriteBuffer buffer = new HBaseWriteBuffer();
+        buffer.delete(TABLE, new Delete(ROW));
+        buffer.put(TABLE, newPut("new"));
+        buffer.flush(newConnection(table), TABLE);
+
+        Result row = table.get(new Get(ROW));
+        assertEquals(1, row.size());
+        assertArrayEquals(Bytes.toBytes("new"), row.getValue(FAMILY, QUALIFIER));
+        assertNull(row.getValue(FAMILY, OTHER_QUALIFIER));
+    }
+
+    @Test
+    public void testColumnDeleteOnTableMatchesUnbuffered() throws Exception
+    {
+        HTable table = createTable();
+        for (String value : new String[] {"v1", "v2"})
+        {
+            table.put(newPut(value));
+        }
+
+        // Same delete as HBaseInsertFieldManager sends for a field set to null when writes aren't buffered
+        Delete unbuffered = new Delete(ROW);
+        unbuffered.deleteColumns(FAMILY, QUALIFIER);
+        table.delete(unbuffered);
+        assertNull(table.get(new Get(ROW)).getValue(FAMILY, QUALIFIER));
+
+        for (String value : new String[] {"v1", "v2"})
+        {
+            table.put(newPut(value));
+        }
+        HBaseWriteBuffer buffer = new HBaseWriteBuffer();
+        buffer.put(TABLE, newPut("v3"));
+        buffer.delete(TABLE, unbuffered);
+        buffer.flush(newConnection(table), TABLE);
+        // No earlier version shows through, as with the unbuffered delete
+        assertNull(table.get(new Get(ROW)).getValue(FAMILY, QUALIFIER));
+    }
+
+    @Test
+    public void testColumnDeleteOverridesPendingPut() throws Exception
+    {
+        HBaseWriteBuffer buffer = new HBaseWriteBuffer();
+        buffer.put(TABLE, newPut("a"));
+        Delete delete = new Delete(ROW);
+        delete.deleteColumn(FAMILY, QUALIFIER);
+        buffer.delete(TABLE, delete);
+        assertNull(buffer.exists(TABLE, ROW));
+
+        HTable table = EasyMock.createMock(HTable.class);
+        Capture<ArrayList<Delete>> deletes = new Capture<ArrayList<Delete>>();
+        table.delete(EasyMock.capture(deletes));
+        EasyMock.replay(table);
+
+        HBaseManagedConnection conn = EasyMock.createMock(HBaseManagedConnection.class);
+        EasyMock.expect(conn.getHTable(TABLE)).andReturn(table);
+        // The handle is given back once the table is written
+        conn.returnHTable(TABLE);
+        EasyMock.expectLastCall().atLeastOnce();
+        EasyMock.replay(conn);
+
+        buffer.flush(conn, TABLE);
+        EasyMock.verify(table);
+        assertEquals(1, deletes.getValue().size());
+        assertFalse(deletes.getValue().get(0).isEmpty());
+    }
+
+    private HTable createTable() throws Exception
+    {
+        HBaseAdmin admin = new HBaseAdmin(new HBaseConfiguration());
+        if (admin.tableExists(TABLE))
+        {
+            admin.disableTable(TABLE);
+            admin.deleteTable(TABLE);
+        }
+        HTableDescriptor descriptor = new HTableDescriptor(TABLE);
+        descriptor.addFamily(new HColumnDescriptor(FAMILY));
+        admin.createTable(descriptor);
+        return new HTable(TABLE);
+    }
+
+    private HBaseManagedConnection newConnection(final HTable table) throws IOException
+    {
+        HBaseManagedConnection conn = EasyMock.createMock(HBaseManagedConnection.class);
+        EasyMock.expect(conn.getHTable(TABLE)).andReturn(table).anyTimes();
+        conn.returnHTable(TABLE);
+        EasyMock.expectLastCall().anyTimes();
+        final Capture<List<Get>> gets = new Capture<List<Get>>();
+        EasyMock.expect(conn.get(EasyMock.eq(TABLE), EasyMock.capture(gets))).andAnswer(new IAnswer<Result[]>()
+        {
+            public Result[] answer() throws Throwable
+            {
+                Result[] results = new Result[gets.getValue().size()];
+                for (int i = 0; i < results.length; i++)
+                {
+                    results[i] = table.get(gets.getValue().get(i));
+                }
+                return results;
+            }
+        }).anyTimes();
+        EasyMock.replay(conn);
+        return conn;
+    }
+
+    private Put newPut(String value)
+    {
+        Put put = new Put(ROW);
+        put.add(FAMILY, QUALIFIER, Bytes.toBytes(value));
+        return put;
+    }
+}
@@ -22,12 +22,9 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
 
 import javax.jdo.PersistenceManager;
-import javax.jdo.identity.StringIdentity;
 
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
@@ -44,7 +41,6 @@ import org.junit.Test;
  */
 public class JDOAbstractBaseClassTest extends BaseTest
 {
-    @SuppressWarnings("unchecked")
     @Test
     public void testConcrete() throws IOException, ClassNotFoundException
     {
@@ -79,11 +75,9 @@ public class JDOAbstractBaseClassTest extends BaseTest
         assertEquals(5, concreteEntity.size());
         // Check attributes
         assertEquals("base 1", getStrValue(concreteEntity, "Concrete1", "base1Str"));
-        StringIdentity concrete3Id = deserialize(StringIdentity.class, getBytes(concreteEntity, "Concrete1", "concrete3"));
-        assertEquals(concrete3Id.getKey(), concrete3.getId());
-        List<StringIdentity> concrete4Ids = deserialize(ArrayList.class, getBytes(concreteEntity, "Concrete1", "concrete4"));
-        assertEquals(Utils.newArrayList(new StringIdentity(concrete4a.getClass(), concrete4a.getId()),
-            new StringIdentity(concrete4b.getClass(), concrete4b.getId())), concrete4Ids);
+        assertEquals(Utils.newArrayList(concrete3.getId()), RowReferences.keys(getBytes(concreteEntity, "Concrete1", "concrete3")));
+        assertEquals(Utils.newArrayList(concrete4a.getId(), concrete4b.getId()),
+            RowReferences.keys(getBytes(concreteEntity, "Concrete1", "concrete4")));
 
         // Check for 2 attributes including key
         assertEquals(2, concrete3Entity.size());
@@ -135,10 +129,8 @@ public class JDOAbstractBaseClassTest extends BaseTest
         // Check attributes
         assertEquals("not base 1", getStrValue(concreteEntity, "Concrete1", "base1Str"));
         assertEquals("not concrete", getStrValue(concreteEntity, "Concrete1", "concrete1Str"));
-        concrete3Id = deserialize(StringIdentity.class, getBytes(concreteEntity, "Concrete1", "concrete3"));
-        assertEquals(concrete3Id.getKey(), concrete3.getId());
-        concrete4Ids = deserialize(ArrayList.class, getBytes(concreteEntity, "Concrete1", "concrete4"));
-        assertEquals(Utils.newArrayList(new StringIdentity(concrete4a.getClass(), concrete4a.getId())), concrete4Ids);
+        assertEquals(Utils.newArrayList(concrete3.getId()), RowReferences.keys(getBytes(concreteEntity, "Concrete1", "concrete3")));
+        assertEquals(Utils.newArrayList(concrete4a.getId()), RowReferences.keys(getBytes(concreteEntity, "Concrete1", "concrete4")));
 
         // Check for 2 attributes including key
         assertEquals(2, concrete3Entity.size());
@@ -184,7 +176,6 @@ public class JDOAbstractBaseClassTest extends BaseTest
 
     }
 
-    @SuppressWarnings("unchecked")
     @Test
     public void testConcrete2() throws IOException, ClassNotFoundException
     {
@@ -221,11 +212,9 @@ public class JDOAbstractBaseClassTest extends BaseTest
         assertEquals("base 1", getStrValue(concreteEntity, "Concrete2", "base1Str"));
         assertEquals("base 2", getStrValue(concreteEntity, "Concrete2", "base2Str"));
         assertEquals("concrete", getStrValue(concreteEntity, "Concrete2", "concrete2Str"));
-        StringIdentity concrete3Id = deserialize(StringIdentity.class, getBytes(concreteEntity, "Concrete2", "concrete3"));
-        assertEquals(concrete3Id.getKey(), concrete3.getId());
-        List<StringIdentity> concrete4Ids = deserialize(ArrayList.class, getBytes(concreteEntity, "Concrete2", "concrete4"));
-        assertEquals(Utils.newArrayList(new StringIdentity(concrete4a.getClass(), concrete4a.getId()),
-            new StringIdentity(concrete4b.getClass(), concrete4b.getId())), concrete4Ids);
+        assertEquals(Utils.newArrayList(concrete3.getId()), RowReferences.keys(getBytes(concreteEntity, "Concrete2", "concrete3")));
+        assertEquals(Utils.newArrayList(concrete4a.getId(), concrete4b.getId()),
+            RowReferences.keys(getBytes(concreteEntity, "Concrete2", "concrete4")));
 
         assertEquals(2, concrete3Entity.size());
         assertEquals("str3", getStrValue(concrete3Entity, "Concrete3", "str"));
@@ -274,10 +263,8 @@ public class JDOAbstractBaseClassTest extends BaseTest
         assertEquals("not base 1", getStrValue(concreteEntity, "Concrete2", "base1Str"));
         assertEquals("not base 2", getStrValue(concreteEntity, "Concrete2", "base2Str"));
         assertEquals("not concrete", getStrValue(concreteEntity, "Concrete2", "concrete2Str"));
-        concrete3Id = deserialize(StringIdentity.class, getBytes(concreteEntity, "Concrete2", "concrete3"));
-        assertEquals(concrete3Id.getKey(), concrete3.getId());
-        concrete4Ids = deserialize(ArrayList.class, getBytes(concreteEntity, "Concrete2", "concrete4"));
-        assertEquals(Utils.newArrayList(new StringIdentity(concrete4a.getClass(), concrete4a.getId())), concrete4Ids);
+        assertEquals(Utils.newArrayList(concrete3.getId()), RowReferences.keys(getBytes(concreteEntity, "Concrete2", "concrete3")));
+        assertEquals(Utils.newArrayList(concrete4a.getId()), RowReferences.keys(getBytes(concreteEntity, "Concrete2", "concrete4")));
 
         assertEquals(2, concrete3Entity.size());
         assertEquals("blam3", getStrValue(concrete3Entity, "Concrete3", "str"));
@@ -23,7 +23,6 @@ import static org.junit.Assert.assertNull;
 import java.io.IOException;
 
 import javax.jdo.PersistenceManager;
-import javax.jdo.identity.StringIdentity;
 
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -59,9 +58,7 @@ public class JDOBidirectionalOneToOneSubclassTest extends BaseTest
         assertEquals(4, parentEntity.size());
         assertEquals("a string", getStrValue(parentEntity, "B1", "aString"));
         assertEquals("b string", getStrValue(parentEntity, "B1", "bString"));
-        StringIdentity childId = deserialize(StringIdentity.class, getBytes(parentEntity, "B1", "child"));
-        assertEquals(childId.getTargetClassName(), child.getClass().getName());
-        assertEquals(childId.getKey(), child.getId());
+        assertEquals(Utils.newArrayList(child.getId()), RowReferences.keys(getBytes(parentEntity, "B1", "child")));
         assertEquals(3, childEntity.size());
         assertEquals("x string", getStrValue(childEntity, "X1", "xString"));
 
@@ -105,9 +102,7 @@ public class JDOBidirectionalOneToOneSubclassTest extends BaseTest
         Result childEntity = get("X1", Bytes.toBytes(child.getId()));
         assertEquals(3, parentEntity.size());
         assertEquals("a string", getStrValue(parentEntity, "A1", "aString"));
-        StringIdentity childId = deserialize(StringIdentity.class, getBytes(parentEntity, "A1", "child"));
-        assertEquals(childId.getTargetClassName(), child.getClass().getName());
-        assertEquals(childId.getKey(), child.getId());
+        assertEquals(Utils.newArrayList(child.getId()), RowReferences.keys(getBytes(parentEntity, "A1", "child")));
         assertEquals(3, childEntity.size());
         assertEquals("x string", getStrValue(childEntity, "X1", "xString"));
 
@@ -155,9 +150,7 @@ public class JDOBidirectionalOneToOneSubclassTest extends BaseTest
         assertEquals(4, parentEntity.size());
         assertEquals("a string", getStrValue(parentEntity, "B2", "aString"));
         assertEquals("b string", getStrValue(parentEntity, "B2", "bString"));
-        StringIdentity childId = deserialize(StringIdentity.class, getBytes(parentEntity, "B2", "child"));
-        assertEquals(childId.getTargetClassName(), child.getClass().getName());
-        assertEquals(childId.getKey(), child.getId());
+        assertEquals(Utils.newArrayList(child.getId()), RowReferences.keys(getBytes(parentEntity, "B2", "child")));
         assertEquals(4, childEntity.size());
         assertEquals("x string", getStrValue(childEntity, "Y2", "xString"));
         assertEquals("y string", getStrValue(childEntity, "Y2", "yString"));
@@ -236,9 +229,7 @@ public class JDOBidirectionalOneToOneSubclassTest extends BaseTest
         assertEquals(4, parentEntity.size());
         assertEquals("a string", getStrValue(parentEntity, "B3", "aString"));
         assertEquals("b string", getStrValue(parentEntity, "B3", "bString"));
-        StringIdentity childId = deserialize(StringIdentity.class, getBytes(parentEntity, "B3", "child"));
-        assertEquals(childId.getTargetClassName(), child.getClass().getName());
-        assertEquals(childId.getKey(), child.getId());
+        assertEquals(Utils.newArrayList(child.getId()), RowReferences.keys(getBytes(parentEntity, "B3", "child")));
         assertEquals(4, childEntity.size());
         assertEquals("x string", getStrValue(childEntity, "Y3", "xString"));
         assertEquals("y string", getStrValue(childEntity, "Y3", "yString"));
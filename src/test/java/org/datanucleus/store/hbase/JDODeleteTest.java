@@ -17,13 +17,23 @@
  ************************************************************************/
 package org.datanucleus.store.hbase;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.JDOHelper;
 import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
 
+import org.apache.hadoop.hbase.util.Bytes;
 import org.datanucleus.test.BaseTest;
+import org.datanucleus.test.models.CascadeDeleteJDO;
 import org.datanucleus.test.models.KitchenSink;
 import org.junit.Test;
 
@@ -132,4 +142,171 @@ public class JDODeleteTest extends BaseTest
         }
     }
 
+    @Test
+    public void testMultiLevelCascade() throws IOException
+    {
+        Graph graph = persistGraph();
+        assertEquals(4, graph.leafIds.size());
+
+        deleteInNewPersistenceManager(CascadeDeleteJDO.Root.class, graph.rootId);
+
+        assertTrue(get("CascadeRoot", Bytes.toBytes(graph.rootId)).isEmpty());
+        assertDeleted("CascadeBranch", graph.branchIds);
+        assertDeleted("CascadeLeaf", graph.leafIds);
+    }
+
+    @Test
+    public void testOneToOneBiCascade() throws IOException
+    {
+        Graph graph = persistGraph();
+        assertFalse(get("CascadeDetail", Bytes.toBytes(graph.detailId)).isEmpty());
+
+        deleteInNewPersistenceManager(CascadeDeleteJDO.Root.class, graph.rootId);
+
+        assertTrue(get("CascadeRoot", Bytes.toBytes(graph.rootId)).isEmpty());
+        assertTrue(get("CascadeDetail", Bytes.toBytes(graph.detailId)).isEmpty());
+    }
+
+    @Test
+    public void testCycleThroughInverseSide() throws IOException
+    {
+        Graph graph = persistGraph();
+
+        // Detail -> Root through the inverse side of the 1-1, and Root -> Detail back again
+        deleteInNewPersistenceManager(CascadeDeleteJDO.Detail.class, graph.detailId);
+
+        assertTrue(get("CascadeDetail", Bytes.toBytes(graph.detailId)).isEmpty());
+        assertTrue(get("CascadeRoot", Bytes.toBytes(graph.rootId)).isEmpty());
+        assertDeleted("CascadeBranch", graph.branchIds);
+        assertDeleted("CascadeLeaf", graph.leafIds);
+    }
+
+    @Test
+    public void testCachedChildIsDeleted() throws IOException
+    {
+        Graph graph = persistGraph();
+
+        PersistenceManager pm = PMF.get().getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            CascadeDeleteJDO.Root root = pm.getObjectById(CascadeDeleteJDO.Root.class, graph.rootId);
+            CascadeDeleteJDO.Branch branch = root.getBranches().get(0);
+            CascadeDeleteJDO.Leaf leaf = branch.getLeaves().get(0);
+            pm.deletePersistent(root);
+
+            // The children in the cache are deleted through the persistence manager, not only dropped from the cache
+            assertTrue(JDOHelper.isDeleted(branch));
+            assertTrue(JDOHelper.isDeleted(leaf));
+            pm.currentTransaction().commit();
+            assertFalse(JDOHelper.isPersistent(branch));
+
+            try
+            {
+                pm.getObjectById(CascadeDeleteJDO.Branch.class, branch.getId());
+                fail("expected onfe");
+            }
+            catch (JDOObjectNotFoundException onfe)
+            {
+                // good
+            }
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+        assertDeleted("CascadeBranch", graph.branchIds);
+        assertDeleted("CascadeLeaf", graph.leafIds);
+    }
+
+    /**
+     * Ids of a root with a detail and two branches of two leaves each.
+     */
+    private static class Graph
+    {
+        String rootId;
+
+        String detailId;
+
+        final List<String> branchIds = new ArrayList<String>();
+
+        final List<String> leafIds = new ArrayList<String>();
+    }
+
+    private Graph persistGraph()
+    {
+        CascadeDeleteJDO.Root root = new CascadeDeleteJDO.Root();
+        CascadeDeleteJDO.Detail detail = new CascadeDeleteJDO.Detail();
+        detail.setRoot(root);
+        root.setDetail(detail);
+        for (int i = 0; i < 2; i++)
+        {
+            CascadeDeleteJDO.Branch branch = new CascadeDeleteJDO.Branch();
+            root.getBranches().add(branch);
+            for (int j = 0; j < 2; j++)
+            {
+                branch.getLeaves().add(new CascadeDeleteJDO.Leaf());
+            }
+        }
+
+        Graph graph = new Graph();
+        PersistenceManager pm = PMF.get().getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            pm.makePersistent(root);
+            graph.rootId = root.getId();
+            graph.detailId = detail.getId();
+            for (CascadeDeleteJDO.Branch branch : root.getBranches())
+            {
+                graph.branchIds.add(branch.getId());
+                for (CascadeDeleteJDO.Leaf leaf : branch.getLeaves())
+                {
+                    graph.leafIds.add(leaf.getId());
+                }
+            }
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+        return graph;
+    }
+
+    private void deleteInNewPersistenceManager(Class<?> cls, String id)
+    {
+        PersistenceManager pm = PMF.get().getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            pm.deletePersistent(pm.getObjectById(cls, id));
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+    }
+
+    private void assertDeleted(String tableName, List<String> ids) throws IOException
+    {
+        for (String id : ids)
+        {
+            assertTrue(get(tableName, Bytes.toBytes(id)).isEmpty());
+        }
+    }
+
 }
@@ -18,27 +18,41 @@
 package org.datanucleus.store.hbase;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
 
 import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
 
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.TableNotFoundException;
 import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.datanucleus.test.BaseTest;
+import org.datanucleus.test.models.Department;
 import org.datanucleus.test.models.Flight;
+import org.datanucleus.test.models.HasFetchGroupsJDO;
 import org.datanucleus.test.models.HasMultiValuePropsJDO;
 import org.datanucleus.test.models.KitchenSink;
+import org.datanucleus.test.models.Project;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -128,6 +142,130 @@ public class JDOFetchTest extends BaseTest
         commitTxn();
     }
 
+    @Test
+    public void testFetchObjectsById() throws IOException
+    {
+        PersistenceManager pm = getPersistenceManager();
+        HTable table = new HTable(Bytes.toBytes("Flight"));
+        table.put(Flight.newFlightPut("key0.1", "1", "yam", "bam", 1, 2, 300));
+        table.put(Flight.newFlightPut("key0.2", "2", "bam", "yam", 3, 4, 301));
+        beginTxn();
+        Collection<?> flights = pm.getObjectsById(Arrays.asList(pm.newObjectIdInstance(Flight.class, "key0.1"),
+            pm.newObjectIdInstance(Flight.class, "key0.2")));
+        assertEquals(2, flights.size());
+        Iterator<?> it = flights.iterator();
+        Flight flight = (Flight) it.next();
+        assertEquals("key0.1", flight.getId());
+        assertEquals("yam", flight.getOrigin());
+        assertEquals(1, flight.getYou());
+        flight = (Flight) it.next();
+        assertEquals("key0.2", flight.getId());
+        assertEquals("bam", flight.getOrigin());
+        assertEquals(4, flight.getMe());
+        commitTxn();
+        table.delete(new Delete(Bytes.toBytes("key0.1")));
+        table.delete(new Delete(Bytes.toBytes("key0.2")));
+        table.close();
+    }
+
+    @Test
+    public void testFetchObjectsByIdReadsEachRowOnce() throws IOException
+    {
+        HTable table = new HTable(Bytes.toBytes("Flight"));
+        table.put(Flight.newFlightPut("key0.3", "3", "yam", "bam", 1, 2, 300));
+        table.put(Flight.newFlightPut("key0.4", "4", "bam", "yam", 3, 4, 301));
+        table.put(Flight.newFlightPut("key0.5", "5", "yam", "yam", 5, 6, 302));
+
+        // A single executor thread keeps the whole batch on the recorded handle
+        Properties props = new Properties();
+        props.setProperty("datanucleus.hbase.executorThreads", "1");
+        PersistenceManagerFactory pmf = PMF.get(props);
+        PersistenceManager pm = pmf.getPersistenceManager();
+        RecordingHTable recording = RecordingHTable.install(pm, "Flight");
+        try
+        {
+            pm.currentTransaction().begin();
+            Object[] flights = pm.getObjectsById(pm.newObjectIdInstance(Flight.class, "key0.3"),
+                pm.newObjectIdInstance(Flight.class, "key0.4"), pm.newObjectIdInstance(Flight.class, "key0.5"));
+            // One get per row from the bulk lookup, rather than a lookup then a fetch of each object
+            assertEquals(3, recording.gets.size());
+            assertEquals("yam", ((Flight) flights[0]).getOrigin());
+            assertEquals(4, ((Flight) flights[1]).getMe());
+            assertEquals("yam", ((Flight) flights[2]).getDest());
+            assertEquals(3, recording.gets.size());
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+            pmf.close();
+        }
+        table.delete(new Delete(Bytes.toBytes("key0.3")));
+        table.delete(new Delete(Bytes.toBytes("key0.4")));
+        table.delete(new Delete(Bytes.toBytes("key0.5")));
+        table.close();
+    }
+
+    @Test
+    public void testCollectionElementsLoadedWithOneBatch() throws IOException
+    {
+        Department dept = new Department("FetchBatchDept");
+        for (int i = 0; i < 3; i++)
+        {
+            dept.addProject(new Project("FetchBatchProject" + i, i));
+        }
+        makePersistentInTxn(dept, TXN_START_END);
+
+        Properties props = new Properties();
+        props.setProperty("datanucleus.hbase.executorThreads", "1");
+        PersistenceManagerFactory pmf = PMF.get(props);
+        PersistenceManager pm = pmf.getPersistenceManager();
+        RecordingHTable recording = RecordingHTable.install(pm, "Project");
+        try
+        {
+            pm.currentTransaction().begin();
+            Department fetched = pm.getObjectById(Department.class, "FetchBatchDept");
+            assertTrue(recording.gets.isEmpty());
+            Set<Project> projects = fetched.getProjects();
+            assertEquals(3, projects.size());
+            // The element rows are read by the batch that loads the collection, hydrated with their fields
+            assertEquals(3, recording.gets.size());
+            Set<String> rows = new HashSet<String>();
+            for (Get get : recording.gets)
+            {
+                rows.add(Bytes.toString(get.getRow()));
+            }
+            long budgets = 0;
+            for (Project project : projects)
+            {
+                assertTrue(rows.contains(project.getName()));
+                budgets += project.getBudget();
+            }
+            assertEquals(3, budgets);
+            assertEquals(3, recording.gets.size());
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+            pmf.close();
+        }
+        HTable projectTable = new HTable("Project");
+        for (int i = 0; i < 3; i++)
+        {
+            projectTable.delete(new Delete(Bytes.toBytes("FetchBatchProject" + i)));
+        }
+        new HTable("Department").delete(new Delete(Bytes.toBytes("FetchBatchDept")));
+    }
+
     @Test
     public void testSimpleFetch_Id_LongIdOnly_NotFound()
     {
@@ -179,6 +317,22 @@ public class JDOFetchTest extends BaseTest
         table.close();
     }
 
+    @Test
+    public void testLegacyKitchenSinkFetch() throws IOException
+    {
+        // Rows written with Java serialization before the compact codec are still read
+        PersistenceManager pm = getPersistenceManager();
+        HTable table = new HTable(Bytes.toBytes("KitchenSink"));
+        table.put(KitchenSink.newLegacyKitchenSinkPut("key0.9"));
+        beginTxn();
+        KitchenSink ks = pm.getObjectById(KitchenSink.class, "key0.9");
+        assertNotNull(ks);
+        assertEquals(KitchenSink.newKitchenSink(ks.key), ks);
+        commitTxn();
+        table.delete(new Delete(Bytes.toBytes("key0.9")));
+        table.close();
+    }
+
     @Test
     public void testFetchSet() throws IOException
     {
@@ -340,4 +494,63 @@ public class JDOFetchTest extends BaseTest
         new HTable(Bytes.toBytes("HasMultiValuePropsJDO")).delete(delete);
     }
 
+    @Test
+    public void testFetchReadsRequestedColumnsOnly() throws IOException
+    {
+        HasFetchGroupsJDO pojo = new HasFetchGroupsJDO();
+        pojo.setStr1("1");
+        pojo.setStr2("2");
+        pojo.setStr3("3");
+        pojo.setStr4("4");
+        makePersistentInTxn(pojo, TXN_START_END);
+
+        PersistenceManager pm = PMF.get().getPersistenceManager();
+        RecordingHTable table = RecordingHTable.install(pm, "HasFetchGroupsJDO");
+        try
+        {
+            pm.currentTransaction().begin();
+            HasFetchGroupsJDO fetched = pm.getObjectById(HasFetchGroupsJDO.class, pojo.getId());
+            assertEquals("1", fetched.getStr1());
+            Set<String> qualifiers = getQualifiers(table.gets, "HasFetchGroupsJDO");
+            assertTrue(qualifiers.containsAll(Arrays.asList("str1", "str2", "str4")));
+            assertFalse(qualifiers.contains("str3"));
+            assertFalse(qualifiers.contains("link"));
+
+            // Loading a field outside the default fetch group reads that column, not the ones already loaded
+            table.gets.clear();
+            assertEquals("3", fetched.getStr3());
+            qualifiers = getQualifiers(table.gets, "HasFetchGroupsJDO");
+            assertTrue(qualifiers.contains("str3"));
+            assertFalse(qualifiers.contains("str1"));
+            assertFalse(qualifiers.contains("link"));
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+        new HTable("HasFetchGroupsJDO").delete(new Delete(Bytes.toBytes(pojo.getId())));
+    }
+
+    private Set<String> getQualifiers(List<Get> gets, String family)
+    {
+        assertFalse(gets.isEmpty());
+        Set<String> qualifiers = new HashSet<String>();
+        for (Get get : gets)
+        {
+            Set<byte[]> columns = get.getFamilyMap().get(Bytes.toBytes(family));
+            // A get without columns reads the whole family
+            assertNotNull(columns);
+            for (byte[] qualifier : columns)
+            {
+                qualifiers.add(Bytes.toString(qualifier));
+            }
+        }
+        return qualifiers;
+    }
+
 }
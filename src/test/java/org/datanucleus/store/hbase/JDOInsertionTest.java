@@ -22,10 +22,15 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.util.Properties;
 
+import javax.jdo.JDOException;
+import javax.jdo.JDOUserException;
 import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
 
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
@@ -39,9 +44,12 @@ import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.datanucleus.test.BaseTest;
+import org.datanucleus.test.models.Department;
 import org.datanucleus.test.models.Flight;
+import org.datanucleus.test.models.HasBlindUpsertJDO;
 import org.datanucleus.test.models.HasKeyPkJDO;
 import org.datanucleus.test.models.KitchenSink;
+import org.datanucleus.test.models.Project;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -189,4 +197,137 @@ public class JDOInsertionTest extends BaseTest
         commitTxn();
 
     }
+
+    @Test
+    public void testDuplicateIdLeavesNoOrphans() throws IOException
+    {
+        makePersistentInTxn(new Department("DuplicateDept"), TXN_START_END);
+
+        Department duplicate = new Department("DuplicateDept");
+        duplicate.addProject(new Project("OrphanProject", 10));
+        PersistenceManager pm = PMF.get().getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            pm.makePersistent(duplicate);
+            pm.currentTransaction().commit();
+            fail("Inserted an object with an existing id");
+        }
+        catch (JDOUserException e)
+        {
+            assertTrue(e.getMessage().contains("already exists"));
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+
+        // The project would only be reachable from the rejected department
+        assertTrue(get("Project", Bytes.toBytes("OrphanProject")).isEmpty());
+        assertNull(getBytes(get("Department", Bytes.toBytes("DuplicateDept")), "Department", "projects"));
+        new HTable("Department").delete(new Delete(Bytes.toBytes("DuplicateDept")));
+    }
+
+    @Test
+    public void testBlindUpsertOverwrites() throws IOException
+    {
+        makePersistentInTxn(new HasBlindUpsertJDO("BlindUpsert", "first"), TXN_START_END);
+
+        PersistenceManager pm = PMF.get().getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            pm.makePersistent(new HasBlindUpsertJDO("BlindUpsert", "second"));
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+
+        Result entity = get("HasBlindUpsertJDO", Bytes.toBytes("BlindUpsert"));
+        assertEquals("second", getStrValue(entity, "HasBlindUpsertJDO", "str"));
+        new HTable("HasBlindUpsertJDO").delete(new Delete(Bytes.toBytes("BlindUpsert")));
+    }
+
+    @Test
+    public void testWriteBehindDuplicateIdFailsCommit() throws IOException
+    {
+        makePersistentInTxn(new Department("WriteBehindDept"), TXN_START_END);
+
+        Properties props = new Properties();
+        props.setProperty("datanucleus.hbase.writeBehind", "true");
+        PersistenceManagerFactory pmf = PMF.get(props);
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            Department duplicate = new Department("WriteBehindDept");
+            duplicate.addProject(new Project("WriteBehindProject", 10));
+            pm.currentTransaction().begin();
+            // Queued without a read, the id is checked when the buffer is flushed
+            pm.makePersistent(duplicate);
+            pm.currentTransaction().commit();
+            fail("Inserted an object with an existing id");
+        }
+        catch (JDOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("already exists"));
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+            pmf.close();
+        }
+
+        // The ids are checked before anything is written
+        assertTrue(get("Project", Bytes.toBytes("WriteBehindProject")).isEmpty());
+        new HTable("Department").delete(new Delete(Bytes.toBytes("WriteBehindDept")));
+    }
+
+    @Test
+    public void testWriteBehindFlushedByTransactionFlush() throws IOException
+    {
+        Properties props = new Properties();
+        props.setProperty("datanucleus.hbase.writeBehind", "true");
+        PersistenceManagerFactory pmf = PMF.get(props);
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            Flight f1 = new Flight();
+            f1.setOrigin("BOS");
+            f1.setDest("MIA");
+            f1.setName("Harold");
+            pm.currentTransaction().begin();
+            pm.makePersistent(f1);
+            assertEquals(0, get("Flight", Bytes.toBytes(f1.getId())).size());
+
+            // The transaction flush reaches the write buffer through the connection's listener
+            pm.flush();
+            Result entity = get("Flight", Bytes.toBytes(f1.getId()));
+            assertEquals("Harold", getStrValue(entity, "Flight", "name"));
+            pm.currentTransaction().commit();
+            new HTable("Flight").delete(new Delete(Bytes.toBytes(f1.getId())));
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+            pmf.close();
+        }
+    }
 }
@@ -0,0 +1,560 @@
+/**********************************************************************
+ * Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.store.hbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.jdo.identity.StringIdentity;
+import javax.jdo.listener.DeleteLifecycleListener;
+import javax.jdo.listener.InstanceLifecycleEvent;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.datanucleus.ObjectManager;
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.jdo.JDOPersistenceManager;
+import org.datanucleus.store.hbase.query.HBaseQueryResult;
+import org.datanucleus.test.BaseTest;
+import org.datanucleus.test.models.Flight;
+import org.datanucleus.test.models.HasParallelScanJDO;
+import org.junit.Test;
+
+/**
+ */
+public class JDOQueryTest extends BaseTest
+{
+    private void persistFlights(String origin)
+    {
+        PersistenceManager pm = getPersistenceManager();
+        beginTxn();
+        for (int i = -3; i < 3; i++)
+        {
+            Flight flight = new Flight(origin, i % 2 == 0 ? "even" : null, "flight" + i, i, -i);
+            flight.setId(origin + "." + i);
+            pm.makePersistent(flight);
+        }
+        commitTxn();
+    }
+
+    private int count(String filter, Object... params)
+    {
+        Query query = getPersistenceManager().newQuery(Flight.class, filter);
+        return ((Collection<?>) query.executeWithArray(params)).size();
+    }
+
+    @Test
+    public void testFilterPushdown() throws IOException
+    {
+        persistFlights("q11");
+        beginTxn();
+        assertEquals(6, count("origin == 'q11'"));
+        assertEquals(1, count("origin == 'q11' && name == 'flight1'"));
+        assertEquals(1, count("origin == :o && you == :y", "q11", -2));
+        assertEquals(5, count("origin == 'q11' && you != 0"));
+        // Orderings on ints, on both sides of 0
+        assertEquals(3, count("origin == 'q11' && you >= 0"));
+        assertEquals(2, count("origin == 'q11' && you > 0"));
+        assertEquals(2, count("origin == 'q11' && you < -1"));
+        assertEquals(5, count("origin == 'q11' && you > -3"));
+        assertEquals(2, count("origin == 'q11' && 1 >= you && you > -1"));
+        assertEquals(2, count("origin == 'q11' && (you == 2 || me == 2)"));
+        // Null checks
+        assertEquals(3, count("origin == 'q11' && dest == null"));
+        assertEquals(3, count("origin == 'q11' && dest != null"));
+        // Not translated, evaluated in memory
+        assertEquals(1, count("origin == 'q11' && name.startsWith('flight-1')"));
+        commitTxn();
+
+        PersistenceManager pm = PMF.get().getPersistenceManager();
+        RecordingHTable table = RecordingHTable.install(pm, "Flight");
+        try
+        {
+            pm.currentTransaction().begin();
+            Query query = pm.newQuery(Flight.class, "origin == 'q11' && name == 'flight1'");
+            assertEquals(1, ((Collection<?>) query.execute()).size());
+            assertEquals(1, table.scans.size());
+            Scan scan = table.scans.get(0);
+            // The comparisons run on the region servers, which send back the fetch plan columns only
+            assertNotNull(scan.getFilter());
+            Set<String> qualifiers = getQualifiers(scan);
+            assertTrue(qualifiers.containsAll(Arrays.asList("id", "origin", "name")));
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+    }
+
+    private Set<String> getQualifiers(Scan scan)
+    {
+        Set<byte[]> columns = scan.getFamilyMap().get(Bytes.toBytes("Flight"));
+        // A scan without columns reads the whole family
+        assertNotNull(columns);
+        Set<String> qualifiers = new HashSet<String>();
+        for (byte[] qualifier : columns)
+        {
+            qualifiers.add(Bytes.toString(qualifier));
+        }
+        return qualifiers;
+    }
+
+    private long countResult(String filter, Object... params)
+    {
+        Query query = getPersistenceManager().newQuery(Flight.class, filter);
+        query.setResult("count(this)");
+        return ((Long) query.executeWithArray(params)).longValue();
+    }
+
+    @Test
+    public void testCount() throws IOException
+    {
+        persistFlights("q17");
+        beginTxn();
+        // Evaluated by HBase
+        assertEquals(6, countResult("origin == 'q17'"));
+        assertEquals(1, countResult("origin == :o && you == :y", "q17", 1));
+        assertEquals(3, countResult("origin == 'q17' && dest != null"));
+        assertEquals(1, countResult("id == 'q17.0'"));
+        assertEquals(0, countResult("origin == 'q17-none'"));
+        // Partly evaluated in memory
+        assertEquals(2, countResult("origin == 'q17' && you > 0"));
+        assertEquals(3, countResult("origin == 'q17' && dest == null"));
+        commitTxn();
+
+        PersistenceManager pm = PMF.get().getPersistenceManager();
+        RecordingHTable table = RecordingHTable.install(pm, "Flight");
+        try
+        {
+            pm.currentTransaction().begin();
+            Query query = pm.newQuery(Flight.class, "origin == 'q17'");
+            query.setResult("count(this)");
+            assertEquals(6, ((Long) query.execute()).longValue());
+            assertEquals(1, table.scans.size());
+            Scan scan = table.scans.get(0);
+            // Filtered by HBase, reading the PK column and the compared one only
+            assertNotNull(scan.getFilter());
+            assertEquals(new HashSet<String>(Arrays.asList("id", "origin")), getQualifiers(scan));
+            // Counted from the rows, no object was built
+            ObjectManager om = ((JDOPersistenceManager) pm).getObjectManager();
+            for (int i = -3; i < 3; i++)
+            {
+                assertNull(om.getObjectFromCache(new StringIdentity(Flight.class, "q17." + i)));
+            }
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+    }
+
+    @Test
+    public void testPrimaryKeyRestrictions()
+    {
+        persistFlights("q12");
+        beginTxn();
+        assertEquals(1, count("id == 'q12.1'"));
+        assertEquals(1, count("id == :id && you == 1", "q12.1"));
+        assertEquals(0, count("id == :id && you == 2", "q12.1"));
+        assertEquals(0, count("id == 'q12.9'"));
+        assertEquals(2, count(":ids.contains(id)", Arrays.asList("q12.1", "q12.2", "q12.9", "q12.1")));
+        assertEquals(6, count("id.startsWith('q12.')"));
+        assertEquals(3, count("id.startsWith(:p) && you >= 0", "q12."));
+        assertEquals(2, count("id >= 'q12.0' && id < 'q12.2'"));
+        assertEquals(2, count("'q12.0' < id && id <= 'q12.2' && origin == 'q12'"));
+        assertEquals(0, count("id > 'q12.2' && id < 'q12.0'"));
+        assertEquals(2, count("id > 'q12.0' && id < 'q12.3'"));
+
+        // Rows read in key order
+        Query query = getPersistenceManager().newQuery(Flight.class, "id.startsWith('q12.')");
+        query.setOrdering("id ascending");
+        List<?> flights = (List<?>) query.execute();
+        assertEquals(6, flights.size());
+        assertEquals("q12.-1", ((Flight) flights.get(0)).getId());
+        query.setOrdering("id descending");
+        Iterator<?> it = ((List<?>) query.execute()).iterator();
+        assertEquals("q12.2", ((Flight) it.next()).getId());
+        commitTxn();
+    }
+
+    @Test
+    public void testStreamedResults()
+    {
+        persistFlights("q13");
+        beginTxn();
+        Query query = getPersistenceManager().newQuery(Flight.class, "origin == 'q13' && you >= 0");
+        Collection<?> flights = (Collection<?>) query.execute();
+        int count = 0;
+        for (Object flight : flights)
+        {
+            assertTrue(((Flight) flight).getYou() >= 0);
+            count++;
+        }
+        assertEquals(3, count);
+        // Iterated again from the kept results
+        assertEquals(3, flights.size());
+        query.closeAll();
+
+        query.addExtension("datanucleus.query.resultCacheType", "none");
+        flights = (Collection<?>) query.execute();
+        count = 0;
+        for (Iterator<?> it = flights.iterator(); it.hasNext(); it.next())
+        {
+            count++;
+        }
+        assertEquals(3, count);
+        try
+        {
+            flights.iterator();
+            fail("Results that aren't kept can't be iterated twice");
+        }
+        catch (NucleusUserException expected)
+        {
+        }
+        query.closeAll();
+        commitTxn();
+    }
+
+    @Test
+    public void testStreamedResultsReleaseTheConnection()
+    {
+        persistFlights("q21");
+        PersistenceManager pm = PMF.get().getPersistenceManager();
+        HBaseStoreManager storeMgr = (HBaseStoreManager) ((JDOPersistenceManager) pm).getObjectManager().getStoreManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            Query query = pm.newQuery(Flight.class, "origin == 'q21'");
+            query.getFetchPlan().setFetchSize(2);
+            Iterator<?> it = ((Collection<?>) query.execute()).iterator();
+            assertTrue(it.hasNext());
+            // Only the scanner is held while the results are read, the table handles went back with the connection
+            assertEquals(0, storeMgr.getTablePool().getActiveHandles("Flight"));
+            int count = 0;
+            for (; it.hasNext(); it.next())
+            {
+                count++;
+            }
+            assertEquals(6, count);
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+    }
+
+    @Test
+    public void testFetchPlanFieldsLoadedFromScan() throws IOException
+    {
+        persistFlights("q14");
+        PersistenceManager pm = PMF.get().getPersistenceManager();
+        RecordingHTable table = RecordingHTable.install(pm, "Flight");
+        try
+        {
+            pm.currentTransaction().begin();
+            Query query = pm.newQuery(Flight.class, "origin == 'q14'");
+            Collection<?> flights = (Collection<?>) query.execute();
+            int count = 0;
+            for (Object result : flights)
+            {
+                Flight flight = (Flight) result;
+                assertEquals("q14", flight.getOrigin());
+                assertEquals("flight" + flight.getYou(), flight.getName());
+                assertEquals(-flight.getYou(), flight.getMe());
+                count++;
+            }
+            assertEquals(6, count);
+            assertFalse(table.scans.isEmpty());
+            // Every field came with the scanned rows
+            assertTrue(table.gets.isEmpty());
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+    }
+
+    @Test
+    public void testRange()
+    {
+        persistFlights("q15");
+        beginTxn();
+        Query query = getPersistenceManager().newQuery(Flight.class, "origin == 'q15'");
+        query.setRange(1, 3);
+        assertEquals(2, ((Collection<?>) query.execute()).size());
+        query.setRange(4, 10);
+        assertEquals(2, ((Collection<?>) query.execute()).size());
+        query.setRange(6, 10);
+        assertEquals(0, ((Collection<?>) query.execute()).size());
+
+        // No filter, the rows before the range are skipped
+        query = getPersistenceManager().newQuery(Flight.class);
+        query.setRange(2, 5);
+        assertEquals(3, ((Collection<?>) query.execute()).size());
+
+        // Not streamed, the ordering is applied first
+        query = getPersistenceManager().newQuery(Flight.class, "origin == 'q15'");
+        query.setOrdering("you descending");
+        query.setRange(0, 2);
+        List<?> flights = (List<?>) query.execute();
+        assertEquals(2, flights.size());
+        assertEquals(2, ((Flight) flights.get(0)).getYou());
+        commitTxn();
+    }
+
+    /**
+     * Splits a table and waits for the daughter regions to be online, for scans to span more than one region.
+     */
+    private void splitTable(String tableName) throws Exception
+    {
+        HBaseAdmin admin = new HBaseAdmin(new HBaseConfiguration());
+        // A region is split at the middle key of its store files, so the rows are flushed first
+        admin.flush(tableName);
+        HTable table = new HTable(tableName);
+        admin.split(tableName);
+        for (int i = 0; i < 100 && table.getStartKeys().length < 2; i++)
+        {
+            Thread.sleep(100);
+            if (i % 20 == 19)
+            {
+                // Not split while the flush was still being written, asked again
+                admin.split(tableName);
+            }
+        }
+        assertTrue(table.getStartKeys().length > 1);
+    }
+
+    @Test
+    public void testParallelScan() throws Exception
+    {
+        // A table of its own, the split leaves the tables of the other tests alone
+        PersistenceManager pm = getPersistenceManager();
+        beginTxn();
+        for (int i = 0; i < 20; i++)
+        {
+            pm.makePersistent(new HasParallelScanJDO("ps." + (char) ('a' + i), i % 2 == 0 ? "even" : "odd", i));
+        }
+        commitTxn();
+        splitTable("HasParallelScanJDO");
+
+        beginTxn();
+        Query query = pm.newQuery(HasParallelScanJDO.class, "str == 'even' && num >= 10");
+        query.addExtension("datanucleus.hbase.query.parallelScan", "true");
+        assertEquals(5, ((Collection<?>) query.execute()).size());
+
+        query = pm.newQuery(HasParallelScanJDO.class, "str == 'odd'");
+        query.addExtension("datanucleus.hbase.query.parallelScan", "true");
+        query.setResult("count(this)");
+        assertEquals(Long.valueOf(10), query.execute());
+
+        // The whole table, read from every region and kept in key order
+        query = pm.newQuery(HasParallelScanJDO.class);
+        query.addExtension("datanucleus.hbase.query.parallelScan", "true");
+        query.setOrdering("key ascending");
+        List<?> rows = (List<?>) query.execute();
+        assertEquals(20, rows.size());
+        for (int i = 0; i < rows.size(); i++)
+        {
+            assertEquals("ps." + (char) ('a' + i), ((HasParallelScanJDO) rows.get(i)).getKey());
+        }
+        commitTxn();
+    }
+
+    @Test
+    public void testDeletePersistentAll()
+    {
+        persistFlights("q19");
+        beginTxn();
+        // Deleted by key
+        Query query = getPersistenceManager().newQuery(Flight.class, "origin == 'q19' && dest != null");
+        assertEquals(3, query.deletePersistentAll());
+        // Partly evaluated in memory, the objects are deleted
+        query = getPersistenceManager().newQuery(Flight.class, "origin == 'q19' && you > 0");
+        assertEquals(1, query.deletePersistentAll());
+        commitTxn();
+
+        beginTxn();
+        assertEquals(2, count("origin == 'q19'"));
+        assertEquals(0, count("origin == 'q19' && dest != null"));
+        commitTxn();
+    }
+
+    @Test
+    public void testDeletePersistentAllCallsListeners()
+    {
+        persistFlights("q22");
+        final List<Object> deleted = new ArrayList<Object>();
+        PersistenceManager pm = PMF.get().getPersistenceManager();
+        pm.addInstanceLifecycleListener(new DeleteLifecycleListener()
+        {
+            public void preDelete(InstanceLifecycleEvent event)
+            {
+                deleted.add(event.getSource());
+            }
+
+            public void postDelete(InstanceLifecycleEvent event)
+            {
+            }
+        }, Flight.class);
+        try
+        {
+            pm.currentTransaction().begin();
+            // Would be deleted by key, the objects are read for the listener instead
+            Query query = pm.newQuery(Flight.class, "origin == 'q22' && dest != null");
+            assertEquals(3, query.deletePersistentAll());
+            assertEquals(3, deleted.size());
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+        beginTxn();
+        assertEquals(0, count("origin == 'q22' && dest != null"));
+        commitTxn();
+    }
+
+    private long update(PersistenceManager pm, String update, Object... params)
+    {
+        Query query = pm.newQuery("javax.jdo.query.JPQL", update);
+        return ((Long) query.executeWithArray(params)).longValue();
+    }
+
+    /**
+     * @return Whether the flight with the given id is in the L1 cache of the persistence manager
+     */
+    private boolean isCached(PersistenceManager pm, String id)
+    {
+        return ((JDOPersistenceManager) pm).getObjectManager().getObjectFromCache(new StringIdentity(Flight.class, id)) != null;
+    }
+
+    @Test
+    public void testBulkUpdate()
+    {
+        persistFlights("q20");
+        String flight = Flight.class.getName();
+        // Nothing cached up front, for the cache to show which rows were read into objects
+        PersistenceManager pm = PMF.get().getPersistenceManager();
+        try
+        {
+            pm.currentTransaction().begin();
+            // Rows found by key, no object is made
+            assertEquals(3, update(pm, "UPDATE " + flight + " f SET f.name = 'updated' WHERE f.origin = 'q20' AND f.dest IS NOT NULL"));
+            assertEquals(3, update(pm, "UPDATE " + flight + " f SET f.dest = NULL, f.me = ?1 WHERE f.origin = 'q20' AND f.name = 'updated'", 7));
+            for (int i = -3; i < 3; i++)
+            {
+                assertFalse(isCached(pm, "q20." + i));
+            }
+            // Filter evaluated in memory : the rows HBase lets through are read into objects. Those updated are
+            // evicted, the negative ones filtered out in memory stay cached
+            assertEquals(2, update(pm, "UPDATE " + flight + " f SET f.dest = 'odd' WHERE f.origin = 'q20' AND f.you > 0"));
+            assertTrue(isCached(pm, "q20.-1"));
+            assertFalse(isCached(pm, "q20.1"));
+            assertFalse(isCached(pm, "q20.0"));
+            pm.currentTransaction().commit();
+        }
+        finally
+        {
+            if (pm.currentTransaction().isActive())
+            {
+                pm.currentTransaction().rollback();
+            }
+            pm.close();
+        }
+
+        beginTxn();
+        assertEquals(2, count("origin == 'q20' && name == 'updated' && me == 7 && dest == null"));
+        assertEquals(2, count("origin == 'q20' && dest == 'odd'"));
+        commitTxn();
+    }
+
+    @Test
+    public void testResumeAfterKey()
+    {
+        persistFlights("q16");
+        beginTxn();
+        // Keys in row order : q16.-1, q16.-2, q16.-3, q16.0, q16.1, q16.2
+        String token = null;
+        String[] lastIds = {"q16.-2", "q16.0", "q16.2"};
+        for (String lastId : lastIds)
+        {
+            Query query = getPersistenceManager().newQuery(Flight.class, "id.startsWith('q16.') && origin == 'q16'");
+            query.setRange(0, 2);
+            if (token != null)
+            {
+                query.addExtension("datanucleus.hbase.query.resumeAfterKey", token);
+            }
+            HBaseQueryResult page = (HBaseQueryResult) query.execute();
+            Flight flight = null;
+            for (Object result : page)
+            {
+                flight = (Flight) result;
+            }
+            assertEquals(lastId, flight.getId());
+            token = page.getContinuationToken();
+            query.closeAll();
+        }
+
+        Query query = getPersistenceManager().newQuery(Flight.class, "id.startsWith('q16.')");
+        query.addExtension("datanucleus.hbase.query.resumeAfterKey", token);
+        assertEquals(0, ((Collection<?>) query.execute()).size());
+        commitTxn();
+    }
+}
@@ -0,0 +1,72 @@
+/**********************************************************************
+ * Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.store.hbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.datanucleus.test.BaseTest;
+import org.datanucleus.test.models.BidirectionalOneToManySubclassesJDO.Example1;
+import org.junit.Test;
+
+/**
+ */
+public class JDOUpdateTest extends BaseTest
+{
+
+    @Test
+    public void testUntouchedCellsKeepTimestamp() throws IOException, InterruptedException
+    {
+        Example1.A parent = new Example1.A();
+        parent.setAString("a string");
+        Example1.X child = new Example1.X();
+        child.setXString("x string");
+        parent.getChildren().add(child);
+        makePersistentInTxn(parent, TXN_START_END);
+
+        Result before = get("A", Bytes.toBytes(parent.getId()));
+        long aStringTimestamp = getTimestamp(before, "A", "aString");
+        long childrenTimestamp = getTimestamp(before, "A", "children");
+        Thread.sleep(10);
+
+        beginTxn();
+        parent = pm.get().getObjectById(Example1.A.class, parent.getId());
+        assertEquals(1, parent.getChildren().size());
+        parent.setAString("another string");
+        commitTxn();
+
+        // Only the dirty field is written, the collection is left as it was
+        Result after = get("A", Bytes.toBytes(parent.getId()));
+        assertEquals("another string", getStrValue(after, "A", "aString"));
+        assertTrue(getTimestamp(after, "A", "aString") > aStringTimestamp);
+        assertEquals(childrenTimestamp, getTimestamp(after, "A", "children"));
+
+        beginTxn();
+        pm.get().deletePersistent(pm.get().getObjectById(Example1.A.class, parent.getId()));
+        commitTxn();
+    }
+
+    private long getTimestamp(Result entity, String family, String qualifier)
+    {
+        return entity.getColumnLatest(Bytes.toBytes(family), Bytes.toBytes(qualifier)).getTimestamp();
+    }
+}
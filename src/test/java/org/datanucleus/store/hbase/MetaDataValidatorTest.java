@@ -33,6 +33,7 @@ import org.datanucleus.test.BaseTest;
 import org.datanucleus.test.models.HasIdentityStrategy;
 import org.datanucleus.test.models.HasTwoPrimaryKeys;
 import org.datanucleus.test.models.HasUniquenessConstraint;
+import org.datanucleus.test.models.HasWideCollectionJDO;
 import org.datanucleus.test.models.HasWrongTypeForSequence;
 import org.datanucleus.test.models.Manager;
 import org.datanucleus.test.models.Person;
@@ -204,6 +205,17 @@ public class MetaDataValidatorTest extends BaseTest
         setIgnorableMetaDataBehavior(null);
     }
 
+    @Test(expected = HBaseMetaDataException.class)
+    public void testWideLayoutOfUnorderedCollection()
+    {
+        OMFContext omfContext = ((JDOPersistenceManagerFactory) pmf).getOMFContext();
+        MetaDataManager mdm = omfContext.getMetaDataManager();
+        AbstractClassMetaData acmd = mdm.getMetaDataForClass(HasWideCollectionJDO.class,
+            omfContext.getClassLoaderResolver(getClass().getClassLoader()));
+        MetaDataValidator mdv = new MetaDataValidator(acmd, mdm, omfContext.getClassLoaderResolver(null));
+        mdv.validate();
+    }
+
     @Test
     public void testPassMetaDataValidator()
     {
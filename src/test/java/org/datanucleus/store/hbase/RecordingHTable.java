@@ -0,0 +1,85 @@
+/**********************************************************************
+ * Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.store.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jdo.PersistenceManager;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.datanucleus.jdo.JDOPersistenceManager;
+
+/**
+ * HTable recording the gets and scans it serves, for tests to check what the store reads.
+ */
+class RecordingHTable extends HTable
+{
+    final List<Get> gets = Collections.synchronizedList(new ArrayList<Get>());
+
+    final List<Scan> scans = Collections.synchronizedList(new ArrayList<Scan>());
+
+    RecordingHTable(String tableName) throws IOException
+    {
+        super(new HBaseConfiguration(), tableName);
+    }
+
+    @Override
+    public Result get(Get get) throws IOException
+    {
+        gets.add(get);
+        return super.get(get);
+    }
+
+    @Override
+    public ResultScanner getScanner(Scan scan) throws IOException
+    {
+        scans.add(scan);
+        return super.getScanner(scan);
+    }
+
+    /**
+     * Puts a recording handle in the table pool of the store of the persistence manager, ahead of the idle handles,
+     * so that the next borrow of the table gets it.
+     */
+    static RecordingHTable install(PersistenceManager pm, String tableName) throws IOException
+    {
+        HBaseStoreManager storeMgr = (HBaseStoreManager) ((JDOPersistenceManager) pm).getObjectManager().getStoreManager();
+        HBaseTablePool pool = storeMgr.getTablePool();
+        List<HTable> borrowed = new ArrayList<HTable>();
+        for (int i = pool.getIdleHandles(tableName); i >= 0; i--)
+        {
+            borrowed.add(pool.borrowTable(tableName));
+        }
+        RecordingHTable table = new RecordingHTable(tableName);
+        // Takes the place of the first handle borrowed
+        pool.returnTable(table);
+        for (HTable idle : borrowed.subList(1, borrowed.size()))
+        {
+            pool.returnTable(idle);
+        }
+        return table;
+    }
+}
@@ -0,0 +1,48 @@
+/**********************************************************************
+ * Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.store.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Reads relation cells back as row keys, for tests to check what a relation field stored.
+ */
+final class RowReferences
+{
+    /**
+     * @param cell A relation cell as written by the store
+     * @return The row keys referenced by the cell, in order
+     */
+    static List<String> keys(byte[] cell) throws IOException
+    {
+        List<String> keys = new ArrayList<String>();
+        for (HBaseRowReference reference : HBaseRowReference.decode(cell))
+        {
+            keys.add(Bytes.toString(reference.key));
+        }
+        return keys;
+    }
+
+    private RowReferences()
+    {
+    }
+}
@@ -236,6 +236,18 @@ public class BaseTest
             return pmf;
         }
 
+        /**
+         * @param overrides Properties to set on top of the test defaults
+         * @return A new {@link PersistenceManagerFactory}, to be closed by the caller
+         */
+        public static PersistenceManagerFactory get(Properties overrides)
+        {
+            Properties props = new Properties();
+            props.putAll(properties);
+            props.putAll(overrides);
+            return JDOHelper.getPersistenceManagerFactory(props);
+        }
+
         /**
          * Default privat constructor
          */
@@ -0,0 +1,133 @@
+/**********************************************************************
+ * Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.test.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.annotations.IdGeneratorStrategy;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * Root has List<Branch> and a Detail, Branch has List<Leaf>, all bidirectional and none dependent, so that deleting a
+ * Root only cascades through the store.
+ */
+public class CascadeDeleteJDO
+{
+    @PersistenceCapable(detachable = "true", table = "CascadeRoot")
+    public static class Root
+    {
+        @PrimaryKey
+        @Persistent(valueStrategy = IdGeneratorStrategy.UUIDHEX)
+        private String id;
+
+        @Persistent(mappedBy = "root")
+        private List<Branch> branches = new ArrayList<Branch>();
+
+        @Persistent(mappedBy = "root")
+        private Detail detail;
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public List<Branch> getBranches()
+        {
+            return branches;
+        }
+
+        public Detail getDetail()
+        {
+            return detail;
+        }
+
+        public void setDetail(Detail detail)
+        {
+            this.detail = detail;
+        }
+    }
+
+    @PersistenceCapable(detachable = "true", table = "CascadeBranch")
+    public static class Branch
+    {
+        @PrimaryKey
+        @Persistent(valueStrategy = IdGeneratorStrategy.UUIDHEX)
+        private String id;
+
+        @Persistent
+        private Root root;
+
+        @Persistent(mappedBy = "branch")
+        private List<Leaf> leaves = new ArrayList<Leaf>();
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public List<Leaf> getLeaves()
+        {
+            return leaves;
+        }
+    }
+
+    @PersistenceCapable(detachable = "true", table = "CascadeLeaf")
+    public static class Leaf
+    {
+        @PrimaryKey
+        @Persistent(valueStrategy = IdGeneratorStrategy.UUIDHEX)
+        private String id;
+
+        @Persistent
+        private Branch branch;
+
+        public String getId()
+        {
+            return id;
+        }
+    }
+
+    @PersistenceCapable(detachable = "true", table = "CascadeDetail")
+    public static class Detail
+    {
+        @PrimaryKey
+        @Persistent(valueStrategy = IdGeneratorStrategy.UUIDHEX)
+        private String id;
+
+        @Persistent
+        private Root root;
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public Root getRoot()
+        {
+            return root;
+        }
+
+        public void setRoot(Root root)
+        {
+            this.root = root;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/**********************************************************************
+ * Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.test.models;
+
+import java.io.Serializable;
+
+import javax.jdo.annotations.Extension;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * Append-only class, inserted without checking whether the id already exists.
+ */
+@PersistenceCapable(detachable = "true", extensions = @Extension(vendorName = "datanucleus", key = "hbase.blindUpsert", value = "true"))
+public class HasBlindUpsertJDO implements Serializable
+{
+
+    @PrimaryKey
+    private String key;
+
+    @Persistent
+    private String str;
+
+    public HasBlindUpsertJDO(String key, String str)
+    {
+        this.key = key;
+        this.str = str;
+    }
+
+    public String getKey()
+    {
+        return key;
+    }
+
+    public String getStr()
+    {
+        return str;
+    }
+
+    public void setStr(String str)
+    {
+        this.str = str;
+    }
+}
@@ -0,0 +1,61 @@
+/**********************************************************************
+ * Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.test.models;
+
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * Class with a table of its own, split into several regions by the tests of parallel scans.
+ */
+@PersistenceCapable(detachable = "true")
+public class HasParallelScanJDO
+{
+
+    @PrimaryKey
+    private String key;
+
+    @Persistent
+    private String str;
+
+    @Persistent
+    private int num;
+
+    public HasParallelScanJDO(String key, String str, int num)
+    {
+        this.key = key;
+        this.str = str;
+        this.num = num;
+    }
+
+    public String getKey()
+    {
+        return key;
+    }
+
+    public String getStr()
+    {
+        return str;
+    }
+
+    public int getNum()
+    {
+        return num;
+    }
+}
@@ -0,0 +1,38 @@
+/**********************************************************************
+ * Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.test.models;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import javax.jdo.annotations.Extension;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * Unordered collection that isn't a set, which the wide layout can't store.
+ */
+@PersistenceCapable
+public class HasWideCollectionJDO
+{
+    @PrimaryKey
+    String id;
+
+    @Extension(vendorName = "datanucleus", key = "hbase.collectionLayout", value = "wide")
+    Collection<Project> projects = new ArrayList<Project>();
+}
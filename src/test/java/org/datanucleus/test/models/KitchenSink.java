@@ -32,6 +32,7 @@ import javax.jdo.annotations.PrimaryKey;
 
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.datanucleus.store.hbase.CompactFieldCodec;
 import org.datanucleus.store.hbase.Utils;
 
 /**
@@ -281,81 +282,100 @@ public class KitchenSink implements Serializable
     }
 
     public static Put newKitchenSinkPut(String key) throws IOException
+    {
+        return newKitchenSinkPut(key, false);
+    }
+
+    /**
+     * @return The same row as {@link #newKitchenSinkPut(String)}, with the object fields Java-serialized as they were
+     * written before {@link CompactFieldCodec}
+     */
+    public static Put newLegacyKitchenSinkPut(String key) throws IOException
+    {
+        return newKitchenSinkPut(key, true);
+    }
+
+    private static Put newKitchenSinkPut(String key, boolean legacy) throws IOException
     {
         Put put = new Put(Bytes.toBytes(key));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("key"), Bytes.toBytes(key));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("strVal"), Bytes.toBytes("strVal"));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("boolVal"), Utils.serializeObject(Boolean.TRUE));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("boolVal"), encode(legacy, Boolean.TRUE));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("boolPrimVal"), Bytes.toBytes(true));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("longVal"), Utils.serializeObject(new Long(4L)));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("longVal"), encode(legacy, new Long(4L)));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("longPrimVal"), Bytes.toBytes(4L));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("integerVal"), Utils.serializeObject(new Integer(3)));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("integerVal"), encode(legacy, new Integer(3)));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("intVal"), Bytes.toBytes(3));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("characterVal"), Utils.serializeObject(new Character('a')));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("characterVal"), encode(legacy, new Character('a')));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("charVal"), Bytes.toBytes('a'));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("shortVal"), Utils.serializeObject(new Short((short) 2)));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("shortVal"), encode(legacy, new Short((short) 2)));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("shortPrimVal"), Bytes.toBytes((short) 2));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("byteVal"), Utils.serializeObject(new Byte((byte) 0xb)));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("byteVal"), encode(legacy, new Byte((byte) 0xb)));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("bytePrimVal"), Bytes.toBytes((byte) 0xb));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("floatVal"), Utils.serializeObject(new Float(1.01f)));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("floatVal"), encode(legacy, new Float(1.01f)));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("floatPrimVal"), Bytes.toBytes(1.01f));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("doubleVal"), Utils.serializeObject(new Double(2.22d)));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("doubleVal"), encode(legacy, new Double(2.22d)));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("doublePrimVal"), Bytes.toBytes(2.22d));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("dateVal"), Utils.serializeObject(DATE1));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("ksEnum"), Utils.serializeObject(KitchenSinkEnum.ONE));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("bigDecimal"), Utils.serializeObject(new BigDecimal(2)));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("dateVal"), encode(legacy, DATE1));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("ksEnum"), encode(legacy, KitchenSinkEnum.ONE));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("bigDecimal"), encode(legacy, new BigDecimal(2)));
 
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("strArray"), Utils.serializeObject(new String[]{"a", "b"}));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("primitiveIntArray"), Utils.serializeObject(new int[]{1, 2}));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("strArray"), encode(legacy, new String[]{"a", "b"}));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("primitiveIntArray"), encode(legacy, new int[]{1, 2}));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("integerArray"),
-            Utils.serializeObject(new Integer[]{new Integer(3), new Integer(4)}));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("primitiveLongArray"), Utils.serializeObject(new long[]{5L, 6L}));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("longArray"), Utils.serializeObject(new Long[]{new Long(7L), new Long(8L)}));
+            encode(legacy, new Integer[]{new Integer(3), new Integer(4)}));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("primitiveLongArray"), encode(legacy, new long[]{5L, 6L}));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("longArray"), encode(legacy, new Long[]{new Long(7L), new Long(8L)}));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("primitiveShortArray"),
-            Utils.serializeObject(new short[]{(short) 9, (short) 10}));
+            encode(legacy, new short[]{(short) 9, (short) 10}));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("shortArray"),
-            Utils.serializeObject(new Short[]{new Short((short) 11), new Short((short) 12)}));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("primitiveCharArray"), Utils.serializeObject(new char[]{'a', 'b'}));
+            encode(legacy, new Short[]{new Short((short) 11), new Short((short) 12)}));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("primitiveCharArray"), encode(legacy, new char[]{'a', 'b'}));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("characterArray"),
-            Utils.serializeObject(new Character[]{new Character('c'), new Character('d')}));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("primitiveFloatArray"), Utils.serializeObject(new float[]{1.01f, 1.02f}));
+            encode(legacy, new Character[]{new Character('c'), new Character('d')}));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("primitiveFloatArray"), encode(legacy, new float[]{1.01f, 1.02f}));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("floatArray"),
-            Utils.serializeObject(new Float[]{new Float(1.03f), new Float(1.04f)}));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("primitiveDoubleArray"), Utils.serializeObject(new double[]{2.01d, 2.02d}));
+            encode(legacy, new Float[]{new Float(1.03f), new Float(1.04f)}));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("primitiveDoubleArray"), encode(legacy, new double[]{2.01d, 2.02d}));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("doubleArray"),
-            Utils.serializeObject(new Double[]{new Double(2.03d), new Double(2.04d)}));
+            encode(legacy, new Double[]{new Double(2.03d), new Double(2.04d)}));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("byteArray"),
-            Utils.serializeObject(new Byte[]{new Byte((byte) 0xe), new Byte((byte) 0xf)}));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("primitiveByteArray"), Utils.serializeObject(new byte[]{0xb, 0xc}));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("primitiveBooleanArray"), Utils.serializeObject(new boolean[]{true, false}));
+            encode(legacy, new Byte[]{new Byte((byte) 0xe), new Byte((byte) 0xf)}));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("primitiveByteArray"), encode(legacy, new byte[]{0xb, 0xc}));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("primitiveBooleanArray"), encode(legacy, new boolean[]{true, false}));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("booleanArray"),
-            Utils.serializeObject(new Boolean[]{Boolean.FALSE, Boolean.TRUE}));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("dateArray"), Utils.serializeObject(new Date[]{DATE1, DATE2}));
+            encode(legacy, new Boolean[]{Boolean.FALSE, Boolean.TRUE}));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("dateArray"), encode(legacy, new Date[]{DATE1, DATE2}));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("ksEnumArray"),
-            Utils.serializeObject(new KitchenSinkEnum[]{KitchenSinkEnum.TWO, KitchenSinkEnum.ONE}));
+            encode(legacy, new KitchenSinkEnum[]{KitchenSinkEnum.TWO, KitchenSinkEnum.ONE}));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("bigDecimalArray"),
-            Utils.serializeObject(new BigDecimal[]{new BigDecimal(3), new BigDecimal(4)}));
-
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("strList"), Utils.serializeObject(Utils.newArrayList("p", "q")));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("integerList"), Utils.serializeObject(Utils.newArrayList(11, 12)));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("longList"), Utils.serializeObject(Utils.newArrayList(13L, 14L)));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("shortList"), Utils.serializeObject(Utils.newArrayList((short) 15, (short) 16)));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("byteList"), Utils.serializeObject(Utils.newArrayList((byte) 0x8, (byte) 0x9)));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("charList"), Utils.serializeObject(Utils.newArrayList('q', 'r')));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("doubleList"), Utils.serializeObject(Utils.newArrayList(22.44d, 23.55d)));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("floatList"), Utils.serializeObject(Utils.newArrayList(23.44f, 24.55f)));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("booleanList"), Utils.serializeObject(Utils.newArrayList(true, false)));
-        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("dateList"), Utils.serializeObject(Utils.newArrayList(DATE1, DATE2)));
+            encode(legacy, new BigDecimal[]{new BigDecimal(3), new BigDecimal(4)}));
+
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("strList"), encode(legacy, Utils.newArrayList("p", "q")));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("integerList"), encode(legacy, Utils.newArrayList(11, 12)));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("longList"), encode(legacy, Utils.newArrayList(13L, 14L)));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("shortList"), encode(legacy, Utils.newArrayList((short) 15, (short) 16)));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("byteList"), encode(legacy, Utils.newArrayList((byte) 0x8, (byte) 0x9)));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("charList"), encode(legacy, Utils.newArrayList('q', 'r')));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("doubleList"), encode(legacy, Utils.newArrayList(22.44d, 23.55d)));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("floatList"), encode(legacy, Utils.newArrayList(23.44f, 24.55f)));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("booleanList"), encode(legacy, Utils.newArrayList(true, false)));
+        put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("dateList"), encode(legacy, Utils.newArrayList(DATE1, DATE2)));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("ksEnumList"),
-            Utils.serializeObject(Utils.newArrayList(KitchenSinkEnum.TWO, KitchenSinkEnum.ONE)));
+            encode(legacy, Utils.newArrayList(KitchenSinkEnum.TWO, KitchenSinkEnum.ONE)));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("bigDecimalList"),
-            Utils.serializeObject(Utils.newArrayList(new BigDecimal(7), new BigDecimal(6))));
+            encode(legacy, Utils.newArrayList(new BigDecimal(7), new BigDecimal(6))));
         put.add(Bytes.toBytes("KitchenSink"), Bytes.toBytes("an extra property"), Bytes.toBytes("yar!"));
 
         return put;
 
     }
 
+    private static byte[] encode(boolean legacy, Object value) throws IOException
+    {
+        return legacy ? Utils.serializeObject(value) : CompactFieldCodec.INSTANCE.encode(value);
+    }
+
     public static final List<String> KITCHEN_SINK_FIELDS = getKitchenSinkFields();
 
     private static List<String> getKitchenSinkFields()
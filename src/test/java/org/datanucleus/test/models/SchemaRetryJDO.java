@@ -0,0 +1,72 @@
+/**********************************************************************
+ * Copyright (c) 2010 Ghais Issa and others. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors :
+ * ...
+ ************************************************************************/
+package org.datanucleus.test.models;
+
+import javax.jdo.annotations.Column;
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * Two classes of a table whose creation fails the first time, the second class retrying it.
+ */
+public class SchemaRetryJDO
+{
+    @PersistenceCapable(identityType = IdentityType.APPLICATION, table = "SchemaRetryTable")
+    public static class First
+    {
+        @PrimaryKey
+        private String id;
+
+        @Persistent
+        @Column(name = "first:value")
+        private String value;
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public String getValue()
+        {
+            return value;
+        }
+    }
+
+    @PersistenceCapable(identityType = IdentityType.APPLICATION, table = "SchemaRetryTable")
+    public static class Second
+    {
+        @PrimaryKey
+        private String id;
+
+        @Persistent
+        @Column(name = "second:value")
+        private String value;
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public String getValue()
+        {
+            return value;
+        }
+    }
+}